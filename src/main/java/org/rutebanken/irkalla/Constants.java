@@ -24,6 +24,16 @@ public class Constants {
     public static final String HEADER_SYNC_STATUS_TO = "RutebankenSyncStatusTo";
     public static final String HEADER_SYNC_OPERATION = "RutebankenSyncOperation";
     public static final String HEADER_NEXT_BATCH_URL = "RutebankenNextBatchURL";
+    public static final String HEADER_PREFETCHED_BATCH = "RutebankenPrefetchedBatch";
+    public static final String HEADER_CURRENT_BATCH_URL = "RutebankenCurrentBatchURL";
+    public static final String HEADER_SYNC_RUN_ID = "RutebankenSyncRunId";
+    public static final String HEADER_SYNC_SLICE = "RutebankenSyncSlice";
+    public static final String HEADER_SYNC_FORCE_FULL = "RutebankenSyncForceFull";
+    public static final String HEADER_SYNC_COMPLETE_UPLOAD = "RutebankenSyncCompleteUpload";
+    public static final String HEADER_SYNC_DELTA_PENDING = "RutebankenSyncDeltaPending";
+    public static final String HEADER_CHANGE_TIME = "RutebankenChangeTime";
+    public static final String HEADER_DELETE_FAILURES = "RutebankenDeleteFailures";
+    public static final String PROPERTY_BATCH_FETCH_MILLIS = "IrkallaBatchFetchMillis";
     public static final String SINGLETON_ROUTE_DEFINITION_GROUP_NAME = "IrkallaSingletonRouteDefinitionGroup";
     public static final String SYNC_OPERATION_DELTA="DELTA";
     public static final String SYNC_OPERATION_FULL="FULL";
@@ -0,0 +1,109 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package org.rutebanken.irkalla.config;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.camel.component.ActiveMQComponent;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.boot.autoconfigure.jms.activemq.ActiveMQProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.StringUtils;
+
+import javax.jms.ConnectionFactory;
+
+/**
+ * Single pooled JMS connection factory used by the activemq component for all routes, by the batch listener containers and by the
+ * JmsTransactionManager.
+ * <p>
+ * Replaces the connection factory otherwise created by Spring Boot, but is configured from the same spring.activemq properties,
+ * including the spring.activemq.pool properties. The pool is always enabled.
+ */
+@Configuration
+@EnableConfigurationProperties(ActiveMQProperties.class)
+public class JmsConnectionFactoryConfig {
+
+    private static final String POOLED_CONNECTION_FACTORY = "pooledConnectionFactory";
+
+    private static final String CAMEL_CONTEXT = "camelContext";
+
+    private static final String DEFAULT_EMBEDDED_BROKER_URL = "vm://localhost?broker.persistent=false";
+
+    private static final String DEFAULT_NETWORK_BROKER_URL = "tcp://localhost:61616";
+
+    @Bean(name = POOLED_CONNECTION_FACTORY, destroyMethod = "stop")
+    public MeteredPooledConnectionFactory pooledConnectionFactory(ActiveMQProperties properties) {
+        MeteredPooledConnectionFactory pooledConnectionFactory = new MeteredPooledConnectionFactory(createConnectionFactory(properties));
+        ActiveMQProperties.Pool pool = properties.getPool();
+        pooledConnectionFactory.setBlockIfSessionPoolIsFull(pool.isBlockIfFull());
+        pooledConnectionFactory.setBlockIfSessionPoolIsFullTimeout(pool.getBlockIfFullTimeout());
+        pooledConnectionFactory.setCreateConnectionOnStartup(pool.isCreateConnectionOnStartup());
+        pooledConnectionFactory.setExpiryTimeout(pool.getExpiryTimeout());
+        pooledConnectionFactory.setIdleTimeout(pool.getIdleTimeout());
+        pooledConnectionFactory.setMaxConnections(pool.getMaxConnections());
+        pooledConnectionFactory.setMaximumActiveSessionPerConnection(pool.getMaximumActiveSessionPerConnection());
+        pooledConnectionFactory.setReconnectOnException(pool.isReconnectOnException());
+        pooledConnectionFactory.setTimeBetweenExpirationCheckMillis(pool.getTimeBetweenExpirationCheck());
+        pooledConnectionFactory.setUseAnonymousProducers(pool.isUseAnonymousProducers());
+        return pooledConnectionFactory;
+    }
+
+    @Bean
+    public ActiveMQComponent activemq(ConnectionFactory connectionFactory) {
+        ActiveMQComponent activeMQComponent = new ActiveMQComponent();
+        activeMQComponent.setConnectionFactory(connectionFactory);
+        return activeMQComponent;
+    }
+
+    /**
+     * Make the Camel context depend on the pool, so that routes and their listener containers are stopped before the pool is stopped
+     * on shutdown. Otherwise sessions still in use by listeners are closed under them.
+     */
+    @Bean
+    public static BeanFactoryPostProcessor stopCamelContextBeforeConnectionPool() {
+        return beanFactory -> {
+            if (beanFactory.containsBeanDefinition(CAMEL_CONTEXT)) {
+                BeanDefinition camelContext = beanFactory.getBeanDefinition(CAMEL_CONTEXT);
+                camelContext.setDependsOn(StringUtils.addStringToArray(camelContext.getDependsOn(), POOLED_CONNECTION_FACTORY));
+            }
+        };
+    }
+
+    /**
+     * Same as the connection factory created by Spring Boot from the spring.activemq properties.
+     */
+    private ActiveMQConnectionFactory createConnectionFactory(ActiveMQProperties properties) {
+        String brokerUrl = properties.getBrokerUrl();
+        if (!StringUtils.hasText(brokerUrl)) {
+            brokerUrl = properties.isInMemory() ? DEFAULT_EMBEDDED_BROKER_URL : DEFAULT_NETWORK_BROKER_URL;
+        }
+        ActiveMQConnectionFactory connectionFactory = StringUtils.hasLength(properties.getUser())
+                                                              ? new ActiveMQConnectionFactory(properties.getUser(), properties.getPassword(), brokerUrl)
+                                                              : new ActiveMQConnectionFactory(brokerUrl);
+        connectionFactory.setCloseTimeout(properties.getCloseTimeout());
+        connectionFactory.setNonBlockingRedelivery(properties.isNonBlockingRedelivery());
+        connectionFactory.setSendTimeout(properties.getSendTimeout());
+        ActiveMQProperties.Packages packages = properties.getPackages();
+        if (packages.getTrustAll() != null) {
+            connectionFactory.setTrustAllPackages(packages.getTrustAll());
+        }
+        if (!packages.getTrusted().isEmpty()) {
+            connectionFactory.setTrustedPackages(packages.getTrusted());
+        }
+        return connectionFactory;
+    }
+}
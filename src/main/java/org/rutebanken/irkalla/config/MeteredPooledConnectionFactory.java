@@ -0,0 +1,97 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.config;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.jms.pool.ConnectionKey;
+import org.apache.activemq.jms.pool.ConnectionPool;
+import org.apache.activemq.pool.PooledConnectionFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pooled JMS connection factory shared by all routes, exposing usage of the pool.
+ * <p>
+ * Connections and sessions are pooled, and each pooled session caches a single anonymous producer, so sending to a queue does not
+ * open a new connection, session and producer for each message.
+ */
+@ManagedResource(objectName = "org.rutebanken.irkalla:name=JmsConnectionPool", description = "Pooled JMS connections shared by all routes")
+public class MeteredPooledConnectionFactory extends PooledConnectionFactory {
+
+    private final AtomicLong connectionsCreated = new AtomicLong();
+
+    private final Set<ConnectionPool> connectionPools = ConcurrentHashMap.newKeySet();
+
+    public MeteredPooledConnectionFactory(ActiveMQConnectionFactory connectionFactory) {
+        super(connectionFactory);
+    }
+
+    @Override
+    protected Connection createConnection(ConnectionKey key) throws JMSException {
+        Connection connection = super.createConnection(key);
+        connectionsCreated.incrementAndGet();
+        return connection;
+    }
+
+    @Override
+    protected ConnectionPool createConnectionPool(Connection connection) {
+        ConnectionPool connectionPool = super.createConnectionPool(connection);
+        connectionPools.add(connectionPool);
+        return connectionPool;
+    }
+
+    @ManagedAttribute(description = "Number of physical connections created to the broker")
+    public long getConnectionsCreated() {
+        return connectionsCreated.get();
+    }
+
+    @ManagedAttribute(description = "Number of physical connections currently in the pool")
+    public int getPooledConnections() {
+        return getNumConnections();
+    }
+
+    @ManagedAttribute(description = "Number of sessions in the pool, active or idle")
+    public int getPooledSessions() {
+        return openConnectionPools().stream().mapToInt(ConnectionPool::getNumSessions).sum();
+    }
+
+    @ManagedAttribute(description = "Number of sessions currently borrowed from the pool")
+    public int getActiveSessions() {
+        return openConnectionPools().stream().mapToInt(ConnectionPool::getNumActiveSessions).sum();
+    }
+
+    @ManagedAttribute(description = "Max number of physical connections in the pool")
+    public int getMaxPooledConnections() {
+        return getMaxConnections();
+    }
+
+    @ManagedAttribute(description = "Max number of active sessions per connection")
+    public int getMaxActiveSessionsPerConnection() {
+        return getMaximumActiveSessionPerConnection();
+    }
+
+    private Set<ConnectionPool> openConnectionPools() {
+        // Connection is cleared when pool is closed, ie when connection is expired or evicted
+        connectionPools.removeIf(connectionPool -> connectionPool.getConnection() == null);
+        return connectionPools;
+    }
+}
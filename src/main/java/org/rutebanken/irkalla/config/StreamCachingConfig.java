@@ -0,0 +1,62 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.config;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.spi.StreamCachingStrategy;
+import org.apache.camel.spring.boot.CamelContextConfiguration;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.StringUtils;
+
+/**
+ * Configure spooling to disk for stream caching, so that large NeTEx pages fetched from Tiamat are held in a bounded
+ * in memory buffer / temp file and streamed on to Chouette, instead of being materialized on heap.
+ * <p>
+ * Stream caching is not enabled for the whole context, only for the routes handling NeTEx pages (see .streamCaching()).
+ */
+@Configuration
+public class StreamCachingConfig {
+
+    @Value("${sync.stop.place.spool.threshold.bytes:1048576}")
+    private long spoolThreshold;
+
+    @Value("${sync.stop.place.spool.directory:}")
+    private String spoolDirectory;
+
+    @Value("${sync.stop.place.spool.buffer.size:65536}")
+    private int bufferSize;
+
+    @Bean
+    public CamelContextConfiguration streamCachingContextConfiguration() {
+        return new CamelContextConfiguration() {
+            @Override
+            public void beforeApplicationStart(CamelContext camelContext) {
+                StreamCachingStrategy streamCachingStrategy = camelContext.getStreamCachingStrategy();
+                streamCachingStrategy.setSpoolThreshold(spoolThreshold);
+                streamCachingStrategy.setBufferSize(bufferSize);
+                if (!StringUtils.isEmpty(spoolDirectory)) {
+                    streamCachingStrategy.setSpoolDirectory(spoolDirectory);
+                }
+            }
+
+            @Override
+            public void afterApplicationStart(CamelContext camelContext) {
+            }
+        };
+    }
+}
@@ -16,20 +16,29 @@
 package org.rutebanken.irkalla.routes;
 
 import org.apache.camel.Exchange;
+import org.apache.camel.LoggingLevel;
 import org.apache.camel.model.rest.RestBindingMode;
 import org.apache.camel.model.rest.RestParamType;
 import org.apache.camel.model.rest.RestPropertyDefinition;
 import org.rutebanken.helper.organisation.AuthorizationConstants;
 import org.rutebanken.helper.organisation.NotAuthenticatedException;
+import org.rutebanken.irkalla.routes.chouette.SyncRunRecorder;
+import org.rutebanken.irkalla.routes.tiamat.AdaptivePageSizeController;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 import org.springframework.util.CollectionUtils;
+import org.springframework.util.StringUtils;
 
+import javax.ws.rs.BadRequestException;
 import javax.ws.rs.NotFoundException;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import static org.rutebanken.irkalla.Constants.*;
 
@@ -45,6 +54,12 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
     @Value("${authorization.enabled:true}")
     protected boolean authorizationEnabled;
 
+    @Autowired
+    private SyncRunRecorder syncRunRecorder;
+
+    @Autowired
+    private AdaptivePageSizeController pageSizeController;
+
 
     @Override
     public void configure() throws Exception {
@@ -62,6 +77,12 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
                 .setHeader(Exchange.CONTENT_TYPE, constant("text/plain"))
                 .transform(exceptionMessage());
 
+        onException(BadRequestException.class)
+                .handled(true)
+                .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(400))
+                .setHeader(Exchange.CONTENT_TYPE, constant("text/plain"))
+                .transform(exceptionMessage());
+
         onException(NotFoundException.class)
                 .handled(true)
                 .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(404))
@@ -110,6 +131,24 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
                 .to("direct:getSyncStatusUntilTime")
                 .endRest()
 
+                .get("/runs")
+                .description("Get metrics for synchronization runs in progress and recently completed on this node, latest first")
+                .responseMessage().code(200).endResponseMessage()
+                .responseMessage().code(500).message("Internal error").endResponseMessage()
+                .route().routeId("admin-chouette-synchronize-stop-places-runs")
+                .removeHeaders("CamelHttp*")
+                .process(e -> e.getIn().setBody(syncRunRecorder.getRuns()))
+                .endRest()
+
+                .get("/page_size_decisions")
+                .description("Get recent decisions for number of stop places per page requested from Tiamat on this node, oldest first")
+                .responseMessage().code(200).endResponseMessage()
+                .responseMessage().code(500).message("Internal error").endResponseMessage()
+                .route().routeId("admin-chouette-synchronize-stop-places-page-size-decisions")
+                .removeHeaders("CamelHttp*")
+                .process(e -> e.getIn().setBody(pageSizeController.getDecisions()))
+                .endRest()
+
                 .post("/delta")
                 .description("Synchronize new changes for stop places from Tiamat to Chouette")
                 .responseMessage().code(200).endResponseMessage()
@@ -124,6 +163,7 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
                 .post("/full")
                 .description("Full synchronization of all stop places from Tiamat to Chouette")
                 .param().name("cleanFirst").type(RestParamType.query).description("Whether or not not in use stop places should be deleted first").dataType("boolean").endParam()
+                .param().name("force").type(RestParamType.query).description("Whether or not all stop places should be uploaded, also if unchanged since last synchronization").dataType("boolean").endParam()
                 .responseMessage().code(200).endResponseMessage()
                 .responseMessage().code(500).message("Internal error").endResponseMessage()
                 .route().routeId("admin-chouette-synchronize-stop-places-full")
@@ -135,13 +175,47 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
                 .otherwise()
                     .setHeader(HEADER_SYNC_OPERATION, constant(SYNC_OPERATION_FULL))
                 .end()
+                .setHeader(HEADER_SYNC_FORCE_FULL, simple("${header.force}", Boolean.class))
                 .inOnly("activemq:queue:ChouetteStopPlaceSyncQueue")
                 .setBody(constant(null))
+                .endRest()
+                .post("/stops")
+                .description("Synchronize current version of stop places with given ids from Tiamat to Chouette, regardless of changes")
+                .type(String[].class)
+                .responseMessage().code(200).endResponseMessage()
+                .responseMessage().code(400).message("No stop place ids").endResponseMessage()
+                .responseMessage().code(500).message("Internal error").endResponseMessage()
+                .route().routeId("admin-chouette-synchronize-stop-places-by-id")
+                .process(e -> authorize(AuthorizationConstants.ROLE_ROUTE_DATA_ADMIN))
+                .removeHeaders("CamelHttp*")
+                .process(e -> e.getIn().setBody(toIdList(e.getIn().getBody(String[].class))))
+                .log(LoggingLevel.INFO, "Synchronization of stop places by id requested: ${body}")
+                .inOnly("activemq:queue:ChouetteStopPlaceIdsSyncQueue")
+                .setBody(constant(null))
                 .endRest();
 
 
     }
 
+    /**
+     * Distinct, non blank ids as comma separated list.
+     */
+    private String toIdList(String[] ids) {
+        Set<String> distinctIds = new LinkedHashSet<>();
+        if (ids != null) {
+            Arrays.stream(ids).filter(StringUtils::hasText).map(String::trim).forEach(distinctIds::add);
+        }
+        if (distinctIds.isEmpty()) {
+            throw new BadRequestException("No stop place ids given");
+        }
+        for (String id : distinctIds) {
+            if (id.contains(",")) {
+                throw new BadRequestException("Invalid stop place id: " + id);
+            }
+        }
+        return String.join(",", distinctIds);
+    }
+
     private void authorize(String requiredRole) {
         if (!authorizationEnabled) {
             return;
@@ -35,4 +35,11 @@ public abstract class BaseRouteBuilder extends SpringRouteBuilder {
     protected RouteDefinition singletonFrom(String uri) {
         return this.from(uri).group(SINGLETON_ROUTE_DEFINITION_GROUP_NAME);
     }
+
+    /**
+     * Create a new route definition from URI, active on all nodes in the cluster if work is sharded and as singleton otherwise.
+     */
+    protected RouteDefinition shardedOrSingletonFrom(String uri, boolean sharded) {
+        return sharded ? this.from(uri) : singletonFrom(uri);
+    }
 }
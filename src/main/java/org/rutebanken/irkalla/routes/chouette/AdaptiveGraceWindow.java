@@ -0,0 +1,147 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+
+/**
+ * Grace period the sync status is moved back in time when a synchronization completes, to catch changes not yet committed in Tiamat
+ * when the synchronization fetched changes.
+ * <p>
+ * When adaptive, the grace period is a high percentile of the observed commit lag in Tiamat, bounded by a floor and a ceiling. Commit lag
+ * is observed for changelog events as the time the changed stop place could be read from Tiamat minus the time the change is registered
+ * as effective from. This includes time spent in the changelog queue, which only makes the estimate err on the safe side. The configured
+ * fixed grace period is used until enough lag samples have been observed.
+ * <p>
+ * Samples are local to the node.
+ */
+@Component
+@ManagedResource(objectName = "org.rutebanken.irkalla:name=StopPlaceSynchronizationGraceWindow", description = "Grace window for stop place synchronization")
+public class AdaptiveGraceWindow {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveGraceWindow.class);
+
+    static final int MIN_SAMPLES = 20;
+
+    private final long fixedGraceMillis;
+
+    private final boolean adaptive;
+
+    private final double percentile;
+
+    private final long minGraceMillis;
+
+    private final long maxGraceMillis;
+
+    // Ring buffer of most recent commit lag samples
+    private final long[] samples;
+
+    private int sampleCount;
+
+    private int nextSample;
+
+    private long lastGraceMillis = -1;
+
+    public AdaptiveGraceWindow(@Value("${chouette.sync.stop.place.grace.ms:30000}") long fixedGraceMillis,
+                                      @Value("${chouette.sync.stop.place.grace.adaptive:false}") boolean adaptive,
+                                      @Value("${chouette.sync.stop.place.grace.percentile:99}") double percentile,
+                                      @Value("${chouette.sync.stop.place.grace.min.ms:2000}") long minGraceMillis,
+                                      @Value("${chouette.sync.stop.place.grace.max.ms:120000}") long maxGraceMillis,
+                                      @Value("${chouette.sync.stop.place.grace.samples:1000}") int sampleSize) {
+        this.fixedGraceMillis = fixedGraceMillis;
+        this.adaptive = adaptive;
+        this.percentile = percentile;
+        this.minGraceMillis = minGraceMillis;
+        this.maxGraceMillis = maxGraceMillis;
+        this.samples = new long[Math.max(1, sampleSize)];
+    }
+
+    /**
+     * Register commit lag for a change.
+     *
+     * @param changeTime   time change is effective from according to Tiamat (epoch millis)
+     * @param observedTime time change was read from Tiamat (epoch millis)
+     */
+    public synchronized void commitLagObserved(long changeTime, long observedTime) {
+        long lag = observedTime - changeTime;
+        if (lag < 0) {
+            // Change effective in the future, says nothing about commit lag
+            return;
+        }
+        samples[nextSample] = lag;
+        nextSample = (nextSample + 1) % samples.length;
+        sampleCount = Math.min(sampleCount + 1, samples.length);
+    }
+
+    /**
+     * Grace period in ms to subtract from the time a synchronization covered changes until.
+     */
+    public synchronized long getGraceMillis() {
+        long graceMillis = fixedGraceMillis;
+        Long lag = getCommitLagPercentile(percentile);
+        if (adaptive && sampleCount >= MIN_SAMPLES) {
+            graceMillis = Math.max(minGraceMillis, Math.min(maxGraceMillis, lag));
+        }
+        if (graceMillis != lastGraceMillis) {
+            logger.info("Using grace period of " + graceMillis + " ms for stop place synchronization. Commit lag in Tiamat at percentile " + percentile
+                                + ": " + lag + " ms for last " + sampleCount + " changes");
+            lastGraceMillis = graceMillis;
+        }
+        return graceMillis;
+    }
+
+    /**
+     * Commit lag in ms for given percentile of recent changes, or null if none observed.
+     */
+    public synchronized Long getCommitLagPercentile(double percentile) {
+        if (sampleCount == 0) {
+            return null;
+        }
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    @ManagedAttribute(description = "Grace period in ms used for last completed synchronization, -1 if none")
+    public synchronized long getLastGraceMillis() {
+        return lastGraceMillis;
+    }
+
+    @ManagedAttribute(description = "Median commit lag in Tiamat in ms for recent changes, -1 if none observed")
+    public long getMedianCommitLagMillis() {
+        Long lag = getCommitLagPercentile(50);
+        return lag == null ? -1 : lag;
+    }
+
+    @ManagedAttribute(description = "Commit lag in Tiamat in ms at configured percentile for recent changes, -1 if none observed")
+    public long getCommitLagMillisAtPercentile() {
+        Long lag = getCommitLagPercentile(percentile);
+        return lag == null ? -1 : lag;
+    }
+
+    @ManagedAttribute(description = "Number of recent commit lag samples")
+    public synchronized int getSampleCount() {
+        return sampleCount;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.component.http4.HttpMethods;
+import org.apache.camel.http.common.HttpOperationFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.rutebanken.irkalla.util.Http4URL.toHttp4Url;
+
+/**
+ * Delay before retrying requests rejected because Chouette is busy (423).
+ * <p>
+ * Delay grows exponentially with the number of consecutive rejections, up to a max delay, and is randomized (jitter) to avoid
+ * retries from different queues hitting Chouette at the same time. If a probe url is configured, retries are scheduled with a short
+ * interval instead, and each retry first checks whether Chouette is still busy with a lightweight request to the probe url.
+ */
+@Component
+public class ChouetteBusyBackoff {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChouetteBusyBackoff.class);
+
+    // Fixed retry delay, if configured, is used as initial delay
+    @Value("${chouette.sync.stop.place.retry.delay.initial:${chouette.sync.stop.place.retry.delay:1000}}")
+    private long initialDelay;
+
+    @Value("${chouette.sync.stop.place.retry.delay.max:120000}")
+    private long maxDelay;
+
+    @Value("${chouette.sync.stop.place.retry.probe.url:}")
+    private String probeUrl;
+
+    @Value("${chouette.sync.stop.place.retry.probe.interval:1000}")
+    private long probeInterval;
+
+    @Autowired
+    private ProducerTemplate producerTemplate;
+
+    private final AtomicInteger consecutiveBusy = new AtomicInteger();
+
+    /**
+     * Register that Chouette rejected a request because it is busy.
+     *
+     * @return delay in ms before retrying
+     */
+    public long busy() {
+        int attempt = consecutiveBusy.incrementAndGet();
+        if (isProbeEnabled()) {
+            return probeInterval;
+        }
+        return delay(attempt, initialDelay, maxDelay);
+    }
+
+    /**
+     * Register that Chouette accepted a request.
+     */
+    public void available() {
+        consecutiveBusy.set(0);
+    }
+
+    /**
+     * Whether Chouette is known to still be busy, according to the probe. Always false if probing is not enabled or Chouette was not busy
+     * at last request, in which case the real request should be attempted.
+     */
+    public boolean isStillBusy() {
+        if (!isProbeEnabled() || consecutiveBusy.get() == 0) {
+            return false;
+        }
+        Exchange result = producerTemplate.send(toHttp4Url(probeUrl), e -> e.getIn().setHeader(Exchange.HTTP_METHOD, HttpMethods.GET));
+        HttpOperationFailedException exception = result.getException(HttpOperationFailedException.class);
+        if (exception != null && exception.getStatusCode() == 423) {
+            logger.debug("Chouette still busy according to probe");
+            return true;
+        }
+        if (result.getException() != null) {
+            logger.info("Probing Chouette failed, attempting request anyway: " + result.getException().getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Exponential delay for attempt, capped at max delay, with "equal jitter": a random delay between half and all of the computed delay.
+     */
+    static long delay(int attempt, long initialDelay, long maxDelay) {
+        long delay = initialDelay << Math.min(Math.max(0, attempt - 1), 30);
+        if (delay <= 0 || delay > maxDelay) {
+            delay = maxDelay;
+        }
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+
+    private boolean isProbeEnabled() {
+        return probeUrl != null && !probeUrl.isEmpty();
+    }
+}
@@ -16,51 +16,199 @@
 package org.rutebanken.irkalla.routes.chouette;
 
 import org.apache.activemq.ScheduledMessage;
+import org.apache.activemq.command.ActiveMQMessage;
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
 import org.apache.camel.component.http4.HttpMethods;
 import org.apache.camel.http.common.HttpOperationFailedException;
 import org.rutebanken.irkalla.Constants;
+import org.rutebanken.irkalla.IrkallaException;
 import org.rutebanken.irkalla.routes.BaseRouteBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import static org.rutebanken.irkalla.util.Http4URL.toHttp4Url;
 
 @Component
 public class ChouetteStopPlaceDeleteRouteBuilder extends BaseRouteBuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChouetteStopPlaceDeleteRouteBuilder.class);
+
+    private static final String PROPERTY_DELETE_REJECTED = "IrkallaDeleteRejected";
+
+    private static final String PROPERTY_DELETE_FAILURE = "IrkallaDeleteFailure";
+
+    private static final String PROPERTY_FAILED_STOP_PLACE_IDS = "IrkallaFailedStopPlaceIds";
+
+    private static final String PROPERTY_DELETE_FAILURES = "IrkallaDeleteFailures";
+
     @Value("${chouette.url}")
     private String chouetteUrl;
 
-    @Value("${chouette.sync.stop.place.retry.delay:15000}")
-    private int retryDelay;
+    @Value("${chouette.sync.stop.place.delete.concurrency:4}")
+    private int deleteConcurrency;
+
+    // Stop place failing to be deleted this many times, for other reasons than Chouette being busy, is moved to dead letter queue
+    @Value("${chouette.sync.stop.place.delete.max.attempts:7}")
+    private int maxDeleteAttempts;
+
+    @Value("${chouette.sync.stop.place.delete.failure.retry.delay.ms:30000}")
+    private long failureRetryDelay;
+
+    @Autowired
+    private ChouetteBusyBackoff chouetteBusyBackoff;
+
+    @Autowired
+    private StopPlaceSyncSharding syncSharding;
 
     @Override
     public void configure() throws Exception {
         super.configure();
 
-        singletonFrom("activemq:queue:ChouetteStopPlaceDeleteQueue?transacted=true")
+        shardedOrSingletonFrom("activemq:queue:ChouetteStopPlaceDeleteQueue?transacted=true&messageListenerContainerFactoryRef=batchListenerContainerFactory", syncSharding.isEnabled())
                 .transacted()
+                .process(e -> e.getIn().setBody(getStopPlaceIds(e)))
+                // Only messages closing delete partitions when rebalancing
+                .filter(simple("${body.size} == 0"))
+                .stop()
+                .end()
+                .filter(e -> chouetteBusyBackoff.isStillBusy())
+                .process(e -> e.getIn().setHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, chouetteBusyBackoff.busy()))
+                .log(LoggingLevel.DEBUG, "Chouette is still busy, postponing delete of stop places ${body}")
+                .to("direct:retryDeleteStopPlaces")
+                .stop()
+                .end()
+
+                .log(LoggingLevel.INFO, "Delete ${body.size} stop places in Chouette: ${body}")
+                .split(body(), (oldExchange, newExchange) -> collectRejectedStopPlaceIds(oldExchange, newExchange))
+                .parallelProcessing().executorService(getContext().getExecutorServiceManager().newFixedThreadPool(this, "ChouetteStopPlaceDelete", Math.max(1, deleteConcurrency)))
+                .setHeader(Constants.HEADER_ENTITY_ID, body())
+                .to("direct:deleteStopPlace")
+                .end()
 
-                .log(LoggingLevel.INFO, "Delete stop place ${header." + Constants.HEADER_ENTITY_ID + "} in Chouette")
+                // Body is now ids of stop places Chouette was too busy to delete
+                .filter(simple("${body.size} > 0"))
+                .process(e -> e.getIn().setHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, chouetteBusyBackoff.busy()))
+                .log(LoggingLevel.INFO, "Unable to delete ${body.size} stop places because Chouette is busy, retry in ${header." + ScheduledMessage.AMQ_SCHEDULED_DELAY + "} ms")
+                .to("direct:retryDeleteStopPlaces")
+                .end()
+
+                // Failures are handled per stop place, not to roll back deletes already completed for other stop places in batch
+                .setBody(exchangeProperty(PROPERTY_FAILED_STOP_PLACE_IDS))
+                .filter(simple("${body.size} > 0"))
+                .to("direct:handleFailedDeleteStopPlaces")
+                .end()
+                .routeId("chouette-delete-stop-places");
+
+        from("direct:deleteStopPlace")
+                .log(LoggingLevel.INFO, "Delete stop place ${header." + Constants.HEADER_ENTITY_ID + "} in Chouette")
                 .setBody(constant(null))
                 .removeHeaders("CamelHttp*")
                 .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.DELETE))
                 .doTry()
                 .toD(toHttp4Url(chouetteUrl) + "/chouette_iev/stop_place/${header." + Constants.HEADER_ENTITY_ID + "}")
+                .process(e -> chouetteBusyBackoff.available())
                 .log(LoggingLevel.INFO, "Finished deleting stop place ${header." + Constants.HEADER_ENTITY_ID + "} in Chouette")
 
                 .doCatch(HttpOperationFailedException.class).onWhen(exchange -> {
                     HttpOperationFailedException ex = exchange.getException(HttpOperationFailedException.class);
                      return (ex.getStatusCode() == 423);
                 })
-                .log(LoggingLevel.INFO, "Unable to delete stop place because Chouette is busy, retry in " + retryDelay + " ms")
-                .setHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, constant(retryDelay))
-                .setBody(constant(null))
-                .to("activemq:queue:ChouetteStopPlaceSyncQueue")
+                .setProperty(PROPERTY_DELETE_REJECTED, constant(true))
+                .doCatch(Exception.class)
+                .setProperty(PROPERTY_DELETE_FAILURE, exchangeProperty(Exchange.EXCEPTION_CAUGHT))
                 .end()
                 .routeId("chouette-delete-stop-place");
 
+        from("direct:retryDeleteStopPlaces")
+                .split(body())
+                .setHeader(Constants.HEADER_ENTITY_ID, body())
+                .process(e -> e.getIn().setHeader(Constants.HEADER_DELETE_FAILURES, getDeleteFailures(e)))
+                .process(e -> syncSharding.assignDeletePartition(e, e.getIn().getHeader(Constants.HEADER_ENTITY_ID, String.class)))
+                .setBody(constant(null))
+                .to("activemq:queue:ChouetteStopPlaceDeleteQueue")
+                .end()
+                .routeId("chouette-retry-delete-stop-places");
+
+        from("direct:handleFailedDeleteStopPlaces")
+                .split(body())
+                .setHeader(Constants.HEADER_ENTITY_ID, body())
+                .process(e -> e.getIn().setHeader(Constants.HEADER_DELETE_FAILURES, getDeleteFailures(e) + 1))
+                .setBody(constant(null))
+                .choice()
+                .when(header(Constants.HEADER_DELETE_FAILURES).isGreaterThanOrEqualTo(maxDeleteAttempts))
+                .log(LoggingLevel.ERROR, "Giving up deleting stop place ${header." + Constants.HEADER_ENTITY_ID + "} in Chouette after ${header." + Constants.HEADER_DELETE_FAILURES + "} failed attempts, moving it to dead letter queue")
+                .to("activemq:queue:ActiveMQ.DLQ")
+                .otherwise()
+                .setHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, constant(failureRetryDelay))
+                .log(LoggingLevel.WARN, "Deleting stop place ${header." + Constants.HEADER_ENTITY_ID + "} in Chouette failed ${header." + Constants.HEADER_DELETE_FAILURES + "} times, retry in ${header." + ScheduledMessage.AMQ_SCHEDULED_DELAY + "} ms")
+                .process(e -> syncSharding.assignDeletePartition(e, e.getIn().getHeader(Constants.HEADER_ENTITY_ID, String.class)))
+                .to("activemq:queue:ChouetteStopPlaceDeleteQueue")
+                .end()
+                .end()
+                .routeId("chouette-handle-failed-delete-stop-places");
+    }
+
+    /**
+     * Distinct ids of stop places to delete from all messages read in batch. Number of failed attempts to delete each stop place is kept
+     * as an exchange property.
+     */
+    private List<String> getStopPlaceIds(Exchange e) {
+        List<ActiveMQMessage> msgList = e.getIn().getBody(List.class);
+        Set<String> ids = new LinkedHashSet<>();
+        Map<String, Integer> failures = new HashMap<>();
+        try {
+            for (ActiveMQMessage msg : msgList) {
+                Object id = msg.getProperty(Constants.HEADER_ENTITY_ID);
+                if (id != null) {
+                    ids.add(id.toString());
+                    Object failuresForId = msg.getProperty(Constants.HEADER_DELETE_FAILURES);
+                    if (failuresForId instanceof Number) {
+                        failures.merge(id.toString(), ((Number) failuresForId).intValue(), Math::max);
+                    }
+                }
+            }
+        } catch (IOException ioE) {
+            throw new IrkallaException("Unable to get entity id header as property from ActiveMQMessage: " + ioE.getMessage(), ioE);
+        }
+        e.setProperty(PROPERTY_DELETE_FAILURES, failures);
+        e.setProperty(PROPERTY_FAILED_STOP_PLACE_IDS, new ArrayList<String>());
+        return new ArrayList<>(ids);
+    }
+
+    private int getDeleteFailures(Exchange e) {
+        Map<String, Integer> failures = e.getProperty(PROPERTY_DELETE_FAILURES, Map.class);
+        Integer failuresForId = failures == null ? null : failures.get(e.getIn().getHeader(Constants.HEADER_ENTITY_ID, String.class));
+        return failuresForId == null ? 0 : failuresForId;
+    }
 
+    private Exchange collectRejectedStopPlaceIds(Exchange oldExchange, Exchange newExchange) {
+        Exchange result = oldExchange;
+        if (result == null) {
+            result = newExchange;
+            result.getIn().setBody(new ArrayList<String>());
+        }
+        if (Boolean.TRUE.equals(newExchange.getProperty(PROPERTY_DELETE_REJECTED))) {
+            result.getIn().getBody(List.class).add(newExchange.getIn().getHeader(Constants.HEADER_ENTITY_ID, String.class));
+        }
+        Exception failure = newExchange.getException() != null ? newExchange.getException() : newExchange.getProperty(PROPERTY_DELETE_FAILURE, Exception.class);
+        if (failure != null) {
+            String id = newExchange.getIn().getHeader(Constants.HEADER_ENTITY_ID, String.class);
+            logger.warn("Failed to delete stop place " + id + " in Chouette: " + failure.getMessage(), failure);
+            result.getProperty(PROPERTY_FAILED_STOP_PLACE_IDS, List.class).add(id);
+            newExchange.setException(null);
+        }
+        return result;
     }
 }
@@ -16,21 +16,36 @@
 package org.rutebanken.irkalla.routes.chouette;
 
 import org.apache.activemq.ScheduledMessage;
-import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.camel.ConsumerTemplate;
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.StreamCache;
 import org.apache.camel.component.http4.HttpMethods;
+import org.apache.camel.converter.stream.CachedOutputStream;
 import org.apache.camel.http.common.HttpOperationFailedException;
 import org.rutebanken.irkalla.Constants;
-import org.rutebanken.irkalla.IrkallaException;
 import org.rutebanken.irkalla.routes.BaseRouteBuilder;
+import org.rutebanken.irkalla.routes.singleton.SingletonRoutePolicyFactory;
+import org.rutebanken.irkalla.routes.tiamat.AdaptivePageSizeController;
+import org.rutebanken.irkalla.routes.tiamat.NetexPageSpool;
+import org.rutebanken.irkalla.routes.tiamat.NetexStopPlaceSplitter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.time.Instant;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.apache.camel.management.mbean.Statistic.UpdateMode.DELTA;
 import static org.rutebanken.irkalla.Constants.*;
@@ -38,6 +53,9 @@ import static org.rutebanken.irkalla.util.Http4URL.toHttp4Url;
 
 @Component
 public class ChouetteStopPlaceUpdateRouteBuilder extends BaseRouteBuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChouetteStopPlaceUpdateRouteBuilder.class);
+
     @Value("${chouette.url}")
     private String chouetteUrl;
 
@@ -49,11 +67,98 @@ public class ChouetteStopPlaceUpdateRouteBuilder extends BaseRouteBuilder {
     private String fullSyncCronSchedule;
 
 
-    @Value("${chouette.sync.stop.place.retry.delay:15000}")
-    private int retryDelay;
+    @Value("${sync.stop.place.full.time.slices:1}")
+    private int timeSliceCount;
+
+    @Value("${sync.stop.place.full.time.slice.start:2017-01-01T00:00:00Z}")
+    private String timeSliceStart;
+
+    @Value("${sync.stop.place.full.time.slice.concurrency:4}")
+    private int timeSliceConcurrency;
+
+    // Changes not pushed by targeted lane within this time are left to delta synchronization
+    @Value("${chouette.sync.stop.place.targeted.ttl.ms:600000}")
+    private long targetedSyncTimeToLive;
+
+    // Stop places synchronized by id are fetched from Tiamat and uploaded to Chouette in batches of this size
+    @Value("${chouette.sync.stop.place.ids.batch.size:100}")
+    private int idsBatchSize;
+
+    private static final String PROPERTY_UPLOAD_START = "IrkallaUploadStart";
+
+    // Size of page as served by Tiamat, before unchanged or delivered stop places are removed
+    private static final String PROPERTY_PAGE_BYTES = "IrkallaPageBytes";
+
+    private static final String PROPERTY_BATCH_UNCHANGED = "IrkallaBatchUnchanged";
+
+    private static final String PROPERTY_CHANGED_STOP_PLACE_HASHES = "IrkallaChangedStopPlaceHashes";
+
+    private static final String PROPERTY_UNDELIVERED_STOP_PLACE_VERSIONS = "IrkallaUndeliveredStopPlaceVersions";
+
+    private static final String PROPERTY_UPLOAD_WINDOW = "IrkallaUploadWindow";
+
+    private static final String PROPERTY_UPLOAD_IN_WINDOW = "IrkallaUploadInWindow";
+
+    private static final String PROPERTY_BATCH_REJECTED = "IrkallaBatchRejected";
+
+    private static final String PROPERTY_REJECTED_BATCH_URL = "IrkallaRejectedBatchUrl";
+
+    @Autowired
+    private TimeSlicedSyncTracker timeSlicedSyncTracker;
+
+    @Autowired
+    private ChouetteBusyBackoff chouetteBusyBackoff;
+
+    @Autowired
+    private DeltaSyncScheduler deltaSyncScheduler;
+
+    @Autowired
+    private ChouetteUploadPipeline chouetteUploadPipeline;
+
+    @Autowired
+    private AdaptivePageSizeController pageSizeController;
+
+    @Autowired
+    private NetexPageSpool netexPageSpool;
+
+    @Autowired
+    private StopPlaceHashStore stopPlaceHashStore;
+
+    @Autowired
+    private UnchangedStopPlaceFilter unchangedStopPlaceFilter;
+
+    @Autowired
+    private AdaptiveGraceWindow graceWindow;
+
+    @Autowired
+    private StopPlaceSyncSharding syncSharding;
+
+    @Autowired
+    private StopPlaceVersionIndex stopPlaceVersionIndex;
+
+    @Autowired
+    private WarmStandbyCaches warmStandbyCaches;
+
+    @Autowired
+    private DeliveredStopPlaceFilter deliveredStopPlaceFilter;
 
-    @Value("${chouette.sync.stop.place.grace.ms:30000}")
-    private int graceMilliseconds;
+    @Autowired
+    private ChouetteUploadLimiter chouetteUploadLimiter;
+
+    @Autowired
+    private SyncRunRecorder syncRunRecorder;
+
+    @Autowired
+    private TargetedSyncLane targetedSyncLane;
+
+    @Autowired
+    private SingletonRoutePolicyFactory singletonRoutePolicyFactory;
+
+    @Autowired
+    private ProducerTemplate producerTemplate;
+
+    @Autowired
+    private ConsumerTemplate consumerTemplate;
 
 
     @Override
@@ -74,9 +179,37 @@ public class ChouetteStopPlaceUpdateRouteBuilder extends BaseRouteBuilder {
                 .inOnly("activemq:queue:ChouetteStopPlaceSyncQueue")
                 .routeId("chouette-synchronize-stop-places-full-quartz");
 
+        from("direct:triggerDeltaSynchronization")
+                .process(e -> e.getIn().setHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, deltaSyncScheduler.scheduleDelta(e.getIn().getHeader(HEADER_ENTITY_ID, String.class),
+                        e.getIn().getHeader(HEADER_CHANGE_TIME, Long.class))))
+                .choice()
+                .when(header(ScheduledMessage.AMQ_SCHEDULED_DELAY).isNull())
+                .log(LoggingLevel.DEBUG, "Change for ${header." + HEADER_ENTITY_ID + "} will be included in already scheduled delta synchronization")
+                .otherwise()
+                .log(LoggingLevel.DEBUG, "Change for ${header." + HEADER_ENTITY_ID + "} triggers delta synchronization in ${header." + ScheduledMessage.AMQ_SCHEDULED_DELAY + "} ms")
+                .setBody(constant(null))
+                .to("activemq:queue:ChouetteStopPlaceSyncQueue")
+                .end()
+                .routeId("chouette-trigger-delta-synchronization");
+
+        // Queue is only read between pages of a running full synchronization. Messages are not persistent, so expired ones are dropped instead of dead lettered
+        from("direct:triggerTargetedSynchronization")
+                .filter(e -> isChangeEffective(e) && targetedSyncLane.isAcceptingChanges())
+                .setBody(constant(null))
+                .to(targetedSyncQueue())
+                .end()
+                .routeId("chouette-trigger-targeted-synchronization");
+
         singletonFrom("activemq:queue:ChouetteStopPlaceSyncQueue?transacted=true&messageListenerContainerFactoryRef=batchListenerContainerFactory")
                 .transacted()
                 .process(e -> mergeActiveMQMessages(e))
+                .filter(e -> chouetteBusyBackoff.isStillBusy())
+                .process(e -> setRetryDelay(e))
+                .log(LoggingLevel.DEBUG, "Chouette is still busy, postponing stop place synchronization ${header." + ScheduledMessage.AMQ_SCHEDULED_DELAY + "} ms")
+                .setBody(constant(null))
+                .to("activemq:queue:ChouetteStopPlaceSyncQueue")
+                .stop()
+                .end()
                 .choice()
                 .when(simple("${header." + HEADER_SYNC_OPERATION + "} == '" + SYNC_OPERATION_FULL_WITH_DELETE_UNUSED_FIRST + "'"))
                 .to("direct:deleteUnusedStopPlaces")
@@ -95,8 +228,36 @@ public class ChouetteStopPlaceUpdateRouteBuilder extends BaseRouteBuilder {
                 .log(LoggingLevel.INFO, "${header." + HEADER_SYNC_OPERATION + "} synchronization of stop places in Chouette resumed.")
                 .end()
 
+                .filter(e -> isStartOfTimeSlicedFullSync(e))
+                .to("direct:startTimeSlicedSynchronization")
+                .stop()
+                .end()
+
                 .setBody(constant(null))
+                .choice()
+                .when(e -> chouetteUploadPipeline.isEnabled())
+                .process(e -> synchronizeWindowOfBatches(e))
+                .otherwise()
                 .to("direct:processChangedStopPlacesAsNetex")
+                .end()
+
+                .filter(exchangeProperty(PROPERTY_REJECTED_BATCH_URL).isNotNull())
+                .process(e -> setRetryDelay(e))
+                .log(LoggingLevel.INFO, "Unable to sync all stop places in window because Chouette is busy, retry in ${header." + ScheduledMessage.AMQ_SCHEDULED_DELAY + "} ms")
+                // Resume from first batch not acknowledged
+                .setHeader(HEADER_NEXT_BATCH_URL, exchangeProperty(PROPERTY_REJECTED_BATCH_URL))
+                .setBody(constant(null))
+                .to("activemq:queue:ChouetteStopPlaceSyncQueue")
+                .stop()
+                .end()
+
+                // Gap between pages of full synchronization
+                .filter(e -> targetedSyncLane.isEnabled() && SYNC_OPERATION_FULL.equals(e.getIn().getHeader(HEADER_SYNC_OPERATION))
+                                     && e.getIn().getHeader(HEADER_NEXT_BATCH_URL) != null)
+                .process(e -> targetedSyncLane.fullSyncRunning(targetedSyncTimeToLive))
+                .process(e -> synchronizeTargetedStopPlaces())
+                .end()
+
                 .choice()
                 .when(header(HEADER_NEXT_BATCH_URL).isNotNull())
                 .to("activemq:ChouetteStopPlaceSyncQueue")  // Prepare new iteration
@@ -108,48 +269,149 @@ public class ChouetteStopPlaceUpdateRouteBuilder extends BaseRouteBuilder {
                 .routeId("chouette-synchronize-stop-places");
 
 
+        from("direct:startTimeSlicedSynchronization")
+                .process(e -> syncRunRecorder.runSliced(e.getIn().getHeader(HEADER_SYNC_RUN_ID, String.class)))
+                .process(e -> e.getIn().setBody(createTimeSlices(e)))
+                .log(LoggingLevel.INFO, "${header." + HEADER_SYNC_OPERATION + "} synchronization of stop places in Chouette split into time slices: ${body}")
+                .split(body())
+                .setHeader(HEADER_SYNC_SLICE, simple("${body.index}"))
+                .setHeader(HEADER_SYNC_STATUS_FROM, simple("${body.from}"))
+                .setHeader(HEADER_SYNC_STATUS_TO, simple("${body.to}"))
+                .setBody(constant(null))
+                .to("activemq:queue:ChouetteStopPlaceSliceSyncQueue")
+                .end()
+                .routeId("chouette-synchronize-stop-places-start-time-sliced");
+
+        shardedOrSingletonFrom("activemq:queue:ChouetteStopPlaceSliceSyncQueue?transacted=true&concurrentConsumers=" + timeSliceConcurrency, syncSharding.isEnabled())
+                .transacted()
+                .filter(e -> chouetteBusyBackoff.isStillBusy())
+                .process(e -> setRetryDelay(e))
+                .log(LoggingLevel.DEBUG, "Chouette is still busy, postponing time slice ${header." + HEADER_SYNC_SLICE + "} ${header." + ScheduledMessage.AMQ_SCHEDULED_DELAY + "} ms")
+                .setBody(constant(null))
+                .to("activemq:queue:ChouetteStopPlaceSliceSyncQueue")
+                .stop()
+                .end()
+                .setHeader(Constants.HEADER_PROCESS_TARGET, constant("direct:synchronizeStopPlaceBatchWithinUploadLimit"))
+                .setBody(constant(null))
+                .to("direct:processChangedStopPlacesAsNetex")
+                .choice()
+                .when(header(HEADER_NEXT_BATCH_URL).isNotNull())
+                .to("activemq:queue:ChouetteStopPlaceSliceSyncQueue")  // Prepare new iteration for slice
+                .otherwise()
+                .to("direct:completeTimeSlice")
+                .end()
+                .routeId("chouette-synchronize-stop-places-time-slice");
+
+        from("direct:completeTimeSlice")
+                .log(LoggingLevel.INFO, "${header." + HEADER_SYNC_OPERATION + "} synchronization of stop places in Chouette, time slice ${header." + HEADER_SYNC_SLICE + "} completed.")
+                .process(e -> e.getIn().setHeader(HEADER_SYNC_STATUS_TO, timeSlicedSyncTracker.completeSlice(e.getIn().getHeader(HEADER_SYNC_RUN_ID, String.class),
+                        e.getIn().getHeader(HEADER_SYNC_SLICE, Integer.class))))
+                .choice()
+                .when(e -> syncSharding.isEnabled() && e.getIn().getHeader(HEADER_SYNC_STATUS_TO) != null) // Last slice completed, sharded
+                .setBody(constant(null))
+                .to("activemq:queue:ChouetteStopPlaceSyncCompletionQueue")
+                .when(header(HEADER_SYNC_STATUS_TO).isNotNull()) // Last slice completed
+                .to("direct:completeSynchronization")
+                .end()
+                .routeId("chouette-synchronize-stop-places-complete-time-slice");
+
+        // Sharded synchronization is completed by the coordinator, owning the sync status
+        singletonFrom("activemq:queue:ChouetteStopPlaceSyncCompletionQueue?transacted=true")
+                .transacted()
+                .to("direct:completeSynchronization")
+                .routeId("chouette-synchronize-stop-places-complete-sharded");
+
+        from("direct:submitStopPlaceBatchUpload")
+                .process(e -> submitStopPlaceBatchUpload(e))
+                .routeId("chouette-submit-stop-place-batch-upload");
+
+        from("direct:synchronizeStopPlaceBatchWithinUploadLimit")
+                .process(e -> synchronizeStopPlaceBatchWithinUploadLimit(e))
+                .routeId("chouette-synchronize-stop-place-batch-within-upload-limit");
+
+
         from("direct:initNewSynchronization")
-                .log(LoggingLevel.INFO, "${header." + HEADER_SYNC_OPERATION + "} synchronization of stop places in Chouette started.")
+                .process(e -> e.getIn().setHeader(HEADER_SYNC_RUN_ID, syncRunRecorder.runStarted(e.getIn().getHeader(HEADER_SYNC_OPERATION, String.class))))
+                .log(LoggingLevel.INFO, "${header." + HEADER_SYNC_OPERATION + "} synchronization of stop places in Chouette started, run: ${header." + HEADER_SYNC_RUN_ID + "}")
                 .choice()
                 .when(simple("${header." + HEADER_SYNC_OPERATION + "} == '" + SYNC_OPERATION_DELTA + "'"))
+                .process(e -> deltaSyncScheduler.synchronizationStarted())
                 .setBody(constant(null))
                 .to("direct:getSyncStatusUntilTime")
                 .setHeader(Constants.HEADER_SYNC_STATUS_FROM, simple("${body}"))
                 .end()
 
                 .process(e -> e.getIn().setHeader(Constants.HEADER_SYNC_STATUS_TO, Instant.now().toEpochMilli()))
+                .filter(e -> isIncrementalFullSync(e))
+                // Decision is passed on to all pages, as slices may be uploaded by other nodes not having discarded their hashes
+                .process(e -> e.getIn().setHeader(HEADER_SYNC_COMPLETE_UPLOAD, stopPlaceHashStore.startFullSync(e.getIn().getHeader(HEADER_SYNC_FORCE_FULL, false, Boolean.class))))
+                .end()
+                .filter(e -> stopPlaceVersionIndex.isEnabled() && e.getIn().getHeader(HEADER_SYNC_FORCE_FULL, false, Boolean.class))
+                .process(e -> stopPlaceVersionIndex.clear())
+                .end()
                 .routeId("chouette-synchronize-stop-places-init");
 
         from("direct:completeSynchronization")
+                .process(e -> syncRunRecorder.runCompleted(e.getIn().getHeader(HEADER_SYNC_RUN_ID, String.class)))
+                // Other runs may still be retrying their rejected pages, ie a delta completing during time sliced full synchronization
+                .process(e -> netexPageSpool.clear(e.getIn().getHeader(HEADER_SYNC_RUN_ID, String.class)))
+                .filter(e -> targetedSyncLane.isEnabled() && SYNC_OPERATION_FULL.equals(e.getIn().getHeader(HEADER_SYNC_OPERATION)))
+                .process(e -> targetedSyncLane.fullSyncCompleted())
+                .end()
+                .filter(e -> isIncrementalFullSync(e))
+                .process(e -> stopPlaceHashStore.completeFullSync())
+                .end()
+                .process(e -> stopPlaceVersionIndex.save())
+                .process(e -> warmStandbyCaches.synchronizationCompleted(isIncrementalFullSync(e) ? stopPlaceHashStore.getCompleteUploadTime() : null))
                 .choice()
+                .when(e -> !singletonRoutePolicyFactory.isLeaseValid(e))
+                .log(LoggingLevel.WARN, "${header." + HEADER_SYNC_OPERATION + "} synchronization of stop places in Chouette completed, but lease has been lost. Not updating sync status.")
                 .when(header(Constants.HEADER_SYNC_STATUS_TO).isNotNull())
+                .process(e -> deltaSyncScheduler.synchronizationCompleted(e.getIn().getHeader(HEADER_SYNC_STATUS_TO, Long.class)))
                 // Adjust sync status back in time to be sure to catch any historic changes not yet committed in stop place registry
-                .process(e -> e.getIn().setBody(e.getIn().getHeader(HEADER_SYNC_STATUS_TO, Instant.class).minusMillis(graceMilliseconds)))
+                .process(e -> e.getIn().setBody(e.getIn().getHeader(HEADER_SYNC_STATUS_TO, Instant.class).minusMillis(graceWindow.getGraceMillis())))
                 .to("direct:setSyncStatusUntilTime")
                 .log(LoggingLevel.INFO, "${header." + HEADER_SYNC_OPERATION + "} synchronization of stop places in Chouette completed.")
                 .otherwise()
                 .log(LoggingLevel.INFO, "${header." + HEADER_SYNC_OPERATION + "} synchronization of stop places in Chouette completed, unable to update etcd.")
                 .end()
+                .filter(header(HEADER_SYNC_DELTA_PENDING).isEqualTo(true))
+                .log(LoggingLevel.INFO, "Delta synchronization of stop places was requested while ${header." + HEADER_SYNC_OPERATION + "} synchronization was running, triggering it now")
+                .removeHeaders("Rutebanken*")
+                .to("direct:triggerDeltaSynchronization")
+                .end()
 
                 .routeId("chouette-synchronize-stop-places-complete");
 
 
         from("direct:deleteUnusedStopPlaces")
                 .log(LoggingLevel.INFO, "Full synchronization of stop places in Chouette, deleting unused stops first")
+                .filter(e -> !syncRunRecorder.isActive(e.getIn().getHeader(HEADER_SYNC_RUN_ID, String.class)))
+                .process(e -> e.getIn().setHeader(HEADER_SYNC_RUN_ID, syncRunRecorder.runStarted(SYNC_OPERATION_FULL_WITH_DELETE_UNUSED_FIRST)))
+                .end()
                 .removeHeaders("CamelHttp*")
                 .setBody(constant(null))
                 .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.DELETE))
+                .process(e -> e.setProperty(PROPERTY_UPLOAD_START, System.currentTimeMillis()))
                 .doTry()
                 .toD(toHttp4Url(chouetteUrl) + "/chouette_iev/stop_place/unused")
+                .process(e -> chouetteBusyBackoff.available())
+                .process(e -> syncRunRecorder.chouetteCompleted(e.getIn().getHeader(HEADER_SYNC_RUN_ID, String.class), getUploadMillis(e)))
+                .process(e -> syncRunRecorder.runCompleted(e.getIn().getHeader(HEADER_SYNC_RUN_ID, String.class)))
+                // Full synchronization is recorded as a separate run
+                .removeHeader(HEADER_SYNC_RUN_ID)
                 .setHeader(HEADER_SYNC_OPERATION, constant(SYNC_OPERATION_FULL))
+                // Stop places just deleted may be unchanged in Tiamat, so all stop places must be uploaded
+                .setHeader(HEADER_SYNC_FORCE_FULL, constant(true))
                 .log(LoggingLevel.INFO, "Deleting unused stop places in Chouette completed.")
                 .to("activemq:queue:ChouetteStopPlaceSyncQueue")
                 .doCatch(HttpOperationFailedException.class).onWhen(exchange -> {
             HttpOperationFailedException ex = exchange.getException(HttpOperationFailedException.class);
             return (ex.getStatusCode() == 423);
         })
-                .log(LoggingLevel.INFO, "Unable to delete unused stop places because Chouette is busy, retry in " + retryDelay + " ms")
-                .setHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, constant(retryDelay))
+                .process(e -> syncRunRecorder.chouetteBusy(e.getIn().getHeader(HEADER_SYNC_RUN_ID, String.class), getUploadMillis(e)))
+                .process(e -> setRetryDelay(e))
+                .log(LoggingLevel.INFO, "Unable to delete unused stop places because Chouette is busy, retry in ${header." + ScheduledMessage.AMQ_SCHEDULED_DELAY + "} ms")
                 .setBody(constant(null))
                 .to("activemq:queue:ChouetteStopPlaceSyncQueue")
                 .stop()
@@ -157,24 +419,384 @@ public class ChouetteStopPlaceUpdateRouteBuilder extends BaseRouteBuilder {
 
 
         from("direct:synchronizeStopPlaceBatch")
-                .convertBodyTo(String.class)
+                .streamCaching()
+                .process(e -> recordFetchedBatch(e))
+                .choice()
+                .when(e -> isIncrementalFullSync(e))
+                .process(e -> removeUnchangedStopPlaces(e))
+                .when(e -> isDeltaSkippingDelivered(e))
+                .process(e -> removeDeliveredStopPlaces(e))
+                .end()
+                .choice()
+                .when(exchangeProperty(PROPERTY_BATCH_UNCHANGED).isEqualTo(true))
+                .log(LoggingLevel.INFO, "No stop places in batch changed since last synchronization, skipping upload")
+                .otherwise()
+                .to("direct:uploadStopPlaceBatch")
+                // Only reached if upload succeeded
+                .process(e -> stopPlaceHashStore.update(e.getProperty(PROPERTY_CHANGED_STOP_PLACE_HASHES, Map.class)))
+                .process(e -> stopPlaceVersionIndex.update(e.getProperty(PROPERTY_UNDELIVERED_STOP_PLACE_VERSIONS, Map.class)))
+                .process(e -> warmStandbyCaches.delivered(e.getProperty(PROPERTY_UNDELIVERED_STOP_PLACE_VERSIONS, Map.class),
+                        e.getProperty(PROPERTY_CHANGED_STOP_PLACE_HASHES, Map.class)))
+                .end()
+                .routeId("chouette-synchronize-stop-place-batch-filter-unchanged");
+
+        from("direct:synchronizeTargetedStopPlaces")
+                .log(LoggingLevel.INFO, "Synchronizing stop places changed during full synchronization: ${body}")
+                .to("direct:fetchStopPlacesAsNetex")
+                .removeHeaders("CamelHttp*")
+                .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.POST))
+                .doTry()
+                .toD(toHttp4Url(chouetteUrl) + "/chouette_iev/stop_place")
+                .doCatch(HttpOperationFailedException.class).onWhen(exchange -> {
+            HttpOperationFailedException ex = exchange.getException(HttpOperationFailedException.class);
+            return (ex.getStatusCode() == 423);
+        })
+                .setProperty(PROPERTY_BATCH_REJECTED, constant(true))
+                .end()
+                .routeId("chouette-synchronize-targeted-stop-places");
+
+        // Stop places with ids in body (comma separated), requested explicitly
+        singletonFrom("activemq:queue:ChouetteStopPlaceIdsSyncQueue?transacted=true")
+                .transacted()
+                .choice()
+                .when(e -> chouetteBusyBackoff.isStillBusy())
+                .process(e -> e.getIn().setHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, chouetteBusyBackoff.busy()))
+                .log(LoggingLevel.DEBUG, "Chouette is still busy, postponing synchronization of stop places by id ${header." + ScheduledMessage.AMQ_SCHEDULED_DELAY + "} ms")
+                .to("activemq:queue:ChouetteStopPlaceIdsSyncQueue")
+                .otherwise()
+                .process(e -> synchronizeStopPlacesById(e))
+                .filter(exchangeProperty(PROPERTY_BATCH_REJECTED).isEqualTo(true))
+                .process(e -> e.getIn().setHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, chouetteBusyBackoff.busy()))
+                .log(LoggingLevel.INFO, "Unable to sync stop places by id because Chouette is busy, retry in ${header." + ScheduledMessage.AMQ_SCHEDULED_DELAY + "} ms")
+                .to("activemq:queue:ChouetteStopPlaceIdsSyncQueue")
+                .end()
+                .end()
+                .routeId("chouette-synchronize-stop-places-by-id");
+
+        from("direct:uploadStopPlacesById")
+                .to("direct:fetchStopPlacesAsNetex")
+                .removeHeaders("CamelHttp*")
+                .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.POST))
+                .doTry()
+                .toD(toHttp4Url(chouetteUrl) + "/chouette_iev/stop_place")
+                .process(e -> chouetteBusyBackoff.available())
+                .doCatch(HttpOperationFailedException.class).onWhen(exchange -> {
+            HttpOperationFailedException ex = exchange.getException(HttpOperationFailedException.class);
+            return (ex.getStatusCode() == 423);
+        })
+                .setProperty(PROPERTY_BATCH_REJECTED, constant(true))
+                .end()
+                .routeId("chouette-upload-stop-places-by-id");
+
+        // Body is posted as is (stream cache spooled to disk for large batches, see StreamCachingConfig), not converted to String to limit heap usage
+        from("direct:uploadStopPlaceBatch")
+                .streamCaching()
                 .removeHeaders("CamelHttp*")
                 .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.POST))
+                .process(e -> startUpload(e))
                 .doTry()
                 .toD(toHttp4Url(chouetteUrl) + "/chouette_iev/stop_place")
+                .process(e -> chouetteBusyBackoff.available())
+                .process(e -> pageSizeController.uploadCompleted(e.getIn().getHeader(HEADER_CURRENT_BATCH_URL, String.class), getUploadMillis(e), e.getProperty(PROPERTY_PAGE_BYTES, -1L, Long.class)))
+                .process(e -> syncRunRecorder.chouetteCompleted(e.getIn().getHeader(HEADER_SYNC_RUN_ID, String.class), getUploadMillis(e)))
                 .doCatch(HttpOperationFailedException.class).onWhen(exchange -> {
             HttpOperationFailedException ex = exchange.getException(HttpOperationFailedException.class);
             return (ex.getStatusCode() == 423);
         })
-                .log(LoggingLevel.INFO, "Unable to sync stop places because Chouette is busy, retry in " + retryDelay + " ms")
-                .setHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, constant(retryDelay))
+                .process(e -> pageSizeController.uploadRejected(e.getIn().getHeader(HEADER_CURRENT_BATCH_URL, String.class), getUploadMillis(e), e.getProperty(PROPERTY_PAGE_BYTES, -1L, Long.class)))
+                .process(e -> syncRunRecorder.chouetteBusy(e.getIn().getHeader(HEADER_SYNC_RUN_ID, String.class), getUploadMillis(e)))
+                .process(e -> spoolRejectedBatch(e))
+                // Retry for uploads in window is handled when whole window is completed
+                .filter(exchangeProperty(PROPERTY_UPLOAD_IN_WINDOW).isEqualTo(true))
+                .setProperty(PROPERTY_BATCH_REJECTED, constant(true))
+                .stop()
+                .end()
+                .process(e -> setRetryDelay(e))
+                .log(LoggingLevel.INFO, "Unable to sync stop places because Chouette is busy, retry in ${header." + ScheduledMessage.AMQ_SCHEDULED_DELAY + "} ms")
                 .setBody(constant(null))
+                // Resume from current batch
+                .setHeader(HEADER_NEXT_BATCH_URL, header(HEADER_CURRENT_BATCH_URL))
+                .choice()
+                .when(header(HEADER_SYNC_SLICE).isNotNull())
+                .to("activemq:queue:ChouetteStopPlaceSliceSyncQueue")
+                .otherwise()
                 .to("activemq:queue:ChouetteStopPlaceSyncQueue")
+                .end()
                 .stop()
                 .routeId("chouette-synchronize-stop-place-batch");
 
     }
 
+    private void setRetryDelay(Exchange e) {
+        e.getIn().setHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, chouetteBusyBackoff.busy());
+        syncRunRecorder.retryScheduled(e.getIn().getHeader(HEADER_SYNC_RUN_ID, String.class));
+    }
+
+    private boolean isIncrementalFullSync(Exchange e) {
+        return stopPlaceHashStore.isEnabled() && SYNC_OPERATION_FULL.equals(e.getIn().getHeader(HEADER_SYNC_OPERATION));
+    }
+
+    private void removeUnchangedStopPlaces(Exchange e) throws IOException {
+        // Filtered page is spooled to disk if large, and deleted when exchange is done
+        CachedOutputStream out = new CachedOutputStream(e);
+        UnchangedStopPlaceFilter.FilteredPage page = unchangedStopPlaceFilter.filter(e.getIn().getBody(InputStream.class), out,
+                e.getIn().getHeader(HEADER_SYNC_COMPLETE_UPLOAD, false, Boolean.class));
+        e.setProperty(PROPERTY_CHANGED_STOP_PLACE_HASHES, page.changedHashes);
+        if (page.kept == 0) {
+            e.setProperty(PROPERTY_BATCH_UNCHANGED, true);
+        } else {
+            e.getIn().setBody(out.newStreamCache());
+        }
+    }
+
+    private boolean isDeltaSkippingDelivered(Exchange e) {
+        return stopPlaceVersionIndex.isEnabled() && SYNC_OPERATION_DELTA.equals(e.getIn().getHeader(HEADER_SYNC_OPERATION));
+    }
+
+    /**
+     * Remove stop places already delivered by previous delta synchronization, ie changes within the grace period fetched again.
+     */
+    private void removeDeliveredStopPlaces(Exchange e) throws IOException {
+        CachedOutputStream out = new CachedOutputStream(e);
+        DeliveredStopPlaceFilter.FilteredPage page = deliveredStopPlaceFilter.filter(e.getIn().getBody(InputStream.class), out);
+        e.setProperty(PROPERTY_UNDELIVERED_STOP_PLACE_VERSIONS, page.undeliveredVersions);
+        if (page.kept == 0) {
+            e.setProperty(PROPERTY_BATCH_UNCHANGED, true);
+        } else {
+            e.getIn().setBody(out.newStreamCache());
+        }
+    }
+
+    /**
+     * Register start of upload.
+     */
+    private void startUpload(Exchange e) {
+        cacheBody(e);
+        e.setProperty(PROPERTY_UPLOAD_START, System.currentTimeMillis());
+    }
+
+    /**
+     * Record batch fetched from Tiamat for current run. Stop places are counted by scanning the cached body. Size of page is kept
+     * for adjusting page size after upload, as the uploaded batch may be smaller.
+     */
+    private void recordFetchedBatch(Exchange e) throws IOException {
+        long bytes = cacheBody(e);
+        e.setProperty(PROPERTY_PAGE_BYTES, bytes);
+        long stopPlaces = -1;
+        Object body = e.getIn().getBody();
+        if (body instanceof StreamCache) {
+            StreamCache streamCache = (StreamCache) body;
+            streamCache.reset();
+            stopPlaces = NetexStopPlaceSplitter.countStopPlaces(e.getIn().getBody(InputStream.class));
+            streamCache.reset();
+        } else if (body instanceof byte[]) {
+            stopPlaces = NetexStopPlaceSplitter.countStopPlaces(new ByteArrayInputStream((byte[]) body));
+        }
+        syncRunRecorder.pageFetched(e.getIn().getHeader(HEADER_SYNC_RUN_ID, String.class), bytes, stopPlaces, e.getProperty(PROPERTY_BATCH_FETCH_MILLIS, Long.class));
+    }
+
+    /**
+     * Cache streamed body (spooled to disk if large) to make size known and allow it to be read more than once.
+     *
+     * @return size of body in bytes, or -1 if unknown
+     */
+    private long cacheBody(Exchange e) {
+        Object body = e.getIn().getBody();
+        if (body instanceof InputStream && !(body instanceof StreamCache)) {
+            StreamCache streamCache = e.getContext().getTypeConverter().convertTo(StreamCache.class, e, body);
+            if (streamCache != null) {
+                e.getIn().setBody(streamCache);
+                body = streamCache;
+            }
+        }
+
+        if (body instanceof StreamCache) {
+            return ((StreamCache) body).length();
+        } else if (body instanceof byte[]) {
+            return ((byte[]) body).length;
+        } else if (body instanceof String) {
+            return ((String) body).length();
+        }
+        return -1;
+    }
+
+    /**
+     * Keep rejected batch on disk, so that it does not have to be fetched from Tiamat again when retrying.
+     */
+    private void spoolRejectedBatch(Exchange e) {
+        if (!netexPageSpool.isEnabled()) {
+            return;
+        }
+        Object body = e.getIn().getBody();
+        if (body instanceof StreamCache) {
+            ((StreamCache) body).reset();
+        }
+        netexPageSpool.store(e.getIn().getHeader(HEADER_SYNC_RUN_ID, String.class), e.getIn().getHeader(HEADER_CURRENT_BATCH_URL, String.class), e.getIn().getHeader("Link", String.class),
+                e.getIn().getBody(InputStream.class));
+    }
+
+    private long getUploadMillis(Exchange e) {
+        return System.currentTimeMillis() - e.getProperty(PROPERTY_UPLOAD_START, Long.class);
+    }
+
+    private boolean isStartOfTimeSlicedFullSync(Exchange e) {
+        return syncSharding.getTimeSliceCount(timeSliceCount, timeSliceConcurrency) > 1
+                       && e.getIn().getHeader(HEADER_NEXT_BATCH_URL) == null
+                       && SYNC_OPERATION_FULL.equals(e.getIn().getHeader(HEADER_SYNC_OPERATION));
+    }
+
+    private List<TimeSlice> createTimeSlices(Exchange e) {
+        Long from = e.getIn().getHeader(HEADER_SYNC_STATUS_FROM, Long.class);
+        long to = e.getIn().getHeader(HEADER_SYNC_STATUS_TO, Long.class);
+        int sliceCount = syncSharding.getTimeSliceCount(timeSliceCount, timeSliceConcurrency);
+        List<TimeSlice> timeSlices = TimeSlice.split(from, Instant.parse(timeSliceStart).toEpochMilli(), to, sliceCount);
+        timeSlicedSyncTracker.startRun(e.getIn().getHeader(HEADER_SYNC_RUN_ID, String.class), timeSlices.size(), to);
+        return timeSlices;
+    }
+
+    /**
+     * Fetch and upload batches until window of concurrent uploads is full or there are no more batches, then wait for all uploads to complete.
+     */
+    private void synchronizeWindowOfBatches(Exchange e) {
+        ChouetteUploadPipeline.Window window = chouetteUploadPipeline.openWindow();
+        e.setProperty(PROPERTY_UPLOAD_WINDOW, window);
+        e.getIn().setHeader(HEADER_PROCESS_TARGET, "direct:submitStopPlaceBatchUpload");
+        do {
+            producerTemplate.send("direct:processChangedStopPlacesAsNetex", e);
+        } while (e.getException() == null && !window.isFull() && e.getIn().getHeader(HEADER_NEXT_BATCH_URL) != null);
+
+        ChouetteUploadPipeline.Result result = window.await(PROPERTY_BATCH_REJECTED);
+        e.removeProperty(PROPERTY_UPLOAD_WINDOW);
+        e.getIn().setHeader(HEADER_PROCESS_TARGET, "direct:synchronizeStopPlaceBatch");
+        // Uploads run on copies of the exchange, fail this exchange to roll back the transaction and resume from before the window
+        if (result.failure != null && e.getException() == null) {
+            e.setException(result.failure);
+        } else if (result.rejectedUrl != null) {
+            e.setProperty(PROPERTY_REJECTED_BATCH_URL, result.rejectedUrl);
+        }
+    }
+
+    /**
+     * Push stop places changed during full synchronization to Chouette in the gap between two pages, as long as the targeted lane has
+     * capacity left. Changes not pushed are included by the next delta synchronization.
+     * <p>
+     * Only called by the control route, so targeted uploads never overlap with uploads of pages. Ids are consumed within the transaction
+     * of the control route, and put back in the queue if they could not be uploaded.
+     */
+    private void synchronizeTargetedStopPlaces() {
+        targetedSyncLane.gapStarted();
+        try {
+            while (targetedSyncLane.hasCapacity()) {
+                Set<String> ids = receiveTargetedStopPlaceIds();
+                if (ids.isEmpty()) {
+                    return;
+                }
+                long start = System.currentTimeMillis();
+                Exchange targeted = producerTemplate.send("direct:synchronizeTargetedStopPlaces", ex -> ex.getIn().setBody(new ArrayList<>(ids)));
+                targetedSyncLane.targetedUploadCompleted(System.currentTimeMillis() - start, ids.size());
+
+                if (targeted.getException() != null) {
+                    logger.warn("Targeted synchronization of stop places failed, postponing them to next gap between pages: " + ids + ": " + targeted.getException().getMessage());
+                    requeueTargetedStopPlaceIds(ids);
+                    return;
+                }
+                if (Boolean.TRUE.equals(targeted.getProperty(PROPERTY_BATCH_REJECTED))) {
+                    logger.info("Chouette busy, postponing targeted synchronization of stop places to next gap between pages: " + ids);
+                    requeueTargetedStopPlaceIds(ids);
+                    return;
+                }
+            }
+        } finally {
+            targetedSyncLane.gapEnded();
+        }
+    }
+
+    private Set<String> receiveTargetedStopPlaceIds() {
+        Set<String> ids = new LinkedHashSet<>();
+        while (ids.size() < targetedSyncLane.getBatchSize()) {
+            Exchange msg = consumerTemplate.receiveNoWait("activemq:queue:ChouetteStopPlaceTargetedSyncQueue?transacted=true");
+            if (msg == null) {
+                break;
+            }
+            String id = msg.getIn().getHeader(HEADER_ENTITY_ID, String.class);
+            consumerTemplate.doneUoW(msg);
+            if (id != null) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    private void requeueTargetedStopPlaceIds(Set<String> ids) {
+        ids.forEach(id -> producerTemplate.sendBodyAndHeader(targetedSyncQueue(), null, HEADER_ENTITY_ID, id));
+    }
+
+    private String targetedSyncQueue() {
+        return "activemq:queue:ChouetteStopPlaceTargetedSyncQueue?deliveryPersistent=false&timeToLive=" + targetedSyncTimeToLive;
+    }
+
+    /**
+     * Changes not yet in effect are left to delta synchronization, scheduled for when the change takes effect.
+     */
+    private boolean isChangeEffective(Exchange e) {
+        Long changeTime = e.getIn().getHeader(HEADER_CHANGE_TIME, Long.class);
+        return changeTime != null && changeTime <= System.currentTimeMillis();
+    }
+
+    private void submitStopPlaceBatchUpload(Exchange e) {
+        ChouetteUploadPipeline.Window window = e.getProperty(PROPERTY_UPLOAD_WINDOW, ChouetteUploadPipeline.Window.class);
+
+        // Cache body (spooled to disk if large), as stream from Tiamat is not kept open while next batch is fetched
+        Object body = e.getIn().getBody();
+        if (body instanceof InputStream && !(body instanceof StreamCache)) {
+            body = e.getContext().getTypeConverter().convertTo(StreamCache.class, e, body);
+        }
+        Exchange upload = e.copy();
+        upload.getIn().setBody(body);
+        upload.setProperty(PROPERTY_UPLOAD_IN_WINDOW, true);
+        upload.removeProperty(PROPERTY_UPLOAD_WINDOW);
+
+        window.submit(e.getIn().getHeader(HEADER_CURRENT_BATCH_URL, String.class), () -> producerTemplate.send("direct:synchronizeStopPlaceBatch", upload));
+    }
+
+    /**
+     * Fetch and upload stop places with ids in body in batches. If Chouette is busy, body is set to the ids not yet uploaded.
+     */
+    private void synchronizeStopPlacesById(Exchange e) throws Exception {
+        List<String> ids = Arrays.asList(e.getIn().getBody(String.class).split(","));
+        int batchSize = Math.max(1, idsBatchSize);
+        for (int i = 0; i < ids.size(); i += batchSize) {
+            List<String> batch = new ArrayList<>(ids.subList(i, Math.min(ids.size(), i + batchSize)));
+            Exchange upload;
+            chouetteUploadLimiter.acquire();
+            try {
+                upload = producerTemplate.send("direct:uploadStopPlacesById", ex -> ex.getIn().setBody(batch));
+            } finally {
+                chouetteUploadLimiter.release();
+            }
+
+            if (upload.getException() != null) {
+                throw upload.getException();
+            }
+            if (Boolean.TRUE.equals(upload.getProperty(PROPERTY_BATCH_REJECTED))) {
+                e.setProperty(PROPERTY_BATCH_REJECTED, true);
+                e.getIn().setBody(String.join(",", ids.subList(i, ids.size())));
+                return;
+            }
+            logger.info("Synchronized stop places by id: " + batch);
+        }
+        e.getIn().setBody(null);
+    }
+
+    private void synchronizeStopPlaceBatchWithinUploadLimit(Exchange e) throws InterruptedException {
+        chouetteUploadLimiter.acquire();
+        try {
+            producerTemplate.send("direct:synchronizeStopPlaceBatch", e);
+        } finally {
+            chouetteUploadLimiter.release();
+        }
+    }
+
     /**
      * Merge status from all msg read in batch into current exchange.
      * <p>
@@ -182,24 +804,19 @@ public class ChouetteStopPlaceUpdateRouteBuilder extends BaseRouteBuilder {
      * - Delete and start new, full sync if at least one message signals that
      * - Full sync, if no delete and at least one message signals that, using first msg with url set (indicating ongoing job) if any
      * - Delta sync in other cases, using first msg with url set (indicating ongoing job) if any
+     * <p>
+     * Messages are merged in a single pass, see {@link SyncMsgMerger}.
      */
     private void mergeActiveMQMessages(Exchange e) {
-        List<ActiveMQMessage> msgList = e.getIn().getBody(List.class);
-        Collections.sort(msgList, new SyncMsgComparator());
-
-        ActiveMQMessage topPriMsg = msgList.get(0);
-        try {
-            Object syncOperation = topPriMsg.getProperty(HEADER_SYNC_OPERATION);
-            if (syncOperation == null) {
-                e.getIn().setHeader(HEADER_SYNC_OPERATION, SYNC_OPERATION_DELTA);
-            } else {
-                e.getIn().setHeader(HEADER_SYNC_OPERATION, syncOperation);
-                e.getIn().setHeader(HEADER_SYNC_STATUS_TO, topPriMsg.getProperty(HEADER_SYNC_STATUS_TO));
-                e.getIn().setHeader(HEADER_NEXT_BATCH_URL, topPriMsg.getProperty(HEADER_NEXT_BATCH_URL));
-            }
-        } catch (IOException ioE) {
-            throw new IrkallaException("Unable to get sync operation header as property from ActiveMQMessage: " + ioE.getMessage(), ioE);
-        }
+        SyncMsgMerger.MergedSyncMsg merged = SyncMsgMerger.merge(e.getIn().getBody(List.class));
+
+        e.getIn().setHeader(HEADER_SYNC_OPERATION, merged.syncOperation);
+        e.getIn().setHeader(HEADER_SYNC_STATUS_TO, merged.syncStatusTo);
+        e.getIn().setHeader(HEADER_NEXT_BATCH_URL, merged.nextBatchUrl);
+        e.getIn().setHeader(HEADER_SYNC_FORCE_FULL, merged.forceFull);
+        e.getIn().setHeader(HEADER_SYNC_COMPLETE_UPLOAD, merged.completeUpload);
+        e.getIn().setHeader(HEADER_SYNC_RUN_ID, merged.runId);
+        e.getIn().setHeader(HEADER_SYNC_DELTA_PENDING, merged.deltaPending);
     }
 
 }
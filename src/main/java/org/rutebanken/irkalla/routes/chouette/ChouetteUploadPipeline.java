@@ -0,0 +1,179 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.apache.camel.Exchange;
+import org.rutebanken.irkalla.IrkallaException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Upload a window of pages of stop places to Chouette concurrently.
+ * <p>
+ * Pages in a window are uploaded in parallel, and the window is completed when all uploads have finished. Completion is tracked in
+ * page order, so that synchronization is only resumed after pages that were all acknowledged by Chouette. Window size is increased by one
+ * after a window without rejections and halved when Chouette is busy (423), within the configured max size.
+ * <p>
+ * Disabled by default (max window size 1). Concurrent imports are safe because pages of a synchronization hold disjoint sets of stop
+ * places, and Chouette rejects an import it cannot run alongside others with 423, which is handled as a rejection of that page only.
+ * Uploads run outside the transaction of the control route. They do not send any messages and only record hashes and versions of
+ * stop places after Chouette has acknowledged the page. The control route fails, and its transaction is rolled back, if any upload
+ * in the window failed.
+ */
+@Component
+public class ChouetteUploadPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChouetteUploadPipeline.class);
+
+    private final int maxWindowSize;
+
+    private int windowSize;
+
+    private ExecutorService executorService;
+
+    public ChouetteUploadPipeline(@Value("${chouette.sync.stop.place.upload.window:1}") int maxWindowSize) {
+        this.maxWindowSize = maxWindowSize;
+    }
+
+    @PostConstruct
+    public void init() {
+        windowSize = Math.max(1, maxWindowSize);
+        if (isEnabled()) {
+            executorService = Executors.newFixedThreadPool(maxWindowSize);
+        }
+    }
+
+    public boolean isEnabled() {
+        return maxWindowSize > 1;
+    }
+
+    public synchronized int getWindowSize() {
+        return windowSize;
+    }
+
+    public Window openWindow() {
+        return new Window(getWindowSize());
+    }
+
+    private synchronized void windowCompleted(int size, boolean rejected) {
+        int previous = windowSize;
+        if (rejected) {
+            windowSize = Math.max(1, windowSize / 2);
+        } else if (size >= windowSize) {
+            windowSize = Math.min(maxWindowSize, windowSize + 1);
+        }
+        if (previous != windowSize) {
+            logger.info("Changed number of concurrent uploads of stop places to Chouette from " + previous + " to " + windowSize);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executorService != null) {
+            executorService.shutdownNow();
+        }
+    }
+
+    public class Window {
+
+        private final int size;
+
+        private final List<String> urls = new ArrayList<>();
+
+        private final List<Future<Exchange>> uploads = new ArrayList<>();
+
+        private Window(int size) {
+            this.size = size;
+        }
+
+        public boolean isFull() {
+            return uploads.size() >= size;
+        }
+
+        /**
+         * Start upload of page.
+         *
+         * @param url    url the page was fetched from, to resume from if upload is rejected
+         * @param upload upload of page, returning the completed upload exchange
+         */
+        public void submit(String url, Callable<Exchange> upload) {
+            urls.add(url);
+            uploads.add(executorService.submit(upload));
+        }
+
+        /**
+         * Wait for all uploads in window to finish.
+         */
+        public Result await(String rejectedProperty) {
+            String rejectedUrl = null;
+            Exception failure = null;
+            for (int i = 0; i < uploads.size(); i++) {
+                Exchange upload;
+                try {
+                    upload = uploads.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IrkallaException("Interrupted while waiting for upload of stop places to Chouette", e);
+                } catch (ExecutionException e) {
+                    upload = null;
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+
+                if (upload != null && upload.getException() != null && failure == null) {
+                    failure = upload.getException();
+                }
+                boolean acknowledged = upload != null && upload.getException() == null && !Boolean.TRUE.equals(upload.getProperty(rejectedProperty));
+                if (!acknowledged && rejectedUrl == null) {
+                    // Resume from first page not acknowledged
+                    rejectedUrl = urls.get(i);
+                }
+            }
+            windowCompleted(uploads.size(), rejectedUrl != null && failure == null);
+            return new Result(uploads.size(), rejectedUrl, failure);
+        }
+    }
+
+    public static class Result {
+        public final int uploadCount;
+
+        /**
+         * Url of first page in window not acknowledged by Chouette, null if all were acknowledged.
+         */
+        public final String rejectedUrl;
+
+        public final Exception failure;
+
+        public Result(int uploadCount, String rejectedUrl, Exception failure) {
+            this.uploadCount = uploadCount;
+            this.rejectedUrl = rejectedUrl;
+            this.failure = failure;
+        }
+    }
+}
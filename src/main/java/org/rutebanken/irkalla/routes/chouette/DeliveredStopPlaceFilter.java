@@ -0,0 +1,100 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.rutebanken.irkalla.routes.tiamat.NetexStopPlaceSplitter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remove stop places already delivered to Chouette in the same or a later version from a NeTEx page of stop places.
+ */
+@Service
+public class DeliveredStopPlaceFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeliveredStopPlaceFilter.class);
+
+    private final NetexStopPlaceSplitter splitter = new NetexStopPlaceSplitter();
+
+    @Autowired
+    private StopPlaceVersionIndex stopPlaceVersionIndex;
+
+    public DeliveredStopPlaceFilter() {
+    }
+
+    DeliveredStopPlaceFilter(StopPlaceVersionIndex stopPlaceVersionIndex) {
+        this.stopPlaceVersionIndex = stopPlaceVersionIndex;
+    }
+
+    /**
+     * Stream page and remove stop places already delivered. A stop place is only regarded as delivered if all its quays have been
+     * delivered in the same or a later version as well, as a quay may change without a new version of the stop place.
+     *
+     * @param out stream to write page with undelivered stop places only to
+     * @return versions for undelivered stop places and their quays to register when page is uploaded
+     */
+    public FilteredPage filter(InputStream page, OutputStream out) {
+        Map<String, String> undeliveredVersions = new HashMap<>();
+        int[] stopPlaceCount = new int[1];
+
+        int kept = splitter.filter(page, out, stopPlace -> {
+            stopPlaceCount[0]++;
+            if (isDelivered(stopPlace)) {
+                return false;
+            }
+            undeliveredVersions.put(stopPlace.id, stopPlace.version);
+            stopPlace.quays.forEach(quay -> undeliveredVersions.put(quay.id, quay.version));
+            return true;
+        });
+        logger.debug("Found " + kept + " undelivered of " + stopPlaceCount[0] + " stop places in page");
+
+        return new FilteredPage(kept, undeliveredVersions, stopPlaceCount[0]);
+    }
+
+    private boolean isDelivered(NetexStopPlaceSplitter.StopPlaceFragment stopPlace) {
+        if (!stopPlaceVersionIndex.isDelivered(stopPlace.id, stopPlace.version)) {
+            return false;
+        }
+        return stopPlace.quays.stream().allMatch(quay -> stopPlaceVersionIndex.isDelivered(quay.id, quay.version));
+    }
+
+    public static class FilteredPage {
+        /**
+         * Number of stop places kept in page, ie undelivered stop places.
+         */
+        public final int kept;
+
+        /**
+         * Versions of undelivered stop places and their quays, by id.
+         */
+        public final Map<String, String> undeliveredVersions;
+
+        public final int stopPlaceCount;
+
+        public FilteredPage(int kept, Map<String, String> undeliveredVersions, int stopPlaceCount) {
+            this.kept = kept;
+            this.undeliveredVersions = undeliveredVersions;
+            this.stopPlaceCount = stopPlaceCount;
+        }
+    }
+}
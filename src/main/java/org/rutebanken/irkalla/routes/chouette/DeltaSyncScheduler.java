@@ -0,0 +1,154 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Schedule delta synchronization of stop places when changes are seen in the changelog, instead of waiting for the next cron trigger.
+ * <p>
+ * A change is synchronized by the first delta synchronization started after the change became effective. Runs are kept at least
+ * the configured min interval apart. A change does not schedule another run only while a run covering it is known to be still held by
+ * the broker, ie. before it is due. Once due, the sync message may be merged into an ongoing synchronization or consumed by another node,
+ * so later changes schedule a new run. Lag from the time of a change in Tiamat until the synchronization covering it completed is recorded.
+ * <p>
+ * State is local to the node. Changelog events consumed on other nodes simply lead to more, merged, sync messages.
+ */
+@Component
+public class DeltaSyncScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeltaSyncScheduler.class);
+
+    private static final int MAX_PENDING_CHANGES = 10000;
+
+    private final long minIntervalMillis;
+
+    private final int lagHistorySize;
+
+    private long lastRunStart;
+
+    private long lastDueRun;
+
+    // Runs not yet due, sync message still held by the broker
+    private final NavigableSet<Long> scheduledRuns = new TreeSet<>();
+
+    // Change time in Tiamat for changes not yet synchronized, by entity id
+    private final Map<String, Long> pendingChanges = new ConcurrentHashMap<>();
+
+    private final Deque<Long> lagHistory = new ArrayDeque<>();
+
+    public DeltaSyncScheduler(@Value("${chouette.sync.stop.place.delta.min.interval.ms:10000}") long minIntervalMillis,
+                                     @Value("${chouette.sync.stop.place.lag.history.size:1000}") int lagHistorySize) {
+        this.minIntervalMillis = minIntervalMillis;
+        this.lagHistorySize = lagHistorySize;
+    }
+
+    /**
+     * Register change and decide when to trigger delta synchronization for it.
+     *
+     * @param entityId   id of changed stop place
+     * @param changeTime time change is effective from (epoch millis), or null if effective now
+     * @return delay in ms before triggering delta synchronization, or null if a run already scheduled will include the change
+     */
+    public synchronized Long scheduleDelta(String entityId, Long changeTime) {
+        long now = System.currentTimeMillis();
+        long effective = changeTime == null ? now : Math.max(changeTime, now);
+        if (entityId != null && pendingChanges.size() < MAX_PENDING_CHANGES) {
+            pendingChanges.merge(entityId, changeTime == null ? now : changeTime, Math::min);
+        }
+
+        NavigableSet<Long> dueRuns = scheduledRuns.headSet(now, true);
+        if (!dueRuns.isEmpty()) {
+            lastDueRun = Math.max(lastDueRun, dueRuns.last());
+            dueRuns.clear();
+        }
+
+        long runAt = Math.max(effective, Math.max(lastRunStart, lastDueRun) + minIntervalMillis);
+        Long covering = scheduledRuns.ceiling(effective);
+        if (covering != null && covering <= runAt) {
+            return null;
+        }
+        scheduledRuns.add(runAt);
+        return runAt - now;
+    }
+
+    /**
+     * Register start of delta synchronization.
+     */
+    public synchronized void synchronizationStarted() {
+        lastRunStart = System.currentTimeMillis();
+    }
+
+    /**
+     * Register completion of synchronization of changes up to given time, recording lag for pending changes covered.
+     */
+    public synchronized void synchronizationCompleted(long syncedUntil) {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        long maxLag = 0;
+        for (Iterator<Map.Entry<String, Long>> it = pendingChanges.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Long> change = it.next();
+            if (change.getValue() <= syncedUntil) {
+                long lag = now - change.getValue();
+                addLag(lag);
+                maxLag = Math.max(maxLag, lag);
+                count++;
+                it.remove();
+            }
+        }
+        if (count > 0) {
+            logger.info("Synchronized " + count + " changed stop places to Chouette, max lag " + maxLag + " ms, median lag for last " + lagHistory.size() + " changes: " + getLagPercentile(50) + " ms");
+        }
+    }
+
+    /**
+     * Lag in ms for given percentile of recently synchronized changes, or null if none recorded.
+     */
+    public synchronized Long getLagPercentile(double percentile) {
+        if (lagHistory.isEmpty()) {
+            return null;
+        }
+        List<Long> sorted = new ArrayList<>(lagHistory);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    public synchronized List<Long> getLagHistory() {
+        return new ArrayList<>(lagHistory);
+    }
+
+    private void addLag(long lag) {
+        lagHistory.addLast(lag);
+        if (lagHistory.size() > lagHistorySize) {
+            lagHistory.removeFirst();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.rutebanken.irkalla.IrkallaException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hash of each stop place as last uploaded to Chouette by a full synchronization, keyed by stop place id.
+ * <p>
+ * Hashes are persisted to local disk when a full synchronization completes. The hash file must be configured when the store is
+ * enabled, and should be on a volume surviving restarts of the container. A missing or unreadable file only means that
+ * all stop places are uploaded again. All hashes are discarded when a complete upload is forced or the last complete upload
+ * is older than the configured max age.
+ */
+@Service
+public class StopPlaceHashStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(StopPlaceHashStore.class);
+
+    private final boolean enabled;
+
+    private final Path hashFile;
+
+    private final Duration maxAge;
+
+    private final Map<String, Long> hashes = new ConcurrentHashMap<>();
+
+    // Last time a full synchronization uploaded all stop places
+    private Instant completeUploadTime;
+
+    private Instant pendingCompleteUploadTime;
+
+    public StopPlaceHashStore(@Value("${sync.stop.place.full.incremental:false}") boolean enabled,
+                                     @Value("${sync.stop.place.full.incremental.hash.file:}") String hashFile,
+                                     @Value("${sync.stop.place.full.incremental.max.age.days:7}") int maxAgeDays) {
+        this.enabled = enabled;
+        this.maxAge = Duration.ofDays(maxAgeDays);
+        if (enabled && (hashFile == null || hashFile.isEmpty())) {
+            throw new IrkallaException("Invalid configuration: sync.stop.place.full.incremental.hash.file must be set to a persistent path when sync.stop.place.full.incremental is enabled");
+        }
+        this.hashFile = enabled ? Paths.get(hashFile) : null;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled || !Files.exists(hashFile)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(hashFile)))) {
+            Instant savedCompleteUploadTime = Instant.ofEpochMilli(in.readLong());
+            int count = in.readInt();
+            Map<String, Long> savedHashes = new ConcurrentHashMap<>(count);
+            for (int i = 0; i < count; i++) {
+                savedHashes.put(in.readUTF(), in.readLong());
+            }
+            hashes.putAll(savedHashes);
+            completeUploadTime = savedCompleteUploadTime;
+            logger.info("Loaded hashes for " + count + " stop places from " + hashFile + ", all stop places last uploaded " + completeUploadTime);
+        } catch (IOException ioe) {
+            logger.warn("Unable to load stop place hashes from " + hashFile + ", next full synchronization will upload all stop places: " + ioe.getMessage());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Prepare for new full synchronization. Discards all hashes if all stop places are to be uploaded.
+     *
+     * @return whether all stop places are to be uploaded
+     */
+    public synchronized boolean startFullSync(boolean forceCompleteUpload) {
+        Instant now = Instant.now();
+        if (forceCompleteUpload || completeUploadTime == null || completeUploadTime.plus(maxAge).isBefore(now)) {
+            logger.info("Full synchronization will upload all stop places (forced: " + forceCompleteUpload + ", last complete upload: " + completeUploadTime + ")");
+            hashes.clear();
+            pendingCompleteUploadTime = now;
+            return true;
+        }
+        logger.info("Full synchronization will upload only stop places changed since last synchronization. Hashes known for " + hashes.size() + " stop places");
+        pendingCompleteUploadTime = null;
+        return false;
+    }
+
+    public boolean isUnchanged(String id, long hash) {
+        Long previous = hashes.get(id);
+        return previous != null && previous == hash;
+    }
+
+    /**
+     * Register hashes for stop places successfully uploaded to Chouette.
+     */
+    public void update(Map<String, Long> uploadedHashes) {
+        if (uploadedHashes != null) {
+            hashes.putAll(uploadedHashes);
+        }
+    }
+
+    public synchronized void completeFullSync() {
+        if (pendingCompleteUploadTime != null) {
+            completeUploadTime = pendingCompleteUploadTime;
+            pendingCompleteUploadTime = null;
+        }
+        save();
+    }
+
+    /**
+     * Register full synchronization uploading all stop places completed by another node, with hashes already replicated to this node.
+     */
+    public synchronized void completeUploadReplicated(Instant replicatedCompleteUploadTime) {
+        if (completeUploadTime == null || completeUploadTime.isBefore(replicatedCompleteUploadTime)) {
+            completeUploadTime = replicatedCompleteUploadTime;
+        }
+        save();
+    }
+
+    public synchronized Instant getCompleteUploadTime() {
+        return completeUploadTime;
+    }
+
+    public int size() {
+        return hashes.size();
+    }
+
+    private void save() {
+        if (!enabled || completeUploadTime == null) {
+            return;
+        }
+        try {
+            Path tmpFile = Files.createTempFile(hashFile.toAbsolutePath().getParent(), "irkalla-stop-place-hashes", ".tmp");
+            Map<String, Long> snapshot = new ConcurrentHashMap<>(hashes);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+                out.writeLong(completeUploadTime.toEpochMilli());
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Long> entry : snapshot.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+            }
+            Files.move(tmpFile, hashFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Saved hashes for " + snapshot.size() + " stop places to " + hashFile);
+        } catch (IOException ioe) {
+            logger.warn("Unable to save stop place hashes to " + hashFile + ": " + ioe.getMessage());
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import com.hazelcast.core.Cluster;
+import com.hazelcast.core.Member;
+import com.hazelcast.core.MemberAttributeEvent;
+import com.hazelcast.core.MembershipEvent;
+import com.hazelcast.core.MembershipListener;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.rutebanken.irkalla.routes.singleton.SingletonRoutePolicyFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Sharding of stop place synchronization work across all live members of the Hazelcast cluster.
+ * <p>
+ * When enabled, time slices of full synchronizations and deletes are consumed by all members instead of a single, singleton node:
+ * <ul>
+ * <li>Full synchronization is split into at least one time slice per consumer in the cluster. Each page of a slice is a separate
+ * message, so slices move between members at page granularity: joining members start consuming pages and pages in progress on a
+ * member leaving the cluster are redelivered to the others.</li>
+ * <li>Deletes are assigned to a fixed number of partitions by hash of stop place id. Each partition is an ActiveMQ message group, so
+ * all deletes for a stop place are handled by one consumer at a time. The broker reassigns groups of members leaving the cluster, and
+ * groups are closed when a member joins, so that they are spread over all members again.</li>
+ * </ul>
+ * The coordinator, ie the node running the singleton control route, still starts synchronizations and owns the sync status.
+ * It decides whether a full synchronization uploads all stop places, and the decision is passed on to all slices. Hashes of stop places
+ * uploaded by any member are replicated to all members (see {@link WarmStandbyCaches}) and saved when the synchronization completes.
+ */
+@Service
+public class StopPlaceSyncSharding {
+
+    private static final Logger logger = LoggerFactory.getLogger(StopPlaceSyncSharding.class);
+
+    public static final String HEADER_JMS_GROUP_ID = "JMSXGroupID";
+
+    public static final String HEADER_JMS_GROUP_SEQ = "JMSXGroupSeq";
+
+    private static final String DELETE_PARTITION_GROUP_PREFIX = "IrkallaStopPlaceDeletePartition-";
+
+    private final boolean enabled;
+
+    private final int deletePartitions;
+
+    @Autowired
+    private SingletonRoutePolicyFactory hazelcastService;
+
+    @Autowired
+    private ProducerTemplate producerTemplate;
+
+    public StopPlaceSyncSharding(@Value("${sync.stop.place.sharded:false}") boolean enabled,
+                                        @Value("${sync.stop.place.sharded.delete.partitions:16}") int deletePartitions) {
+        this.enabled = enabled;
+        this.deletePartitions = Math.max(1, deletePartitions);
+    }
+
+    @PostConstruct
+    public void init() {
+        if (enabled) {
+            cluster().addMembershipListener(new RebalancingMembershipListener());
+            logger.info("Stop place synchronization sharded across " + getMemberCount() + " members");
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getMemberCount() {
+        return enabled ? cluster().getMembers().size() : 1;
+    }
+
+    /**
+     * Number of time slices to split full synchronization into. When sharded, there is at least one slice per consumer in the cluster.
+     */
+    public int getTimeSliceCount(int configuredSliceCount, int consumersPerMember) {
+        if (!enabled) {
+            return configuredSliceCount;
+        }
+        return Math.max(configuredSliceCount, getMemberCount() * consumersPerMember);
+    }
+
+    /**
+     * Assign message for deleting stop place to its partition.
+     */
+    public void assignDeletePartition(Exchange e, String stopPlaceId) {
+        if (enabled && stopPlaceId != null) {
+            e.getIn().setHeader(HEADER_JMS_GROUP_ID, deletePartitionGroup(stopPlaceId));
+        }
+    }
+
+    String deletePartitionGroup(String stopPlaceId) {
+        return DELETE_PARTITION_GROUP_PREFIX + Math.floorMod(stopPlaceId.hashCode(), deletePartitions);
+    }
+
+    /**
+     * Close all delete partition groups, letting the broker assign them to consumers again. Sent by the oldest member only.
+     */
+    void rebalanceDeletePartitions() {
+        if (!isOldestMember()) {
+            return;
+        }
+        logger.info("Rebalancing " + deletePartitions + " stop place delete partitions across " + getMemberCount() + " members");
+        for (int partition = 0; partition < deletePartitions; partition++) {
+            Map<String, Object> headers = new HashMap<>();
+            headers.put(HEADER_JMS_GROUP_ID, DELETE_PARTITION_GROUP_PREFIX + partition);
+            headers.put(HEADER_JMS_GROUP_SEQ, -1);
+            try {
+                producerTemplate.sendBodyAndHeaders("activemq:queue:ChouetteStopPlaceDeleteQueue", null, headers);
+            } catch (RuntimeException e) {
+                logger.warn("Failed to close stop place delete partition " + partition + ", it stays with its current consumer: " + e.getMessage());
+            }
+        }
+    }
+
+    private boolean isOldestMember() {
+        Iterator<Member> members = cluster().getMembers().iterator();
+        return members.hasNext() && members.next().localMember();
+    }
+
+    private Cluster cluster() {
+        return hazelcastService.getHazelcastInstance().getCluster();
+    }
+
+    private class RebalancingMembershipListener implements MembershipListener {
+
+        @Override
+        public void memberAdded(MembershipEvent membershipEvent) {
+            logger.info("Member joined, sharding stop place synchronization across " + membershipEvent.getMembers().size() + " members: " + membershipEvent.getMember());
+            rebalanceDeletePartitions();
+        }
+
+        @Override
+        public void memberRemoved(MembershipEvent membershipEvent) {
+            // Broker reassigns message groups of consumers closed when member left
+            logger.info("Member left, sharding stop place synchronization across " + membershipEvent.getMembers().size() + " members: " + membershipEvent.getMember());
+        }
+
+        @Override
+        public void memberAttributeChanged(MemberAttributeEvent memberAttributeEvent) {
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.rutebanken.irkalla.IrkallaException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Last version of each stop place, and each of its quays, delivered to Chouette by a delta synchronization, keyed by id.
+ * <p>
+ * Delta synchronizations overlap by the grace period, so stop places changed at the end of one window are fetched again by the next.
+ * The index makes it possible to skip those that have already been delivered. Only ids with the configured stop place or quay prefix
+ * followed by a number (ie NSR:StopPlace:123 or NSR:Quay:456) are indexed, keyed by the number in a primitive open addressing table
+ * to keep the footprint small. Other ids are never regarded as delivered.
+ * <p>
+ * The index is saved to local disk when a synchronization completes. The index file must be configured when the index is enabled, and
+ * should be on a volume surviving restarts of the container. A missing or unreadable file only means that the overlap is uploaded again.
+ */
+@Service
+public class StopPlaceVersionIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(StopPlaceVersionIndex.class);
+
+    private static final int FILE_FORMAT_VERSION = 1;
+
+    // Ids are at most 18 digits, so quay keys are kept apart from stop place keys by setting a bit above those
+    private static final long QUAY_KEY_BIT = 1L << 62;
+
+    private final boolean enabled;
+
+    private final Path indexFile;
+
+    private final String idPrefix;
+
+    private final String quayIdPrefix;
+
+    private final VersionTable versions = new VersionTable(1024);
+
+    private boolean dirty;
+
+    public StopPlaceVersionIndex(@Value("${sync.stop.place.version.index:false}") boolean enabled,
+                                        @Value("${sync.stop.place.version.index.file:}") String indexFile,
+                                        @Value("${sync.stop.place.version.index.id.prefix:NSR:StopPlace:}") String idPrefix,
+                                        @Value("${sync.stop.place.version.index.quay.id.prefix:NSR:Quay:}") String quayIdPrefix) {
+        this.enabled = enabled;
+        this.idPrefix = idPrefix;
+        this.quayIdPrefix = quayIdPrefix;
+        if (enabled && (indexFile == null || indexFile.isEmpty())) {
+            throw new IrkallaException("Invalid configuration: sync.stop.place.version.index.file must be set to a persistent path when sync.stop.place.version.index is enabled");
+        }
+        this.indexFile = enabled ? Paths.get(indexFile) : null;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled || !Files.exists(indexFile)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != FILE_FORMAT_VERSION) {
+                logger.warn("Ignoring stop place version index in unknown format: " + indexFile);
+                return;
+            }
+            int count = in.readInt();
+            VersionTable saved = new VersionTable(count);
+            for (int i = 0; i < count; i++) {
+                saved.put(in.readLong(), in.readLong());
+            }
+            synchronized (this) {
+                versions.putAll(saved);
+            }
+            logger.info("Loaded delivered versions for " + count + " stop places and quays from " + indexFile);
+        } catch (IOException ioe) {
+            logger.warn("Unable to load stop place version index from " + indexFile + ", overlapping changes will be uploaded again: " + ioe.getMessage());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Whether this or a later version of the stop place or quay has already been delivered to Chouette.
+     */
+    public boolean isDelivered(String id, String version) {
+        long key = key(id);
+        long versionNumber = versionNumber(version);
+        if (key < 0 || versionNumber < 0) {
+            return false;
+        }
+        synchronized (this) {
+            return versions.get(key) >= versionNumber;
+        }
+    }
+
+    /**
+     * Register versions of stop places and quays successfully uploaded to Chouette.
+     */
+    public synchronized void update(Map<String, String> deliveredVersions) {
+        if (deliveredVersions == null) {
+            return;
+        }
+        for (Map.Entry<String, String> delivered : deliveredVersions.entrySet()) {
+            long key = key(delivered.getKey());
+            long versionNumber = versionNumber(delivered.getValue());
+            if (key >= 0 && versionNumber >= 0 && versions.get(key) < versionNumber) {
+                versions.put(key, versionNumber);
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Forget all delivered versions, ie when stop places in Chouette are to be completely replaced.
+     */
+    public synchronized void clear() {
+        versions.clear();
+        dirty = true;
+    }
+
+    public synchronized int size() {
+        return versions.size();
+    }
+
+    /**
+     * Save snapshot of index to disk, if changed since last save.
+     */
+    public void save() {
+        long[] snapshot;
+        synchronized (this) {
+            if (!enabled || !dirty) {
+                return;
+            }
+            snapshot = versions.entries();
+            dirty = false;
+        }
+        try {
+            Path tmpFile = Files.createTempFile(indexFile.toAbsolutePath().getParent(), "irkalla-stop-place-versions", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+                out.writeInt(FILE_FORMAT_VERSION);
+                out.writeInt(snapshot.length / 2);
+                for (long value : snapshot) {
+                    out.writeLong(value);
+                }
+            }
+            Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Saved delivered versions for " + snapshot.length / 2 + " stop places and quays to " + indexFile);
+        } catch (IOException ioe) {
+            synchronized (this) {
+                dirty = true;
+            }
+            logger.warn("Unable to save stop place version index to " + indexFile + ": " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Number in stop place id, or number in quay id tagged as quay, or -1 if id is not on the expected form.
+     */
+    long key(String id) {
+        if (id == null) {
+            return -1;
+        }
+        if (id.startsWith(idPrefix)) {
+            return parseNumber(id, idPrefix.length());
+        }
+        if (id.startsWith(quayIdPrefix)) {
+            long number = parseNumber(id, quayIdPrefix.length());
+            return number < 0 ? -1 : number | QUAY_KEY_BIT;
+        }
+        return -1;
+    }
+
+    private static long versionNumber(String version) {
+        return version == null ? -1 : parseNumber(version, 0);
+    }
+
+    private static long parseNumber(String value, int start) {
+        int length = value.length() - start;
+        if (length < 1 || length > 18) {
+            return -1;
+        }
+        long number = 0;
+        for (int i = start; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+
+    /**
+     * Open addressing (linear probing) table of non-negative long keys to non-negative long values, stored in a single array
+     * of key/ value pairs. Missing keys have value -1.
+     */
+    static class VersionTable {
+
+        private static final long EMPTY = -1;
+
+        private static final float MAX_LOAD = 0.6f;
+
+        private long[] table;
+
+        private int size;
+
+        VersionTable(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+            table = new long[capacity * 2];
+            Arrays.fill(table, EMPTY);
+        }
+
+        long get(long key) {
+            int mask = table.length / 2 - 1;
+            for (int slot = slot(key, mask); ; slot = (slot + 1) & mask) {
+                long current = table[slot * 2];
+                if (current == key) {
+                    return table[slot * 2 + 1];
+                } else if (current == EMPTY) {
+                    return EMPTY;
+                }
+            }
+        }
+
+        void put(long key, long value) {
+            if (size + 1 > table.length / 2 * MAX_LOAD) {
+                resize(table.length);
+            }
+            int mask = table.length / 2 - 1;
+            for (int slot = slot(key, mask); ; slot = (slot + 1) & mask) {
+                long current = table[slot * 2];
+                if (current == EMPTY) {
+                    table[slot * 2] = key;
+                    size++;
+                }
+                if (current == EMPTY || current == key) {
+                    table[slot * 2 + 1] = value;
+                    return;
+                }
+            }
+        }
+
+        void putAll(VersionTable other) {
+            for (int i = 0; i < other.table.length; i += 2) {
+                if (other.table[i] != EMPTY) {
+                    put(other.table[i], other.table[i + 1]);
+                }
+            }
+        }
+
+        void clear() {
+            Arrays.fill(table, EMPTY);
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Copy of all entries as consecutive key/ value pairs.
+         */
+        long[] entries() {
+            long[] entries = new long[size * 2];
+            int next = 0;
+            for (int i = 0; i < table.length; i += 2) {
+                if (table[i] != EMPTY) {
+                    entries[next++] = table[i];
+                    entries[next++] = table[i + 1];
+                }
+            }
+            return entries;
+        }
+
+        private void resize(int newCapacity) {
+            long[] old = table;
+            table = new long[newCapacity * 2];
+            Arrays.fill(table, EMPTY);
+            size = 0;
+            for (int i = 0; i < old.length; i += 2) {
+                if (old[i] != EMPTY) {
+                    put(old[i], old[i + 1]);
+                }
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            // Spread sequential ids over the table
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.apache.activemq.command.ActiveMQMessage;
+import org.rutebanken.irkalla.IrkallaException;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.rutebanken.irkalla.Constants.*;
+
+/**
+ * Merge sync control messages read in batch into the single synchronization to perform, in one pass reading the properties of each
+ * message once.
+ * <p>
+ * The message with highest priority, as defined by {@link SyncMsgComparator}, is selected. The first message read wins among messages with
+ * the same priority. The window of a new delta synchronization is given by the sync status when it starts and the window of an ongoing
+ * synchronization is given by its batch url, so time properties are taken from the selected message only. A new full synchronization
+ * uploads all stop places if any of the merged messages requesting a new full synchronization forces it. A request for a new delta
+ * synchronization merged into an ongoing synchronization is kept pending until that synchronization completes.
+ */
+public final class SyncMsgMerger {
+
+    private SyncMsgMerger() {
+    }
+
+    /**
+     * Priority of message, lower value is higher priority.
+     */
+    static int priority(Object syncOperation, Object nextBatchUrl) {
+        if (SYNC_OPERATION_FULL_WITH_DELETE_UNUSED_FIRST.equals(syncOperation)) {
+            return 0;
+        }
+        int priority = SYNC_OPERATION_FULL.equals(syncOperation) ? 1 : 3;
+        return nextBatchUrl != null ? priority : priority + 1;
+    }
+
+    public static MergedSyncMsg merge(List<ActiveMQMessage> msgList) {
+        try {
+            ActiveMQMessage top = null;
+            Object topSyncOperation = null;
+            Object topNextBatchUrl = null;
+            int topPriority = Integer.MAX_VALUE;
+            boolean forceNewFull = false;
+            boolean deltaRequested = false;
+
+            for (ActiveMQMessage msg : msgList) {
+                Object syncOperation = msg.getProperty(HEADER_SYNC_OPERATION);
+                Object nextBatchUrl = msg.getProperty(HEADER_NEXT_BATCH_URL);
+                int priority = priority(syncOperation, nextBatchUrl);
+                if (priority < topPriority) {
+                    top = msg;
+                    topSyncOperation = syncOperation;
+                    topNextBatchUrl = nextBatchUrl;
+                    topPriority = priority;
+                }
+                if (nextBatchUrl == null && SYNC_OPERATION_FULL.equals(syncOperation) && Boolean.TRUE.equals(msg.getProperty(HEADER_SYNC_FORCE_FULL))) {
+                    forceNewFull = true;
+                }
+                if ((nextBatchUrl == null && (syncOperation == null || SYNC_OPERATION_DELTA.equals(syncOperation)))
+                            || Boolean.TRUE.equals(msg.getProperty(HEADER_SYNC_DELTA_PENDING))) {
+                    deltaRequested = true;
+                }
+            }
+
+            if (top == null || topSyncOperation == null) {
+                return new MergedSyncMsg(SYNC_OPERATION_DELTA, null, null, null, null, null, null);
+            }
+            Object forceFull = forceNewFull && topPriority == priority(SYNC_OPERATION_FULL, null) ? Boolean.TRUE : top.getProperty(HEADER_SYNC_FORCE_FULL);
+            return new MergedSyncMsg(topSyncOperation, top.getProperty(HEADER_SYNC_STATUS_TO), topNextBatchUrl, forceFull,
+                                            top.getProperty(HEADER_SYNC_COMPLETE_UPLOAD), top.getProperty(HEADER_SYNC_RUN_ID),
+                                            deltaRequested && topNextBatchUrl != null ? Boolean.TRUE : null);
+        } catch (IOException ioE) {
+            throw new IrkallaException("Unable to get sync operation header as property from ActiveMQMessage: " + ioE.getMessage(), ioE);
+        }
+    }
+
+    public static class MergedSyncMsg {
+        public final Object syncOperation;
+
+        public final Object syncStatusTo;
+
+        public final Object nextBatchUrl;
+
+        public final Object forceFull;
+
+        /**
+         * Whether synchronization in progress uploads all stop places, as decided when it was started.
+         */
+        public final Object completeUpload;
+
+        public final Object runId;
+
+        /**
+         * Whether a new delta synchronization has been requested while synchronization in progress was running, and should be triggered
+         * when it completes.
+         */
+        public final Object deltaPending;
+
+        public MergedSyncMsg(Object syncOperation, Object syncStatusTo, Object nextBatchUrl, Object forceFull, Object completeUpload, Object runId,
+                                    Object deltaPending) {
+            this.syncOperation = syncOperation;
+            this.syncStatusTo = syncStatusTo;
+            this.nextBatchUrl = nextBatchUrl;
+            this.forceFull = forceFull;
+            this.completeUpload = completeUpload;
+            this.runId = runId;
+            this.deltaPending = deltaPending;
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Record metrics for each run of stop place synchronization (DELTA, FULL and DELETE_UNUSED): pages and bytes fetched from Tiamat,
+ * stop places synchronized, latency for Tiamat and Chouette, number of times Chouette was busy (423), retries and wall time.
+ * <p>
+ * A run spans several messages, possibly consumed on different threads (time slices, upload window), and is identified by the run id header.
+ * Completed runs are kept in a bounded history. Totals for all runs are exposed as JMX attributes.
+ * <p>
+ * State is local to the node. Runs continued on another node are not recorded there, and are eventually regarded as abandoned here.
+ */
+@Component
+@ManagedResource(objectName = "org.rutebanken.irkalla:name=StopPlaceSynchronizationRuns", description = "Stop place synchronization runs")
+public class SyncRunRecorder {
+
+    private static final Logger logger = LoggerFactory.getLogger(SyncRunRecorder.class);
+
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_COMPLETED = "COMPLETED";
+    public static final String STATUS_ABANDONED = "ABANDONED";
+
+    // Latency samples kept per run, enough for percentiles of all pages in a full synchronization
+    private static final int MAX_LATENCY_SAMPLES = 10000;
+
+    private final int historySize;
+
+    private final long inactiveTimeoutMillis;
+
+    private final Map<String, Run> activeRuns = new LinkedHashMap<>();
+
+    private final Deque<SyncRunReport> history = new ArrayDeque<>();
+
+    private long completedRuns;
+    private long abandonedRuns;
+    private long totalPages;
+    private long totalBytes;
+    private long totalStopPlaces;
+    private long totalChouetteBusy;
+    private long totalRetries;
+
+    private SyncRunReport lastCompletedRun;
+
+    public SyncRunRecorder(@Value("${chouette.sync.stop.place.run.history.size:100}") int historySize,
+                                  @Value("${chouette.sync.stop.place.run.inactive.timeout.ms:86400000}") long inactiveTimeoutMillis) {
+        this.historySize = historySize;
+        this.inactiveTimeoutMillis = inactiveTimeoutMillis;
+    }
+
+    /**
+     * Register start of new run. Runs processed one at a time by the control route, ie not time sliced, are superseded by the new run.
+     *
+     * @return id of new run
+     */
+    public synchronized String runStarted(String operation) {
+        long now = System.currentTimeMillis();
+        for (Iterator<Run> it = activeRuns.values().iterator(); it.hasNext(); ) {
+            Run run = it.next();
+            if (!run.sliced || now - run.lastActivity > inactiveTimeoutMillis) {
+                it.remove();
+                abandonedRuns++;
+                addToHistory(run.report(STATUS_ABANDONED, now));
+                logger.info("Stop place synchronization run " + run.runId + " (" + run.operation + ") abandoned");
+            }
+        }
+        Run run = new Run(UUID.randomUUID().toString(), operation, now);
+        activeRuns.put(run.runId, run);
+        return run.runId;
+    }
+
+    public synchronized boolean isActive(String runId) {
+        return runId != null && activeRuns.containsKey(runId);
+    }
+
+    /**
+     * Register that run is split in time slices processed in parallel, and thus not superseded by other runs.
+     */
+    public synchronized void runSliced(String runId) {
+        Run run = get(runId);
+        if (run != null) {
+            run.sliced = true;
+        }
+    }
+
+    /**
+     * Register page of stop places fetched from Tiamat.
+     *
+     * @param bytes       size of page, negative if unknown
+     * @param stopPlaces  number of stop places in page, negative if unknown
+     * @param fetchMillis time spent fetching page, null if unknown
+     */
+    public synchronized void pageFetched(String runId, long bytes, long stopPlaces, Long fetchMillis) {
+        Run run = get(runId);
+        if (run == null) {
+            return;
+        }
+        run.pages++;
+        totalPages++;
+        if (bytes > 0) {
+            run.bytes += bytes;
+            totalBytes += bytes;
+        }
+        if (stopPlaces > 0) {
+            run.stopPlaces += stopPlaces;
+            totalStopPlaces += stopPlaces;
+        }
+        if (fetchMillis != null) {
+            run.tiamatLatency.add(fetchMillis);
+        }
+    }
+
+    public synchronized void chouetteCompleted(String runId, long millis) {
+        Run run = get(runId);
+        if (run != null) {
+            run.chouetteLatency.add(millis);
+        }
+    }
+
+    public synchronized void chouetteBusy(String runId, long millis) {
+        Run run = get(runId);
+        if (run != null) {
+            run.chouetteLatency.add(millis);
+            run.chouetteBusy++;
+            totalChouetteBusy++;
+        }
+    }
+
+    public synchronized void retryScheduled(String runId) {
+        Run run = get(runId);
+        if (run != null) {
+            run.retries++;
+            totalRetries++;
+        }
+    }
+
+    public synchronized void runCompleted(String runId) {
+        Run run = runId == null ? null : activeRuns.remove(runId);
+        if (run == null) {
+            return;
+        }
+        completedRuns++;
+        lastCompletedRun = run.report(STATUS_COMPLETED, System.currentTimeMillis());
+        addToHistory(lastCompletedRun);
+        logger.info("Stop place synchronization run completed: " + lastCompletedRun);
+    }
+
+    /**
+     * Active runs followed by completed and abandoned runs, latest first.
+     */
+    public synchronized List<SyncRunReport> getRuns() {
+        long now = System.currentTimeMillis();
+        List<SyncRunReport> runs = new ArrayList<>();
+        activeRuns.values().forEach(run -> runs.add(run.report(STATUS_RUNNING, now)));
+        history.descendingIterator().forEachRemaining(runs::add);
+        return runs;
+    }
+
+    @ManagedAttribute(description = "Number of runs in progress")
+    public synchronized int getActiveRuns() {
+        return activeRuns.size();
+    }
+
+    @ManagedAttribute(description = "Number of completed runs")
+    public synchronized long getCompletedRuns() {
+        return completedRuns;
+    }
+
+    @ManagedAttribute(description = "Number of runs abandoned before completion")
+    public synchronized long getAbandonedRuns() {
+        return abandonedRuns;
+    }
+
+    @ManagedAttribute(description = "Pages fetched from Tiamat")
+    public synchronized long getPagesFetched() {
+        return totalPages;
+    }
+
+    @ManagedAttribute(description = "Bytes fetched from Tiamat")
+    public synchronized long getBytesFetched() {
+        return totalBytes;
+    }
+
+    @ManagedAttribute(description = "Stop places fetched from Tiamat")
+    public synchronized long getStopPlacesFetched() {
+        return totalStopPlaces;
+    }
+
+    @ManagedAttribute(description = "Number of times Chouette responded busy (423)")
+    public synchronized long getChouetteBusyCount() {
+        return totalChouetteBusy;
+    }
+
+    @ManagedAttribute(description = "Number of retries scheduled")
+    public synchronized long getRetries() {
+        return totalRetries;
+    }
+
+    @ManagedAttribute(description = "Operation of last completed run")
+    public synchronized String getLastRunOperation() {
+        return lastCompletedRun == null ? null : lastCompletedRun.operation;
+    }
+
+    @ManagedAttribute(description = "Wall time in ms of last completed run")
+    public synchronized long getLastRunWallTimeMillis() {
+        return lastCompletedRun == null ? 0 : lastCompletedRun.wallTimeMillis;
+    }
+
+    @ManagedAttribute(description = "Median Chouette latency in ms for last completed run")
+    public synchronized long getLastRunChouetteLatencyMedianMillis() {
+        return lastCompletedRun == null ? 0 : lastCompletedRun.chouetteLatency.p50;
+    }
+
+    @ManagedAttribute(description = "Median Tiamat latency in ms for last completed run")
+    public synchronized long getLastRunTiamatLatencyMedianMillis() {
+        return lastCompletedRun == null ? 0 : lastCompletedRun.tiamatLatency.p50;
+    }
+
+    private Run get(String runId) {
+        Run run = runId == null ? null : activeRuns.get(runId);
+        if (run != null) {
+            run.lastActivity = System.currentTimeMillis();
+        }
+        return run;
+    }
+
+    private void addToHistory(SyncRunReport report) {
+        history.addLast(report);
+        if (history.size() > historySize) {
+            history.removeFirst();
+        }
+    }
+
+    private static class Run {
+        private final String runId;
+        private final String operation;
+        private final long start;
+        private long lastActivity;
+        private boolean sliced;
+        private long pages;
+        private long bytes;
+        private long stopPlaces;
+        private long chouetteBusy;
+        private long retries;
+        private final LatencySamples tiamatLatency = new LatencySamples();
+        private final LatencySamples chouetteLatency = new LatencySamples();
+
+        private Run(String runId, String operation, long start) {
+            this.runId = runId;
+            this.operation = operation;
+            this.start = start;
+            this.lastActivity = start;
+        }
+
+        private SyncRunReport report(String status, long now) {
+            return new SyncRunReport(runId, operation, status, Instant.ofEpochMilli(start).toString(),
+                                            STATUS_RUNNING.equals(status) ? null : Instant.ofEpochMilli(now).toString(), now - start,
+                                            pages, bytes, stopPlaces, chouetteBusy, retries, tiamatLatency.summary(), chouetteLatency.summary());
+        }
+    }
+
+    static class LatencySamples {
+        private long[] samples = new long[16];
+        private int count;
+
+        void add(long millis) {
+            if (count == MAX_LATENCY_SAMPLES) {
+                return;
+            }
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, Math.min(MAX_LATENCY_SAMPLES, count * 2));
+            }
+            samples[count++] = millis;
+        }
+
+        LatencySummary summary() {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return new LatencySummary(count, percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), count == 0 ? 0 : sorted[count - 1]);
+        }
+
+        static long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+
+    public static class LatencySummary {
+        public final int count;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+        public final long max;
+
+        public LatencySummary(int count, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        @Override
+        public String toString() {
+            return "{count=" + count + ", p50=" + p50 + ", p90=" + p90 + ", p99=" + p99 + ", max=" + max + '}';
+        }
+    }
+
+    public static class SyncRunReport {
+        public final String runId;
+        public final String operation;
+        public final String status;
+        public final String startTime;
+        public final String endTime;
+        public final long wallTimeMillis;
+        public final long pages;
+        public final long bytes;
+        public final long stopPlaces;
+        public final long chouetteBusyCount;
+        public final long retries;
+        public final LatencySummary tiamatLatency;
+        public final LatencySummary chouetteLatency;
+
+        public SyncRunReport(String runId, String operation, String status, String startTime, String endTime, long wallTimeMillis,
+                                    long pages, long bytes, long stopPlaces, long chouetteBusyCount, long retries,
+                                    LatencySummary tiamatLatency, LatencySummary chouetteLatency) {
+            this.runId = runId;
+            this.operation = operation;
+            this.status = status;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.wallTimeMillis = wallTimeMillis;
+            this.pages = pages;
+            this.bytes = bytes;
+            this.stopPlaces = stopPlaces;
+            this.chouetteBusyCount = chouetteBusyCount;
+            this.retries = retries;
+            this.tiamatLatency = tiamatLatency;
+            this.chouetteLatency = chouetteLatency;
+        }
+
+        @Override
+        public String toString() {
+            return "SyncRunReport{" +
+                           "runId='" + runId + '\'' +
+                           ", operation='" + operation + '\'' +
+                           ", status='" + status + '\'' +
+                           ", startTime='" + startTime + '\'' +
+                           ", endTime='" + endTime + '\'' +
+                           ", wallTimeMillis=" + wallTimeMillis +
+                           ", pages=" + pages +
+                           ", bytes=" + bytes +
+                           ", stopPlaces=" + stopPlaces +
+                           ", chouetteBusyCount=" + chouetteBusyCount +
+                           ", retries=" + retries +
+                           ", tiamatLatency=" + tiamatLatency +
+                           ", chouetteLatency=" + chouetteLatency +
+                           '}';
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import com.hazelcast.core.IMap;
+import org.rutebanken.irkalla.routes.singleton.SingletonRoutePolicyFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Budget for the targeted synchronization lane, pushing single changed stop places to Chouette between pages of a running full synchronization.
+ * <p>
+ * The lane is credited with its share of the wall time spent by the full synchronization since the last gap between pages,
+ * and charged with the time spent on targeted uploads. Unused credit is capped, so that an idle period does not let the
+ * lane monopolize Chouette later on.
+ * <p>
+ * The lane is disabled by default (share 0). When enabled, changes are only queued for the lane while a full synchronization is running,
+ * as registered cluster wide by the control route, since the queue is only read between pages of a full synchronization.
+ */
+@Component
+public class TargetedSyncLane {
+
+    private static final long MAX_CREDIT_MILLIS = 10000;
+
+    private static final String MAP_NAME = "irkallaTargetedSyncLane";
+
+    private static final String KEY_FULL_SYNC_RUNNING = "fullSyncRunning";
+
+    private final double share;
+
+    private final int batchSize;
+
+    private long credit;
+
+    private long lastGapEnd = System.currentTimeMillis();
+
+    private long targetedUploads;
+
+    private long targetedStopPlaces;
+
+    @Autowired
+    private SingletonRoutePolicyFactory hazelcastService;
+
+    public TargetedSyncLane(@Value("${chouette.sync.stop.place.targeted.share:0}") double share,
+                                   @Value("${chouette.sync.stop.place.targeted.batch.size:50}") int batchSize) {
+        this.share = Math.max(0, Math.min(0.9, share));
+        this.batchSize = batchSize;
+    }
+
+    public boolean isEnabled() {
+        return share > 0 && batchSize > 0;
+    }
+
+    /**
+     * Register that a full synchronization served by the lane is running. Registration expires unless renewed within the given time,
+     * so that a full synchronization abandoned by a dying node does not keep the lane open.
+     */
+    public void fullSyncRunning(long timeToLiveMillis) {
+        map().put(KEY_FULL_SYNC_RUNNING, Boolean.TRUE, timeToLiveMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void fullSyncCompleted() {
+        map().remove(KEY_FULL_SYNC_RUNNING);
+    }
+
+    /**
+     * Whether changes should be queued for the lane, ie the lane is enabled and a full synchronization is running somewhere in the cluster.
+     */
+    public boolean isAcceptingChanges() {
+        return isEnabled() && map().containsKey(KEY_FULL_SYNC_RUNNING);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Start of gap between pages of full synchronization, crediting the lane for time spent by the full synchronization since the last gap.
+     */
+    public synchronized void gapStarted() {
+        long fullSyncMillis = Math.max(0, System.currentTimeMillis() - lastGapEnd);
+        credit = Math.min(MAX_CREDIT_MILLIS, credit + (long) (fullSyncMillis * share / (1 - share)));
+    }
+
+    public synchronized boolean hasCapacity() {
+        return credit > 0;
+    }
+
+    public synchronized void targetedUploadCompleted(long millis, int stopPlaces) {
+        credit -= millis;
+        targetedUploads++;
+        targetedStopPlaces += stopPlaces;
+    }
+
+    public synchronized void gapEnded() {
+        lastGapEnd = System.currentTimeMillis();
+    }
+
+    public synchronized long getTargetedUploads() {
+        return targetedUploads;
+    }
+
+    public synchronized long getTargetedStopPlaces() {
+        return targetedStopPlaces;
+    }
+
+    private IMap<String, Boolean> map() {
+        return hazelcastService.getHazelcastInstance().getMap(MAP_NAME);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Part of the period covered by a time sliced synchronization.
+ */
+public class TimeSlice {
+
+    private final int index;
+
+    private final Long from;
+
+    private final Long to;
+
+    public TimeSlice(int index, Long from, Long to) {
+        this.index = index;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Split period into (at most) sliceCount slices of equal length.
+     * <p>
+     * If from is not set (ie full sync) the first slice is left open to include all changes before start.
+     */
+    public static List<TimeSlice> split(Long from, long start, long to, int sliceCount) {
+        long sliceStart = from != null ? from : start;
+        List<TimeSlice> slices = new ArrayList<>();
+        if (sliceCount <= 1 || sliceStart >= to) {
+            slices.add(new TimeSlice(0, from, to));
+            return slices;
+        }
+
+        long length = to - sliceStart;
+        Long sliceFrom = from;
+        for (int i = 1; i < sliceCount; i++) {
+            long sliceTo = sliceStart + length * i / sliceCount;
+            slices.add(new TimeSlice(i - 1, sliceFrom, sliceTo));
+            sliceFrom = sliceTo;
+        }
+        slices.add(new TimeSlice(sliceCount - 1, sliceFrom, to));
+        return slices;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public Long getFrom() {
+        return from;
+    }
+
+    public Long getTo() {
+        return to;
+    }
+
+    @Override
+    public String toString() {
+        return "TimeSlice{" +
+                       "index=" + index +
+                       ", from=" + from +
+                       ", to=" + to +
+                       '}';
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import com.hazelcast.core.IMap;
+import org.rutebanken.irkalla.routes.singleton.SingletonRoutePolicyFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep track of remaining slices of a time sliced synchronization, cluster wide.
+ * <p>
+ * Entries for a slice are removed when it completes, the run is complete when no slices remain. The position within a slice is not
+ * tracked here, as each message for a slice carries the url of the page to process, so that a redelivered message resumes from that page.
+ * <p>
+ * Entries expire after a configurable time, so that runs abandoned because the coordinator died are eventually removed.
+ */
+@Service
+public class TimeSlicedSyncTracker {
+
+    private static final String MAP_NAME = "irkallaTimeSlicedSync";
+
+    private static final String NOT_STARTED = "";
+
+    @Value("${sync.stop.place.full.time.slice.run.ttl.ms:86400000}")
+    private long runTimeToLive;
+
+    @Autowired
+    private SingletonRoutePolicyFactory hazelcastService;
+
+    public void startRun(String runId, int sliceCount, long to) {
+        IMap<String, String> map = map();
+        map.put(runId, sliceCount + ":" + to, runTimeToLive, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < sliceCount; i++) {
+            map.put(sliceKey(runId, i), NOT_STARTED, runTimeToLive, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Register slice as completed.
+     *
+     * @return end time of the synchronization run if this was the last remaining slice, otherwise null.
+     */
+    public Long completeSlice(String runId, int slice) {
+        IMap<String, String> map = map();
+        map.lock(runId);
+        try {
+            if (map.remove(sliceKey(runId, slice)) == null) {
+                // Already registered as completed, ie message redelivered
+                return null;
+            }
+
+            String run = map.get(runId);
+            if (run == null) {
+                return null;
+            }
+            String[] sliceCountAndTo = run.split(":");
+            int sliceCount = Integer.parseInt(sliceCountAndTo[0]);
+            for (int i = 0; i < sliceCount; i++) {
+                if (map.containsKey(sliceKey(runId, i))) {
+                    return null;
+                }
+            }
+            map.remove(runId);
+            return Long.valueOf(sliceCountAndTo[1]);
+        } finally {
+            map.unlock(runId);
+        }
+    }
+
+    /**
+     * Whether slices of a time sliced synchronization are still running somewhere in the cluster.
+     */
+    public boolean hasActiveRun() {
+        return !map().isEmpty();
+    }
+
+    private String sliceKey(String runId, int slice) {
+        return runId + "/" + slice;
+    }
+
+    private IMap<String, String> map() {
+        return hazelcastService.getHazelcastInstance().getMap(MAP_NAME);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.rutebanken.irkalla.IrkallaException;
+import org.rutebanken.irkalla.routes.tiamat.NetexStopPlaceSplitter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remove stop places not changed since they were last uploaded to Chouette from a NeTEx page of stop places.
+ */
+@Service
+public class UnchangedStopPlaceFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(UnchangedStopPlaceFilter.class);
+
+    private final NetexStopPlaceSplitter splitter = new NetexStopPlaceSplitter();
+
+    @Autowired
+    private StopPlaceHashStore stopPlaceHashStore;
+
+    public UnchangedStopPlaceFilter() {
+    }
+
+    UnchangedStopPlaceFilter(StopPlaceHashStore stopPlaceHashStore) {
+        this.stopPlaceHashStore = stopPlaceHashStore;
+    }
+
+    /**
+     * Stream page and remove stop places with same hash as when last uploaded.
+     *
+     * @param out stream to write page with changed stop places only to, or null if only the hashes are of interest
+     * @return hashes for changed stop places to register when page is uploaded
+     */
+    public FilteredPage filter(InputStream page, OutputStream out) {
+        return filter(page, out, false);
+    }
+
+    /**
+     * Stream page and remove stop places with same hash as when last uploaded, unless unchanged stop places are to be kept anyway.
+     * <p>
+     * Used when all stop places are to be uploaded, on nodes not having discarded their hashes, ie when synchronization is sharded.
+     */
+    public FilteredPage filter(InputStream page, OutputStream out, boolean keepUnchanged) {
+        MessageDigest digest = createDigest();
+        // Hash stop places without buffering them
+        DigestOutputStream digestOut = new DigestOutputStream(new DiscardingOutputStream(), digest);
+        Map<String, Long> changedHashes = new HashMap<>();
+        int[] stopPlaceCount = new int[1];
+
+        int kept = splitter.filter(page, out, stopPlace -> {
+            stopPlaceCount[0]++;
+            stopPlace.writeXml(digestOut);
+            long hash = ByteBuffer.wrap(digest.digest()).getLong();
+            if (!keepUnchanged && stopPlaceHashStore.isUnchanged(stopPlace.id, hash)) {
+                return false;
+            }
+            changedHashes.put(stopPlace.id, hash);
+            return true;
+        });
+        logger.debug("Found " + kept + " changed of " + stopPlaceCount[0] + " stop places in page");
+
+        return new FilteredPage(kept, changedHashes, stopPlaceCount[0]);
+    }
+
+    private MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IrkallaException("Unable to create digest for stop place hashes: " + e.getMessage(), e);
+        }
+    }
+
+    public static class FilteredPage {
+        /**
+         * Number of stop places kept in page, ie changed stop places.
+         */
+        public final int kept;
+
+        public final Map<String, Long> changedHashes;
+
+        public final int stopPlaceCount;
+
+        public FilteredPage(int kept, Map<String, Long> changedHashes, int stopPlaceCount) {
+            this.kept = kept;
+            this.changedHashes = changedHashes;
+            this.stopPlaceCount = stopPlaceCount;
+        }
+    }
+
+    private static class DiscardingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import com.hazelcast.core.ITopic;
+import com.hazelcast.core.Message;
+import org.rutebanken.irkalla.routes.singleton.SingletonRoutePolicyFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keep caches used by stop place synchronization warm on nodes not currently running the synchronization, so that a node taking over
+ * does not start with cold caches.
+ * <p>
+ * The node uploading stop places to Chouette publishes versions and hashes of uploaded stop places to a Hazelcast topic, and all other
+ * nodes register them in their own {@link StopPlaceVersionIndex} and {@link StopPlaceHashStore}. Caches are saved to disk on all nodes
+ * when a synchronization completes. Updates published while a node is down are lost, which only means that the node uploads the
+ * affected stop places again after taking over.
+ * <p>
+ * Always enabled when synchronization is sharded, as stop places are then uploaded by all nodes while hashes are saved by the
+ * coordinator completing the synchronization.
+ */
+@Service
+public class WarmStandbyCaches {
+
+    private static final Logger logger = LoggerFactory.getLogger(WarmStandbyCaches.class);
+
+    private static final String TOPIC_NAME = "irkallaStopPlaceSyncCaches";
+
+    private final boolean enabled;
+
+    @Autowired
+    private SingletonRoutePolicyFactory hazelcastService;
+
+    @Autowired
+    private StopPlaceVersionIndex stopPlaceVersionIndex;
+
+    @Autowired
+    private StopPlaceHashStore stopPlaceHashStore;
+
+    @Autowired
+    public WarmStandbyCaches(@Value("${sync.warm.standby:false}") boolean warmStandby,
+                                    @Value("${sync.stop.place.sharded:false}") boolean sharded) {
+        this.enabled = warmStandby || sharded;
+    }
+
+    WarmStandbyCaches(boolean enabled, StopPlaceVersionIndex stopPlaceVersionIndex, StopPlaceHashStore stopPlaceHashStore) {
+        this.enabled = enabled;
+        this.stopPlaceVersionIndex = stopPlaceVersionIndex;
+        this.stopPlaceHashStore = stopPlaceHashStore;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (enabled) {
+            topic().addMessageListener(this::onMessage);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Publish versions and hashes for stop places uploaded to Chouette.
+     */
+    public void delivered(Map<String, String> versions, Map<String, Long> hashes) {
+        if (!enabled || (isEmpty(versions) && isEmpty(hashes))) {
+            return;
+        }
+        publish(new CacheUpdate(versions, hashes, null, false));
+    }
+
+    /**
+     * Publish completion of synchronization.
+     *
+     * @param completeUploadTime time of last full synchronization uploading all stop places, if just completed by an incremental full synchronization
+     */
+    public void synchronizationCompleted(Instant completeUploadTime) {
+        if (enabled) {
+            publish(new CacheUpdate(null, null, completeUploadTime == null ? null : completeUploadTime.toEpochMilli(), true));
+        }
+    }
+
+    void apply(CacheUpdate update) {
+        if (stopPlaceVersionIndex.isEnabled()) {
+            stopPlaceVersionIndex.update(update.versions);
+        }
+        if (stopPlaceHashStore.isEnabled()) {
+            stopPlaceHashStore.update(update.hashes);
+        }
+        if (update.completed) {
+            if (stopPlaceHashStore.isEnabled() && update.completeUploadTime != null) {
+                stopPlaceHashStore.completeUploadReplicated(Instant.ofEpochMilli(update.completeUploadTime));
+            }
+            stopPlaceVersionIndex.save();
+        }
+    }
+
+    private void onMessage(Message<CacheUpdate> message) {
+        if (message.getPublishingMember() != null && message.getPublishingMember().localMember()) {
+            return;
+        }
+        try {
+            apply(message.getMessageObject());
+        } catch (RuntimeException e) {
+            logger.warn("Failed to apply stop place synchronization cache update from " + message.getPublishingMember() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void publish(CacheUpdate update) {
+        try {
+            topic().publish(update);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to publish stop place synchronization cache update, standby caches will be behind: " + e.getMessage());
+        }
+    }
+
+    private static boolean isEmpty(Map<?, ?> map) {
+        return map == null || map.isEmpty();
+    }
+
+    private ITopic<CacheUpdate> topic() {
+        return hazelcastService.getHazelcastInstance().getTopic(TOPIC_NAME);
+    }
+
+    static class CacheUpdate implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final HashMap<String, String> versions;
+
+        final HashMap<String, Long> hashes;
+
+        final Long completeUploadTime;
+
+        final boolean completed;
+
+        CacheUpdate(Map<String, String> versions, Map<String, Long> hashes, Long completeUploadTime, boolean completed) {
+            this.versions = versions == null ? null : new HashMap<>(versions);
+            this.hashes = hashes == null ? null : new HashMap<>(hashes);
+            this.completeUploadTime = completeUploadTime;
+            this.completed = completed;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.LoggingLevel;
+import org.apache.camel.component.http4.HttpMethods;
+import org.rutebanken.irkalla.routes.BaseRouteBuilder;
+import org.rutebanken.irkalla.routes.singleton.SingletonRoutePolicyFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import static org.rutebanken.irkalla.util.Http4URL.toHttp4Url;
+
+/**
+ * Keep pooled http connections to Tiamat and Chouette open on nodes not running the synchronization, with lightweight requests at an
+ * interval shorter than the keep alive timeout of the servers. Any response will do, so failures are not regarded as errors.
+ */
+@Component
+public class WarmStandbyRouteBuilder extends BaseRouteBuilder {
+
+    private static final String PROPERTY_WARM_UP_URL = "IrkallaWarmUpUrl";
+
+    @Value("${tiamat.url}")
+    private String tiamatUrl;
+
+    @Value("${chouette.url}")
+    private String chouetteUrl;
+
+    @Value("${sync.warm.standby.tiamat.path:/}")
+    private String tiamatPath;
+
+    @Value("${sync.warm.standby.chouette.path:/}")
+    private String chouettePath;
+
+    @Value("${sync.warm.standby.connections.interval.ms:20000}")
+    private long connectionsInterval;
+
+    @Autowired
+    private WarmStandbyCaches warmStandbyCaches;
+
+    @Autowired
+    private SingletonRoutePolicyFactory singletonRoutePolicyFactory;
+
+    @Override
+    public void configure() throws Exception {
+        super.configure();
+
+        from("timer:warmStandbyConnections?delay=" + connectionsInterval + "&period=" + connectionsInterval)
+                .autoStartup(warmStandbyCaches.isEnabled())
+                .filter(e -> !singletonRoutePolicyFactory.isLeader())
+                .setProperty(PROPERTY_WARM_UP_URL, constant(toHttp4Url(tiamatUrl) + tiamatPath))
+                .to("direct:warmUpConnection")
+                .setProperty(PROPERTY_WARM_UP_URL, constant(toHttp4Url(chouetteUrl) + chouettePath))
+                .to("direct:warmUpConnection")
+                .routeId("warm-standby-connections");
+
+        from("direct:warmUpConnection")
+                .setBody(constant(null))
+                .removeHeaders("CamelHttp*")
+                .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.GET))
+                .doTry()
+                .toD("${exchangeProperty." + PROPERTY_WARM_UP_URL + "}?throwExceptionOnFailure=false")
+                // Read response, releasing connection back to pool
+                .convertBodyTo(String.class)
+                .doCatch(Exception.class)
+                .log(LoggingLevel.DEBUG, "Unable to keep connection warm for ${exchangeProperty." + PROPERTY_WARM_UP_URL + "}: ${exception.message}")
+                .end()
+                .routeId("warm-standby-connection");
+    }
+}
@@ -35,6 +35,8 @@ import static org.rutebanken.irkalla.util.Http4URL.toHttp4Url;
 
 /**
  * Get/ set stop place synced until date in etcd. Not using camel-etcd because timeout does not work (hangs indefinitely) with underlying etcd4j lib.
+ * <p>
+ * Etcd is the sync status store unless the Hazelcast store is enabled, which uses etcd for write-behind only.
  */
 @Component
 @ConditionalOnProperty(name = "sync.status.in.memory", havingValue = "false", matchIfMissing = true)
@@ -46,6 +48,9 @@ public class EtcdRouteBuilder extends BaseRouteBuilder {
     @Value("${etcd.sync.status.key:/v2/keys/prod/dynamic/irkalla/stop_place/sync}")
     private String etcdSyncStatusKey;
 
+    @Value("${sync.status.hazelcast:false}")
+    private boolean hazelcastSyncStatus;
+
     public static final String DATE_TIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSXXXX";
 
     private static DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern(DATE_TIME_PATTERN);
@@ -53,7 +58,17 @@ public class EtcdRouteBuilder extends BaseRouteBuilder {
     @Override
     public void configure() throws Exception {
 
-        from("direct:getSyncStatusUntilTime")
+        if (!hazelcastSyncStatus) {
+            from("direct:getSyncStatusUntilTime")
+                    .to("direct:getSyncStatusUntilTimeFromEtcd")
+                    .routeId("get-sync-status-until");
+
+            from("direct:setSyncStatusUntilTime")
+                    .to("direct:setSyncStatusUntilTimeInEtcd")
+                    .routeId("set-sync-status-until");
+        }
+
+        from("direct:getSyncStatusUntilTimeFromEtcd")
                 .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.GET))
                 .doTry()
                 .to(toHttp4Url(etcdUrl) + etcdSyncStatusKey)
@@ -68,12 +83,12 @@ public class EtcdRouteBuilder extends BaseRouteBuilder {
                 .setBody(constant(null))
                 .end()
 
-                .routeId("get-sync-status-until");
+                .routeId("get-sync-status-until-etcd");
 
-        from("direct:setSyncStatusUntilTime")
+        from("direct:setSyncStatusUntilTimeInEtcd")
                 .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.PUT))
                 .process(e -> e.getIn().setBody(Instant.ofEpochMilli(e.getIn().getBody(Long.class)).atZone(ZoneId.of("UTC")).format(FORMATTER)))
                 .toD(toHttp4Url(etcdUrl) + etcdSyncStatusKey + "?value=${body}")
-                .routeId("set-sync-status-until");
+                .routeId("set-sync-status-until-etcd");
     }
 }
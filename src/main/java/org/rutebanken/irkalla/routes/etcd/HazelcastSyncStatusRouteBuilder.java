@@ -0,0 +1,132 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.etcd;
+
+import com.hazelcast.core.ReplicatedMap;
+import org.apache.camel.ProducerTemplate;
+import org.rutebanken.irkalla.IrkallaException;
+import org.rutebanken.irkalla.routes.BaseRouteBuilder;
+import org.rutebanken.irkalla.routes.singleton.SingletonRoutePolicyFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stop place synced until date replicated to all nodes in the Hazelcast cluster, with write-behind to etcd for durability.
+ * <p>
+ * Reads are local to the node. The status is loaded from etcd when not yet known by the cluster, ie after a restart of the whole cluster.
+ * Writes are coalesced and flushed to etcd periodically. If a node stops before flushing, etcd lags behind, which only makes
+ * the first synchronization after a restart of the whole cluster start earlier than necessary.
+ * <p>
+ * Alternative to the in memory status (sync.status.in.memory), as the status must still be stored in etcd. Enabling both fails at startup.
+ */
+@Component
+@ConditionalOnProperty(name = "sync.status.hazelcast", havingValue = "true")
+public class HazelcastSyncStatusRouteBuilder extends BaseRouteBuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger(HazelcastSyncStatusRouteBuilder.class);
+
+    private static final String MAP_NAME = "irkallaSyncStatus";
+
+    private static final String SYNCED_UNTIL_KEY = "stopPlaceSyncedUntil";
+
+    @Value("${sync.status.etcd.write.behind.ms:5000}")
+    private long writeBehindMillis;
+
+    @Autowired
+    private SingletonRoutePolicyFactory hazelcastService;
+
+    @Autowired
+    private ProducerTemplate producerTemplate;
+
+    private final AtomicReference<Long> pendingWrite = new AtomicReference<>();
+
+    private volatile boolean loadedFromEtcd;
+
+    public HazelcastSyncStatusRouteBuilder(@Value("${sync.status.in.memory:false}") boolean inMemorySyncStatus) {
+        if (inMemorySyncStatus) {
+            throw new IrkallaException("Invalid configuration: sync.status.hazelcast and sync.status.in.memory cannot both be enabled");
+        }
+    }
+
+    @Override
+    public void configure() throws Exception {
+        from("direct:getSyncStatusUntilTime")
+                .process(e -> e.getIn().setBody(getSyncedUntil()))
+                .routeId("get-sync-status-until");
+
+        from("direct:setSyncStatusUntilTime")
+                .process(e -> setSyncedUntil(toEpochMillis(e.getIn().getBody())))
+                .routeId("set-sync-status-until");
+
+        from("timer:syncStatusWriteBehind?delay=" + writeBehindMillis + "&period=" + writeBehindMillis)
+                .process(e -> flush())
+                .routeId("sync-status-write-behind");
+    }
+
+    Long getSyncedUntil() {
+        ReplicatedMap<String, Long> map = map();
+        Long syncedUntil = map.get(SYNCED_UNTIL_KEY);
+        if (syncedUntil == null && !loadedFromEtcd) {
+            syncedUntil = producerTemplate.requestBody("direct:getSyncStatusUntilTimeFromEtcd", null, Long.class);
+            loadedFromEtcd = true;
+            if (syncedUntil != null) {
+                Long current = map.putIfAbsent(SYNCED_UNTIL_KEY, syncedUntil);
+                return current == null ? syncedUntil : current;
+            }
+        }
+        return syncedUntil;
+    }
+
+    void setSyncedUntil(long syncedUntil) {
+        map().put(SYNCED_UNTIL_KEY, syncedUntil);
+        pendingWrite.set(syncedUntil);
+    }
+
+    /**
+     * Write latest status set on this node to etcd, if not already written.
+     */
+    void flush() {
+        Long syncedUntil = pendingWrite.getAndSet(null);
+        if (syncedUntil == null) {
+            return;
+        }
+        try {
+            producerTemplate.requestBody("direct:setSyncStatusUntilTimeInEtcd", syncedUntil);
+        } catch (RuntimeException e) {
+            // Retry next time, unless a newer status has been set in the meantime
+            pendingWrite.compareAndSet(null, syncedUntil);
+            logger.warn("Failed to write sync status to etcd, will retry: " + e.getMessage());
+        }
+    }
+
+    private static long toEpochMillis(Object body) {
+        if (body instanceof Instant) {
+            return ((Instant) body).toEpochMilli();
+        }
+        return ((Number) body).longValue();
+    }
+
+    private ReplicatedMap<String, Long> map() {
+        return hazelcastService.getHazelcastInstance().getReplicatedMap(MAP_NAME);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.singleton;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+/**
+ * Leases stored in a Hazelcast map, using Hazelcast cluster time, which is synchronized across members.
+ */
+class HazelcastLeaseStore implements LeaseStore {
+
+    static final String LEASE_MAP_NAME = "irkallaLeases";
+
+    private final HazelcastInstance hazelcast;
+
+    HazelcastLeaseStore(HazelcastInstance hazelcast) {
+        this.hazelcast = hazelcast;
+    }
+
+    @Override
+    public String localNodeId() {
+        return hazelcast.getCluster().getLocalMember().getUuid();
+    }
+
+    @Override
+    public long clusterTime() {
+        return hazelcast.getCluster().getClusterTime();
+    }
+
+    @Override
+    public String get(String key) {
+        return leases().get(key);
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value) {
+        return leases().putIfAbsent(key, value) == null;
+    }
+
+    @Override
+    public boolean replace(String key, String expectedValue, String newValue) {
+        return leases().replace(key, expectedValue, newValue);
+    }
+
+    @Override
+    public long nextToken(String key) {
+        return hazelcast.getAtomicLong(LEASE_MAP_NAME + "-" + key).incrementAndGet();
+    }
+
+    private IMap<String, String> leases() {
+        return hazelcast.getMap(LEASE_MAP_NAME);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.singleton;
+
+/**
+ * Lease for running a singleton route, as stored in Hazelcast. Stored as a string, so that it can be replaced atomically by comparing
+ * with the value read.
+ */
+class Lease {
+
+    private static final String SEPARATOR = "|";
+
+    private static final String RELEASED = "released";
+
+    final String owner;
+
+    // Fencing token, incremented cluster wide each time a lease is acquired
+    final long token;
+
+    // Last time owner was known to be alive, ie lease renewed or released (cluster time)
+    final long renewedAt;
+
+    final long expiresAt;
+
+    final boolean released;
+
+    Lease(String owner, long token, long renewedAt, long expiresAt, boolean released) {
+        this.owner = owner;
+        this.token = token;
+        this.renewedAt = renewedAt;
+        this.expiresAt = expiresAt;
+        this.released = released;
+    }
+
+    static Lease acquire(String owner, long token, long now, long ttlMillis) {
+        return new Lease(owner, token, now, now + ttlMillis, false);
+    }
+
+    static Lease parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split("\\" + SEPARATOR);
+        return new Lease(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts.length > 4 && RELEASED.equals(parts[4]));
+    }
+
+    Lease renew(long now, long ttlMillis) {
+        return new Lease(owner, token, now, now + ttlMillis, false);
+    }
+
+    Lease release(long now) {
+        return new Lease(owner, token, now, now, true);
+    }
+
+    /**
+     * Whether lease may be acquired by another node.
+     */
+    boolean isAvailable(long now) {
+        return released || expiresAt <= now;
+    }
+
+    boolean isHeldBy(String node, long token, long now) {
+        return !isAvailable(now) && owner.equals(node) && this.token == token;
+    }
+
+    @Override
+    public String toString() {
+        return owner + SEPARATOR + token + SEPARATOR + renewedAt + SEPARATOR + expiresAt + (released ? SEPARATOR + RELEASED : "");
+    }
+}
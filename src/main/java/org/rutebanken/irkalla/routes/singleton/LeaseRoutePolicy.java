@@ -0,0 +1,244 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.singleton;
+
+import com.hazelcast.core.HazelcastInstance;
+import org.apache.camel.Exchange;
+import org.apache.camel.Route;
+import org.apache.camel.ServiceStatus;
+import org.apache.camel.support.RoutePolicySupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Route policy running route as singleton in the cluster, as long as this node holds a lease for it in Hazelcast.
+ * <p>
+ * The leader renews its lease every heartbeat. Other nodes take over the lease when it has not been renewed within its TTL, or
+ * at their next heartbeat if the leader released it when shutting down. A fencing token, incremented for each lease acquired, is set as
+ * property on exchanges, so that work started under a lease that has since been lost can be rejected.
+ * <p>
+ * Leases are stored in Hazelcast, and lease times are compared using Hazelcast cluster time, which is synchronized across members.
+ */
+public class LeaseRoutePolicy extends RoutePolicySupport {
+
+    private static final Logger logger = LoggerFactory.getLogger(LeaseRoutePolicy.class);
+
+    public static final String PROPERTY_LEASE_KEY = "IrkallaLeaseKey";
+
+    public static final String PROPERTY_LEASE_TOKEN = "IrkallaLeaseToken";
+
+    private static final long NOT_LEADER = -1;
+
+    private final LeaseStore store;
+
+    private final String key;
+
+    private final long heartbeatMillis;
+
+    private final long ttlMillis;
+
+    private final SingletonLeaseMetrics metrics;
+
+    private final Set<Route> routes = new CopyOnWriteArraySet<>();
+
+    private ScheduledExecutorService executor;
+
+    private volatile long token = NOT_LEADER;
+
+    // Lease is only competed for while route is started
+    private volatile boolean routeStarted;
+
+    // Local time of last successful renewal, used to give up leadership if Hazelcast is unavailable
+    private long lastRenewal;
+
+    public LeaseRoutePolicy(HazelcastInstance hazelcast, String key, long heartbeatMillis, long ttlMillis, SingletonLeaseMetrics metrics) {
+        this(new HazelcastLeaseStore(hazelcast), key, heartbeatMillis, ttlMillis, metrics);
+    }
+
+    LeaseRoutePolicy(LeaseStore store, String key, long heartbeatMillis, long ttlMillis, SingletonLeaseMetrics metrics) {
+        this.store = store;
+        this.key = key;
+        this.heartbeatMillis = heartbeatMillis;
+        this.ttlMillis = ttlMillis;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void onInit(Route route) {
+        super.onInit(route);
+        routes.add(route);
+    }
+
+    @Override
+    public void onStart(Route route) {
+        routeStarted = true;
+        if (!isLeader()) {
+            stopConsumerQuietly(route);
+        }
+    }
+
+    @Override
+    public void onStop(Route route) {
+        routeStarted = false;
+        release();
+    }
+
+    @Override
+    public void onRemove(Route route) {
+        routes.remove(route);
+    }
+
+    @Override
+    public void onExchangeBegin(Route route, Exchange exchange) {
+        exchange.setProperty(PROPERTY_LEASE_KEY, key);
+        exchange.setProperty(PROPERTY_LEASE_TOKEN, token);
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "irkalla-lease-" + key);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        release();
+        super.doStop();
+    }
+
+    public boolean isLeader() {
+        return token != NOT_LEADER;
+    }
+
+    /**
+     * Whether lease with given fencing token is still held by this node.
+     */
+    public boolean isValid(long fencingToken) {
+        if (fencingToken == NOT_LEADER || fencingToken != token) {
+            return false;
+        }
+        Lease lease = Lease.parse(store.get(key));
+        return lease != null && lease.isHeldBy(nodeId(), fencingToken, clusterTime());
+    }
+
+    synchronized void heartbeat() {
+        try {
+            long now = clusterTime();
+            String currentValue = store.get(key);
+            Lease current = Lease.parse(currentValue);
+
+            if (isLeader()) {
+                if (current != null && current.isHeldBy(nodeId(), token, now) && store.replace(key, currentValue, current.renew(now, ttlMillis).toString())) {
+                    lastRenewal = System.currentTimeMillis();
+                    return;
+                }
+                leadershipLost("lease not renewed in time, now held by: " + current);
+            }
+
+            if (routeStarted && (current == null || current.isAvailable(now))) {
+                long newToken = store.nextToken(key);
+                String acquired = Lease.acquire(nodeId(), newToken, now, ttlMillis).toString();
+                boolean won = currentValue == null ? store.putIfAbsent(key, acquired) : store.replace(key, currentValue, acquired);
+                if (won) {
+                    leadershipGained(newToken, current, now);
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Lease heartbeat for " + key + " failed: " + e.getMessage());
+            if (isLeader() && System.currentTimeMillis() - lastRenewal > ttlMillis) {
+                leadershipLost("unable to renew lease within TTL");
+            }
+        }
+    }
+
+    /**
+     * Release lease, letting another node take over without waiting for it to expire.
+     */
+    synchronized void release() {
+        if (!isLeader()) {
+            return;
+        }
+        try {
+            String currentValue = store.get(key);
+            Lease current = Lease.parse(currentValue);
+            long now = clusterTime();
+            if (current != null && current.isHeldBy(nodeId(), token, now)) {
+                store.replace(key, currentValue, current.release(now).toString());
+                logger.info("Released lease for singleton route " + key);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Failed to release lease for " + key + ", it will expire: " + e.getMessage());
+        }
+        token = NOT_LEADER;
+        metrics.leaseReleased();
+    }
+
+    private void leadershipGained(long newToken, Lease previous, long now) {
+        token = newToken;
+        lastRenewal = System.currentTimeMillis();
+        Long takeoverMillis = previous == null ? null : now - previous.renewedAt;
+        metrics.leaseAcquired(takeoverMillis, previous != null && previous.released);
+        logger.info("Acquired lease for singleton route " + key + " with fencing token " + newToken
+                            + (previous == null ? "" : ", taken over " + takeoverMillis + " ms after previous leader was last seen (" + (previous.released ? "released" : "expired") + ")"));
+        for (Route route : routes) {
+            ServiceStatus status = route.getRouteContext().getCamelContext().getRouteStatus(route.getId());
+            if (status != null && status.isStarted()) {
+                try {
+                    startConsumer(route.getConsumer());
+                } catch (Exception e) {
+                    logger.warn("Failed to start consumer for singleton route " + route.getId() + ": " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private void leadershipLost(String reason) {
+        logger.warn("Lost lease for singleton route " + key + ": " + reason);
+        token = NOT_LEADER;
+        metrics.leaseLost();
+        routes.forEach(this::stopConsumerQuietly);
+    }
+
+    private void stopConsumerQuietly(Route route) {
+        try {
+            stopConsumer(route.getConsumer());
+        } catch (Exception e) {
+            logger.warn("Failed to stop consumer for singleton route " + route.getId() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private String nodeId() {
+        return store.localNodeId();
+    }
+
+    private long clusterTime() {
+        return store.clusterTime();
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.singleton;
+
+/**
+ * Cluster wide storage of leases for singleton routes, with the cluster time leases are compared with.
+ */
+interface LeaseStore {
+
+    String localNodeId();
+
+    long clusterTime();
+
+    String get(String key);
+
+    boolean putIfAbsent(String key, String value);
+
+    /**
+     * Replace value for key, only if current value equals expected value.
+     */
+    boolean replace(String key, String expectedValue, String newValue);
+
+    /**
+     * Next fencing token for key, incremented cluster wide.
+     */
+    long nextToken(String key);
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.singleton;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Metrics for lease based leadership of singleton routes on this node.
+ * <p>
+ * Takeover time is the time from the previous leader was last known to be alive, ie renewed or released its lease, until this node
+ * took over the lease.
+ */
+@Component
+@ManagedResource(objectName = "org.rutebanken.irkalla:name=SingletonRouteLeases", description = "Lease based leadership of singleton routes")
+public class SingletonLeaseMetrics {
+
+    private long takeovers;
+
+    private long gracefulTakeovers;
+
+    private long lastTakeoverMillis = -1;
+
+    private long maxTakeoverMillis = -1;
+
+    private long leasesLost;
+
+    private int leasesHeld;
+
+    public synchronized void leaseAcquired(Long takeoverMillis, boolean graceful) {
+        leasesHeld++;
+        if (takeoverMillis == null) {
+            return;
+        }
+        takeovers++;
+        if (graceful) {
+            gracefulTakeovers++;
+        }
+        lastTakeoverMillis = takeoverMillis;
+        maxTakeoverMillis = Math.max(maxTakeoverMillis, takeoverMillis);
+    }
+
+    public synchronized void leaseReleased() {
+        leasesHeld = Math.max(0, leasesHeld - 1);
+    }
+
+    public synchronized void leaseLost() {
+        leasesLost++;
+        leasesHeld = Math.max(0, leasesHeld - 1);
+    }
+
+    @ManagedAttribute(description = "Number of leases taken over from another node")
+    public synchronized long getTakeovers() {
+        return takeovers;
+    }
+
+    @ManagedAttribute(description = "Number of leases taken over after being released by another node shutting down")
+    public synchronized long getGracefulTakeovers() {
+        return gracefulTakeovers;
+    }
+
+    @ManagedAttribute(description = "Takeover time in ms for last lease taken over, -1 if none")
+    public synchronized long getLastTakeoverMillis() {
+        return lastTakeoverMillis;
+    }
+
+    @ManagedAttribute(description = "Max takeover time in ms for leases taken over, -1 if none")
+    public synchronized long getMaxTakeoverMillis() {
+        return maxTakeoverMillis;
+    }
+
+    @ManagedAttribute(description = "Number of leases lost without being released, ie not renewed in time")
+    public synchronized long getLeasesLost() {
+        return leasesLost;
+    }
+
+    @ManagedAttribute(description = "Number of leases currently held")
+    public synchronized int getLeasesHeld() {
+        return leasesHeld;
+    }
+}
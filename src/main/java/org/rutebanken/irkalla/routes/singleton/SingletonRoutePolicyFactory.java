@@ -15,7 +15,9 @@
 
 package org.rutebanken.irkalla.routes.singleton;
 
+import com.hazelcast.core.HazelcastInstance;
 import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
 import org.apache.camel.component.hazelcast.policy.HazelcastRoutePolicy;
 import org.apache.camel.model.RouteDefinition;
 import org.apache.camel.spi.RoutePolicy;
@@ -28,10 +30,16 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import static org.rutebanken.irkalla.Constants.SINGLETON_ROUTE_DEFINITION_GROUP_NAME;
 
 /**
  * Create policies for enforcing that routes are started as singleton, using Hazelcast for cluster  sync.
+ * <p>
+ * Either a Hazelcast lock per route (default), or a lease per route renewed by heartbeats (see {@link LeaseRoutePolicy}) for faster
+ * takeover when the leader dies or shuts down.
  */
 @Service
 public class SingletonRoutePolicyFactory extends HazelCastService implements RoutePolicyFactory {
@@ -41,6 +49,22 @@ public class SingletonRoutePolicyFactory extends HazelCastService implements Rou
     @Value("${rutebanken.route.singleton.policy.ignore:false}")
     private boolean ignorePolicy;
 
+    @Value("${rutebanken.route.singleton.policy.lease:false}")
+    private boolean leasePolicy;
+
+    @Value("${rutebanken.route.singleton.policy.lease.heartbeat.ms:1000}")
+    private long leaseHeartbeatMillis;
+
+    @Value("${rutebanken.route.singleton.policy.lease.ttl.ms:10000}")
+    private long leaseTtlMillis;
+
+    @Autowired
+    private SingletonLeaseMetrics leaseMetrics;
+
+    private final Map<String, LeaseRoutePolicy> leasePolicies = new ConcurrentHashMap<>();
+
+    private final Map<String, HazelcastRoutePolicy> lockPolicies = new ConcurrentHashMap<>();
+
     public SingletonRoutePolicyFactory(@Autowired KubernetesService kubernetesService,
                                               @Value("${rutebanken.hazelcast.management.url:}") String managementUrl) {
         super(kubernetesService, managementUrl);
@@ -50,11 +74,17 @@ public class SingletonRoutePolicyFactory extends HazelCastService implements Rou
      * Create policy ensuring only one route with 'key' is started in cluster.
      */
     private RoutePolicy build(String key) {
+        if (leasePolicy) {
+            LeaseRoutePolicy leaseRoutePolicy = new LeaseRoutePolicy(this.hazelcast, key, leaseHeartbeatMillis, leaseTtlMillis, leaseMetrics);
+            leasePolicies.put(key, leaseRoutePolicy);
+            return leaseRoutePolicy;
+        }
         HazelcastRoutePolicy hazelcastRoutePolicy = new HazelcastRoutePolicy(this.hazelcast);
         hazelcastRoutePolicy.setLockMapName("lockMap");
         hazelcastRoutePolicy.setLockKey(key);
         hazelcastRoutePolicy.setLockValue("lockValue");
         hazelcastRoutePolicy.setShouldStopConsumer(true);
+        lockPolicies.put(key, hazelcastRoutePolicy);
 
         return hazelcastRoutePolicy;
     }
@@ -71,5 +101,35 @@ public class SingletonRoutePolicyFactory extends HazelCastService implements Rou
         return null;
     }
 
+    /**
+     * Whether this node is running singleton routes, ie is the leader. Always true if singleton policies are ignored.
+     */
+    public boolean isLeader() {
+        if (ignorePolicy) {
+            return true;
+        }
+        return leasePolicies.values().stream().anyMatch(LeaseRoutePolicy::isLeader)
+                       || lockPolicies.values().stream().anyMatch(HazelcastRoutePolicy::isLeader);
+    }
+
+    /**
+     * Whether exchange may still act as leader. False only if exchange was started by a singleton route under a lease that has since
+     * been lost (fenced), ie by a node that has been paused for longer than the lease TTL.
+     */
+    public boolean isLeaseValid(Exchange exchange) {
+        String key = exchange.getProperty(LeaseRoutePolicy.PROPERTY_LEASE_KEY, String.class);
+        LeaseRoutePolicy policy = key == null ? null : leasePolicies.get(key);
+        if (policy == null) {
+            return true;
+        }
+        return policy.isValid(exchange.getProperty(LeaseRoutePolicy.PROPERTY_LEASE_TOKEN, -1L, Long.class));
+    }
+
+    /**
+     * Hazelcast instance shared by all cluster coordinated functionality in Irkalla.
+     */
+    public HazelcastInstance getHazelcastInstance() {
+        return hazelcast;
+    }
 
 }
\ No newline at end of file
@@ -0,0 +1,211 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tune number of stop places per page (per_page) requested from Tiamat, based on observed uploads of pages to Chouette.
+ * <p>
+ * Aims for a configured upload time per page, shrinks page size when Chouette is busy (423) and limits page size
+ * in bytes. Pages in Tiamat are addressed by page number, so a new page size is only applied when a new synchronization starts.
+ * <p>
+ * All pages of a synchronization are fetched with the per_page of the first page (kept in the Link header), and pages may be
+ * uploaded concurrently. New page size is therefore derived from the per_page of the observed page, not from the page size
+ * currently proposed, so that a run with many pages moves page size by one step only.
+ * <p>
+ * Current page size and recent decisions are exposed as JMX attributes and through the admin REST API.
+ */
+@Component
+@ManagedResource(objectName = "org.rutebanken.irkalla:name=StopPlacePageSize", description = "Page size for stop place synchronization")
+public class AdaptivePageSizeController {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptivePageSizeController.class);
+
+    private static final int MAX_DECISION_HISTORY = 100;
+
+    // Weight of latest observation in moving average of 423 rate
+    private static final double LOCKED_RATE_ALPHA = 0.2;
+
+    // Do not increase page size while Chouette is frequently busy
+    private static final double MAX_LOCKED_RATE_FOR_GROWTH = 0.1;
+
+    private static final Pattern PER_PAGE_PATTERN = Pattern.compile("[?&]per_page=(\\d+)");
+
+    private final boolean adaptive;
+
+    private final int minPageSize;
+
+    private final int maxPageSize;
+
+    private final long targetUploadMillis;
+
+    private final long maxPageBytes;
+
+    private int pageSize;
+
+    private double lockedRate;
+
+    private final Deque<PageSizeDecision> decisions = new ArrayDeque<>();
+
+    public AdaptivePageSizeController(@Value("${sync.stop.place.batch.size:1000}") int initialPageSize,
+                                             @Value("${sync.stop.place.batch.size.adaptive:false}") boolean adaptive,
+                                             @Value("${sync.stop.place.batch.size.min:100}") int minPageSize,
+                                             @Value("${sync.stop.place.batch.size.max:5000}") int maxPageSize,
+                                             @Value("${sync.stop.place.batch.target.upload.ms:30000}") long targetUploadMillis,
+                                             @Value("${sync.stop.place.batch.max.bytes:52428800}") long maxPageBytes) {
+        this.pageSize = initialPageSize;
+        this.adaptive = adaptive && initialPageSize > 0;
+        this.minPageSize = minPageSize;
+        this.maxPageSize = maxPageSize;
+        this.targetUploadMillis = targetUploadMillis;
+        this.maxPageBytes = maxPageBytes;
+    }
+
+    @ManagedAttribute(description = "Number of stop places per page requested from Tiamat")
+    public synchronized int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Page successfully uploaded to Chouette.
+     *
+     * @param pageUrl      url page was fetched from. Pages without per_page (ie stop places by id) are ignored
+     * @param uploadMillis time spent uploading page
+     * @param pageBytes    size of page in bytes as served by Tiamat, before unchanged or delivered stop places are removed. Negative if unknown
+     */
+    public synchronized void uploadCompleted(String pageUrl, long uploadMillis, long pageBytes) {
+        Integer observedPageSize = getPageSize(pageUrl);
+        if (!adaptive || observedPageSize == null) {
+            return;
+        }
+        lockedRate = (1 - LOCKED_RATE_ALPHA) * lockedRate;
+
+        double factor = uploadMillis > 0 ? (double) targetUploadMillis / uploadMillis : 2;
+        // Dampen adjustments to avoid oscillating
+        factor = Math.max(0.5, Math.min(2, factor));
+        String reason = "upload time " + uploadMillis + " ms, target " + targetUploadMillis + " ms";
+
+        if (factor > 1 && lockedRate > MAX_LOCKED_RATE_FOR_GROWTH) {
+            factor = 1;
+            reason += ", not growing while Chouette busy rate is " + String.format("%.2f", lockedRate);
+        }
+        if (pageBytes > 0 && pageBytes * factor > maxPageBytes) {
+            factor = (double) maxPageBytes / pageBytes;
+            reason += ", page size " + pageBytes + " bytes limited to " + maxPageBytes + " bytes";
+        }
+
+        int newPageSize = (int) (observedPageSize * factor);
+        if (lockedRate > MAX_LOCKED_RATE_FOR_GROWTH) {
+            // Do not undo reduction caused by other pages of the same run being rejected
+            newPageSize = Math.min(pageSize, newPageSize);
+        }
+        adjust(newPageSize, reason, uploadMillis, pageBytes);
+    }
+
+    /**
+     * Chouette rejected page because it is busy (423).
+     */
+    public synchronized void uploadRejected(String pageUrl, long uploadMillis, long pageBytes) {
+        Integer observedPageSize = getPageSize(pageUrl);
+        if (!adaptive || observedPageSize == null) {
+            return;
+        }
+        lockedRate = (1 - LOCKED_RATE_ALPHA) * lockedRate + LOCKED_RATE_ALPHA;
+        adjust(Math.min(pageSize, observedPageSize / 2), "Chouette busy (423)", uploadMillis, pageBytes);
+    }
+
+    /**
+     * Recent page size decisions, oldest first.
+     */
+    public synchronized List<PageSizeDecision> getDecisions() {
+        return new ArrayList<>(decisions);
+    }
+
+    @ManagedAttribute(description = "Recent page size decisions, oldest first")
+    public synchronized String[] getDecisionHistory() {
+        return decisions.stream().map(PageSizeDecision::toString).toArray(String[]::new);
+    }
+
+    /**
+     * Value of per_page parameter in page url, null if not present.
+     */
+    static Integer getPageSize(String pageUrl) {
+        if (pageUrl == null) {
+            return null;
+        }
+        Matcher matcher = PER_PAGE_PATTERN.matcher(pageUrl);
+        return matcher.find() ? Integer.valueOf(matcher.group(1)) : null;
+    }
+
+    private void adjust(int newPageSize, String reason, long uploadMillis, long pageBytes) {
+        newPageSize = Math.max(minPageSize, Math.min(maxPageSize, newPageSize));
+        PageSizeDecision decision = new PageSizeDecision(Instant.now(), pageSize, newPageSize, reason, uploadMillis, pageBytes);
+        decisions.addLast(decision);
+        if (decisions.size() > MAX_DECISION_HISTORY) {
+            decisions.removeFirst();
+        }
+        if (newPageSize != pageSize) {
+            logger.info("Changing page size for stop place synchronization: " + decision);
+        } else {
+            logger.debug("Keeping page size for stop place synchronization: " + decision);
+        }
+        pageSize = newPageSize;
+    }
+
+    public static class PageSizeDecision {
+        public final String time;
+        public final int previousPageSize;
+        public final int pageSize;
+        public final String reason;
+        public final long uploadMillis;
+        public final long pageBytes;
+
+        public PageSizeDecision(Instant time, int previousPageSize, int pageSize, String reason, long uploadMillis, long pageBytes) {
+            this.time = time.toString();
+            this.previousPageSize = previousPageSize;
+            this.pageSize = pageSize;
+            this.reason = reason;
+            this.uploadMillis = uploadMillis;
+            this.pageBytes = pageBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "PageSizeDecision{" +
+                           "time=" + time +
+                           ", previousPageSize=" + previousPageSize +
+                           ", pageSize=" + pageSize +
+                           ", reason='" + reason + '\'' +
+                           ", uploadMillis=" + uploadMillis +
+                           ", pageBytes=" + pageBytes +
+                           '}';
+        }
+    }
+}
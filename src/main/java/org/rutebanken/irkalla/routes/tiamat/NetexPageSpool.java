@@ -0,0 +1,230 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk spool for pages of stop places that Chouette was too busy to accept (423), keyed by page URL.
+ * <p>
+ * When the synchronization is retried the spooled page is uploaded again instead of being fetched from Tiamat once more.
+ * The spool is local to the node and best effort; pages missing from the spool are fetched from Tiamat as before.
+ * <p>
+ * Pages are tagged with the synchronization run they belong to, so that a run completing does not discard pages of other runs still in progress.
+ */
+@Service
+public class NetexPageSpool {
+
+    private static final Logger logger = LoggerFactory.getLogger(NetexPageSpool.class);
+
+    private static final String SPOOL_FILE_PREFIX = "page-";
+
+    private static final String SPOOL_FILE_SUFFIX = ".xml";
+
+    private final boolean enabled;
+
+    private final long maxSpooledBytes;
+
+    private final Path spoolDirectory;
+
+    private final Map<String, SpooledPage> pages = new ConcurrentHashMap<>();
+
+    private final AtomicLong spooledBytes = new AtomicLong();
+
+    public NetexPageSpool(@Value("${sync.stop.place.page.spool.enabled:false}") boolean enabled,
+                                 @Value("${sync.stop.place.page.spool.max.bytes:1073741824}") long maxSpooledBytes,
+                                 @Value("${sync.stop.place.page.spool.directory:}") String spoolDirectory) {
+        this.enabled = enabled;
+        this.maxSpooledBytes = maxSpooledBytes;
+        if (spoolDirectory == null || spoolDirectory.isEmpty()) {
+            this.spoolDirectory = Paths.get(System.getProperty("java.io.tmpdir"), "irkalla-page-spool");
+        } else {
+            this.spoolDirectory = Paths.get(spoolDirectory);
+        }
+    }
+
+    /**
+     * Remove pages left behind by previous run of the application. Pages are only tracked in memory.
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        if (enabled) {
+            Files.createDirectories(spoolDirectory);
+            try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(spoolDirectory, SPOOL_FILE_PREFIX + "*" + SPOOL_FILE_SUFFIX)) {
+                leftovers.forEach(this::delete);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Write page to spool. Page is discarded if spool is full.
+     *
+     * @param runId synchronization run the page belongs to, may be null
+     * @param url   url the page was fetched from
+     * @param link  Link header for the page, pointing to next page
+     * @param body  the page
+     */
+    public void store(String runId, String url, String link, InputStream body) {
+        if (!enabled || url == null || body == null) {
+            return;
+        }
+
+        Path file = null;
+        try {
+            file = Files.createTempFile(spoolDirectory, SPOOL_FILE_PREFIX, SPOOL_FILE_SUFFIX);
+            try (OutputStream out = Files.newOutputStream(file)) {
+                copy(body, out, maxSpooledBytes - spooledBytes.get());
+            }
+        } catch (SpoolFullException sfe) {
+            logger.info("Not spooling page, spool is full: " + url);
+            delete(file);
+            return;
+        } catch (IOException ioe) {
+            logger.warn("Failed to spool page, it will be fetched again: " + url + ": " + ioe.getMessage());
+            delete(file);
+            return;
+        }
+
+        SpooledPage page = new SpooledPage(runId, file, link, sizeOf(file));
+        spooledBytes.addAndGet(page.bytes);
+        release(pages.put(url, page));
+        logger.debug("Spooled page: " + url + " (" + page.bytes + " bytes)");
+    }
+
+    /**
+     * Get and remove page for url. Caller is responsible for deleting the page when done. Returns null if page is not spooled.
+     */
+    public SpooledPage take(String url) {
+        if (!enabled || url == null) {
+            return null;
+        }
+        return unaccount(pages.remove(url));
+    }
+
+    /**
+     * Delete all spooled pages, ie when a new synchronization is started and no other run is in progress.
+     */
+    public void clear() {
+        pages.keySet().forEach(url -> release(take(url)));
+    }
+
+    /**
+     * Delete pages spooled for run, ie when the run is completed.
+     */
+    public void clear(String runId) {
+        pages.forEach((url, page) -> {
+            if (Objects.equals(runId, page.runId) && pages.remove(url, page)) {
+                release(unaccount(page));
+            }
+        });
+    }
+
+    public long getSpooledBytes() {
+        return spooledBytes.get();
+    }
+
+    private SpooledPage unaccount(SpooledPage page) {
+        if (page != null) {
+            spooledBytes.addAndGet(-page.bytes);
+        }
+        return page;
+    }
+
+    private void release(SpooledPage page) {
+        if (page != null) {
+            page.delete();
+        }
+    }
+
+    private void copy(InputStream in, OutputStream out, long limit) throws IOException {
+        byte[] buffer = new byte[8192];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            total += read;
+            if (total > limit) {
+                throw new SpoolFullException();
+            }
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException ioe) {
+            return 0;
+        }
+    }
+
+    private void delete(Path file) {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ioe) {
+                logger.warn("Failed to delete spooled page: " + file + ": " + ioe.getMessage());
+            }
+        }
+    }
+
+    private static class SpoolFullException extends IOException {
+    }
+
+    public class SpooledPage {
+        public final String runId;
+
+        public final Path file;
+
+        public final String link;
+
+        public final long bytes;
+
+        private SpooledPage(String runId, Path file, String link, long bytes) {
+            this.runId = runId;
+            this.file = file;
+            this.link = link;
+            this.bytes = bytes;
+        }
+
+        public InputStream open() throws IOException {
+            return Files.newInputStream(file);
+        }
+
+        public void delete() {
+            NetexPageSpool.this.delete(file);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import org.rutebanken.irkalla.IrkallaException;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Streaming (StAX) splitter for NeTEx publication deliveries of stop places from Tiamat.
+ * <p>
+ * Each stop place is emitted with its id and version, and with a fragment for each of its quays. Only one stop place is held in
+ * memory at a time, so memory usage does not depend on the size of the delivery.
+ */
+public class NetexStopPlaceSplitter {
+
+    public static final String NETEX_NAMESPACE = "http://www.netex.org.uk/netex";
+
+    private static final QName STOP_PLACES = new QName(NETEX_NAMESPACE, "stopPlaces");
+
+    private static final QName STOP_PLACE = new QName(NETEX_NAMESPACE, "StopPlace");
+
+    private static final QName QUAY = new QName(NETEX_NAMESPACE, "Quay");
+
+    private static final QName ID = new QName("id");
+
+    private static final QName VERSION = new QName("version");
+
+    private static final byte[] STOP_PLACE_START_TAG = "<StopPlace".getBytes(StandardCharsets.US_ASCII);
+
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newInstance();
+
+    /**
+     * Emit each stop place in delivery.
+     */
+    public void split(InputStream delivery, Consumer<StopPlaceFragment> consumer) {
+        filter(delivery, null, fragment -> {
+            consumer.accept(fragment);
+            return false;
+        });
+    }
+
+    /**
+     * Emit each stop place in delivery, followed by each of its quays.
+     */
+    public void splitWithQuays(InputStream delivery, Consumer<NetexFragment> consumer) {
+        split(delivery, stopPlace -> {
+            consumer.accept(stopPlace);
+            stopPlace.quays.forEach(consumer);
+        });
+    }
+
+    /**
+     * Write delivery containing only the stop places accepted by the filter. Everything outside of the stop places is kept as is,
+     * except for the stopPlaces element which is left out if no stop places are kept.
+     *
+     * @param delivery publication delivery to read
+     * @param out      stream to write resulting delivery to, or null if only the filter is of interest
+     * @param keep     filter deciding which stop places to keep
+     * @return number of stop places kept
+     */
+    public int filter(InputStream delivery, OutputStream out, Predicate<StopPlaceFragment> keep) {
+        XMLEventReader reader = null;
+        XMLEventWriter writer = null;
+        try {
+            reader = INPUT_FACTORY.createXMLEventReader(delivery);
+            writer = out == null ? null : OUTPUT_FACTORY.createXMLEventWriter(out, "UTF-8");
+
+            // Namespaces declared by ancestors of current element, needed to write stop places as standalone fragments
+            Deque<Map<String, String>> namespaceScopes = new ArrayDeque<>();
+            Deque<QName> path = new ArrayDeque<>();
+            StartElement pendingStopPlaces = null;
+            boolean stopPlacesWritten = false;
+            int kept = 0;
+
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+
+                if (event.isStartElement()) {
+                    StartElement start = event.asStartElement();
+                    if (STOP_PLACE.equals(start.getName()) && STOP_PLACES.equals(path.peek())) {
+                        StopPlaceFragment fragment = readFragment(start, reader, inScopeNamespaces(namespaceScopes));
+                        if (keep.test(fragment)) {
+                            kept++;
+                            if (writer != null) {
+                                if (!stopPlacesWritten) {
+                                    writer.add(pendingStopPlaces);
+                                    stopPlacesWritten = true;
+                                }
+                                for (XMLEvent fragmentEvent : fragment.events) {
+                                    writer.add(fragmentEvent);
+                                }
+                            }
+                        }
+                        continue;
+                    }
+
+                    path.push(start.getName());
+                    namespaceScopes.push(namespaces(start));
+                    if (STOP_PLACES.equals(start.getName())) {
+                        // Wait until first stop place is kept
+                        pendingStopPlaces = start;
+                        stopPlacesWritten = false;
+                        continue;
+                    }
+                } else if (event.isEndElement()) {
+                    QName name = path.pop();
+                    namespaceScopes.pop();
+                    if (STOP_PLACES.equals(name) && !stopPlacesWritten) {
+                        continue;
+                    }
+                } else if (STOP_PLACES.equals(path.peek()) && (event.isCharacters() || !stopPlacesWritten)) {
+                    // Whitespace between stop places
+                    continue;
+                }
+
+                if (writer != null) {
+                    writer.add(event);
+                }
+            }
+            if (writer != null) {
+                writer.flush();
+            }
+            return kept;
+        } catch (XMLStreamException e) {
+            throw new IrkallaException("Unable to split NeTEx publication delivery: " + e.getMessage(), e);
+        } finally {
+            close(reader, writer);
+        }
+    }
+
+    /**
+     * Count stop places in delivery by scanning for StopPlace start tags, without parsing. Much cheaper than splitting,
+     * but assumes NeTEx is the default namespace, as in deliveries from Tiamat.
+     */
+    public static long countStopPlaces(InputStream delivery) throws IOException {
+        byte[] buffer = new byte[8192];
+        int matched = 0;
+        long count = 0;
+        int read;
+        while ((read = delivery.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                byte b = buffer[i];
+                if (matched == STOP_PLACE_START_TAG.length) {
+                    if (b == ' ' || b == '>' || b == '/' || b == '\n' || b == '\r' || b == '\t') {
+                        count++;
+                    }
+                    matched = 0;
+                }
+                if (b == STOP_PLACE_START_TAG[matched]) {
+                    matched++;
+                } else {
+                    matched = b == STOP_PLACE_START_TAG[0] ? 1 : 0;
+                }
+            }
+        }
+        return count;
+    }
+
+    private StopPlaceFragment readFragment(StartElement start, XMLEventReader reader, Map<String, String> namespaces) throws XMLStreamException {
+        List<XMLEvent> events = new ArrayList<>();
+        events.add(start);
+
+        // Quays share the events of the stop place, sub lists are created when the stop place has been read
+        List<int[]> quayRanges = new ArrayList<>();
+        List<Map<String, String>> quayNamespaces = new ArrayList<>();
+        int quayStart = -1;
+        int quayDepth = 0;
+
+        Deque<Map<String, String>> namespaceScopes = new ArrayDeque<>();
+        namespaceScopes.push(namespaces);
+        namespaceScopes.push(namespaces(start));
+
+        int depth = 1;
+        while (depth > 0) {
+            XMLEvent event = reader.nextEvent();
+            events.add(event);
+            if (event.isStartElement()) {
+                depth++;
+                StartElement element = event.asStartElement();
+                if (quayStart < 0 && QUAY.equals(element.getName())) {
+                    quayStart = events.size() - 1;
+                    quayDepth = depth;
+                    quayNamespaces.add(inScopeNamespaces(namespaceScopes));
+                }
+                namespaceScopes.push(namespaces(element));
+            } else if (event.isEndElement()) {
+                if (depth == quayDepth && quayStart >= 0) {
+                    quayRanges.add(new int[]{quayStart, events.size()});
+                    quayStart = -1;
+                }
+                depth--;
+                namespaceScopes.pop();
+            }
+        }
+
+        List<QuayFragment> quays = new ArrayList<>(quayRanges.size());
+        for (int i = 0; i < quayRanges.size(); i++) {
+            List<XMLEvent> quayEvents = events.subList(quayRanges.get(i)[0], quayRanges.get(i)[1]);
+            StartElement quayStartElement = quayEvents.get(0).asStartElement();
+            quays.add(new QuayFragment(attribute(quayStartElement, ID), attribute(quayStartElement, VERSION), quayEvents, quayNamespaces.get(i)));
+        }
+        return new StopPlaceFragment(attribute(start, ID), attribute(start, VERSION), quays, events, namespaces);
+    }
+
+    private Map<String, String> inScopeNamespaces(Deque<Map<String, String>> namespaceScopes) {
+        Map<String, String> namespaces = new LinkedHashMap<>();
+        // Innermost declaration of prefix wins
+        namespaceScopes.forEach(scope -> scope.forEach(namespaces::putIfAbsent));
+        return namespaces;
+    }
+
+    private static Map<String, String> namespaces(StartElement element) {
+        Map<String, String> namespaces = new LinkedHashMap<>();
+        Iterator<?> declared = element.getNamespaces();
+        while (declared.hasNext()) {
+            Namespace namespace = (Namespace) declared.next();
+            namespaces.put(namespace.getPrefix(), namespace.getNamespaceURI());
+        }
+        return namespaces;
+    }
+
+    private static String attribute(StartElement element, QName name) {
+        Attribute attribute = element.getAttributeByName(name);
+        return attribute == null ? null : attribute.getValue();
+    }
+
+    private static void close(XMLEventReader reader, XMLEventWriter writer) {
+        try {
+            if (reader != null) {
+                reader.close();
+            }
+            if (writer != null) {
+                writer.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IrkallaException("Unable to close NeTEx publication delivery: " + e.getMessage(), e);
+        }
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /**
+     * A single NeTEx entity, as read from a publication delivery.
+     */
+    public abstract static class NetexFragment {
+        public final String id;
+
+        public final String version;
+
+        final List<XMLEvent> events;
+
+        private final Map<String, String> namespaces;
+
+        private NetexFragment(String id, String version, List<XMLEvent> events, Map<String, String> namespaces) {
+            this.id = id;
+            this.version = version;
+            this.events = events;
+            this.namespaces = namespaces;
+        }
+
+        /**
+         * Entity as standalone XML, declaring namespaces inherited from the delivery.
+         */
+        public byte[] toXml() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeXml(out);
+            return out.toByteArray();
+        }
+
+        /**
+         * Write entity as standalone XML, declaring namespaces inherited from the delivery.
+         */
+        public void writeXml(OutputStream out) {
+            XMLEventWriter writer = null;
+            try {
+                writer = OUTPUT_FACTORY.createXMLEventWriter(out, "UTF-8");
+                StartElement start = start();
+                Map<String, String> inScope = new LinkedHashMap<>(namespaces);
+                inScope.putAll(NetexStopPlaceSplitter.namespaces(start));
+                List<Namespace> declared = new ArrayList<>();
+                inScope.forEach((prefix, uri) -> declared.add(XMLConstants.DEFAULT_NS_PREFIX.equals(prefix)
+                                                                      ? EVENT_FACTORY.createNamespace(uri) : EVENT_FACTORY.createNamespace(prefix, uri)));
+
+                writer.add(EVENT_FACTORY.createStartElement(start.getName(), start.getAttributes(), declared.iterator()));
+                for (int i = 1; i < events.size(); i++) {
+                    writer.add(events.get(i));
+                }
+                writer.flush();
+            } catch (XMLStreamException e) {
+                throw new IrkallaException("Unable to write " + start().getName().getLocalPart() + " " + id + ": " + e.getMessage(), e);
+            } finally {
+                close(null, writer);
+            }
+        }
+
+        private StartElement start() {
+            return events.get(0).asStartElement();
+        }
+    }
+
+    /**
+     * A single stop place, with its quays, as read from a publication delivery.
+     */
+    public static class StopPlaceFragment extends NetexFragment {
+
+        public final List<QuayFragment> quays;
+
+        private StopPlaceFragment(String id, String version, List<QuayFragment> quays, List<XMLEvent> events, Map<String, String> namespaces) {
+            super(id, version, events, namespaces);
+            this.quays = quays;
+        }
+    }
+
+    /**
+     * A single quay, sharing the events read for the stop place it belongs to.
+     */
+    public static class QuayFragment extends NetexFragment {
+
+        private QuayFragment(String id, String version, List<XMLEvent> events, Map<String, String> namespaces) {
+            super(id, version, events, namespaces);
+        }
+    }
+}
@@ -22,7 +22,6 @@ import org.rutebanken.irkalla.routes.tiamat.graphql.model.StopPlace;
 import org.rutebanken.irkalla.routes.tiamat.graphql.model.TopographicPlace;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.util.CollectionUtils;
 import org.springframework.util.ObjectUtils;
 
 import java.time.Instant;
@@ -66,21 +65,26 @@ public class StopPlaceChange {
 
 
     public Instant getChangeTime() {
-        Instant changeTime = null;
-        if (current.validBetween != null) {
-            if (CrudAction.REMOVE.equals(crudAction)) {
-                changeTime = current.validBetween.toDate;
-            } else {
-                changeTime = current.validBetween.fromDate;
-            }
-        }
-
+        Instant changeTime = getRegisteredChangeTime();
         if (changeTime == null) {
             return Instant.now();
         }
         return changeTime;
     }
 
+    /**
+     * Time change is effective from as registered in Tiamat, or null if not registered.
+     */
+    public Instant getRegisteredChangeTime() {
+        if (current.validBetween == null) {
+            return null;
+        }
+        if (CrudAction.REMOVE.equals(crudAction)) {
+            return current.validBetween.toDate;
+        }
+        return current.validBetween.fromDate;
+    }
+
 
     public CrudAction getCrudAction() {
         return crudAction;
@@ -193,13 +197,10 @@ public class StopPlaceChange {
 
     private String formatGeometry(GraphqlGeometry geometry) {
         if ("Point".equals(geometry.type)) {
-            if (!CollectionUtils.isEmpty(geometry.coordinates)) {
-                List<Double> coordinates = geometry.coordinates.get(0);
-                if (coordinates != null && coordinates.size() > 1) {
-                    Double x = coordinates.get(0);
-                    Double y = coordinates.get(1);
-                    return "(" + x + "," + y + ")";
-                }
+            if (geometry.getPositionCount() > 0 && geometry.dimension > 1) {
+                double x = geometry.getOrdinate(0, 0);
+                double y = geometry.getOrdinate(0, 1);
+                return "(" + x + "," + y + ")";
             }
         }
         return null;
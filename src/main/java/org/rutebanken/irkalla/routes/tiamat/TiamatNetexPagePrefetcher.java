@@ -0,0 +1,162 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.util.ExchangeHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.rutebanken.irkalla.Constants.HEADER_NEXT_BATCH_URL;
+
+/**
+ * Fetch upcoming pages of changed stop places from Tiamat in the background while the current page is being uploaded to Chouette.
+ * <p>
+ * Pages are keyed by URL and spooled to disk as they are read from Tiamat, so prefetched pages do not occupy the heap. Every
+ * page is still handed over through the sync queue, so a prefetched page only replaces the HTTP GET when the next sync message
+ * for that URL is processed. Spooled pages are lost if the node dies, in which case they are simply fetched again.
+ */
+@Service
+public class TiamatNetexPagePrefetcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(TiamatNetexPagePrefetcher.class);
+
+    @Value("${sync.stop.place.prefetch.depth:0}")
+    private int prefetchDepth;
+
+    @Value("${sync.stop.place.prefetch.max.bytes:52428800}")
+    private long maxSpooledBytes;
+
+    @Value("${sync.stop.place.prefetch.spool.directory:}")
+    private String spoolDirectory;
+
+    @Autowired
+    private ProducerTemplate producerTemplate;
+
+    private NetexPageSpool spool;
+
+    private final Map<String, Future<?>> fetches = new ConcurrentHashMap<>();
+
+    // Pages must be fetched in order anyway, as the url to next page is only known when the previous is fetched
+    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (isEnabled()) {
+            if (spoolDirectory == null || spoolDirectory.isEmpty()) {
+                spoolDirectory = Paths.get(System.getProperty("java.io.tmpdir"), "irkalla-prefetch-spool").toString();
+            }
+            spool = new NetexPageSpool(true, maxSpooledBytes, spoolDirectory);
+            spool.init();
+        }
+    }
+
+    public boolean isEnabled() {
+        return prefetchDepth > 0;
+    }
+
+    /**
+     * Start fetching page (and following pages, up to configured depth) in the background.
+     */
+    public void prefetch(String url) {
+        prefetch(url, prefetchDepth);
+    }
+
+    /**
+     * Write page fetched by prefetch route to spool, while the response from Tiamat is still open.
+     */
+    public void store(Exchange e) {
+        spool.store(null, e.getIn().getHeader(HEADER_NEXT_BATCH_URL, String.class), e.getIn().getHeader("Link", String.class), e.getIn().getBody(InputStream.class));
+    }
+
+    /**
+     * Get and remove prefetched page for url. Waits for fetch in progress. Returns null if page has not been prefetched.
+     * Caller is responsible for deleting the page when done.
+     */
+    public NetexPageSpool.SpooledPage take(String url) {
+        Future<?> future = fetches.remove(url);
+        if (future == null) {
+            return null;
+        }
+        try {
+            future.get();
+            return spool.take(url);
+        } catch (ExecutionException e) {
+            logger.info("Prefetch of page failed, fetching again: " + url + ": " + e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Discard all prefetched pages, ie when a new synchronization is started.
+     */
+    public void clear() {
+        fetches.values().forEach(f -> f.cancel(true));
+        fetches.clear();
+        if (spool != null) {
+            spool.clear();
+        }
+    }
+
+    public long getBufferedBytes() {
+        return spool == null ? 0 : spool.getSpooledBytes();
+    }
+
+    private void prefetch(String url, int depth) {
+        if (depth <= 0 || url == null || getBufferedBytes() >= maxSpooledBytes) {
+            return;
+        }
+        fetches.computeIfAbsent(url, u -> executorService.submit(() -> fetch(u, depth)));
+    }
+
+    private void fetch(String url, int depth) {
+        Exchange exchange = producerTemplate.send("direct:fetchBatchOfChangedStopPlacesAsNetex", e -> e.getIn().setHeader(HEADER_NEXT_BATCH_URL, url));
+        if (exchange.getException() != null) {
+            logger.info("Prefetch of page failed, will be fetched again when needed: " + url + ": " + exchange.getException().getMessage());
+            return;
+        }
+
+        String link = ExchangeHelper.getResultMessage(exchange).getHeader("Link", String.class);
+        if (link != null) {
+            prefetch(TiamatPollForStopPlaceChangesRouteBuilder.parseNextBatchUrl(link), depth - 1);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executorService.shutdownNow();
+        clear();
+    }
+}
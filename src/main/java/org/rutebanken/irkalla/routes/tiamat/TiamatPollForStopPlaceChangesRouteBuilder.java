@@ -18,16 +18,25 @@ package org.rutebanken.irkalla.routes.tiamat;
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
 import org.apache.camel.component.http4.HttpMethods;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.apache.camel.util.IOHelper;
 import org.glassfish.jersey.uri.internal.JerseyUriBuilder;
 import org.rutebanken.irkalla.Constants;
 import org.rutebanken.irkalla.routes.BaseRouteBuilder;
+import org.rutebanken.irkalla.routes.chouette.TimeSlicedSyncTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.ws.rs.core.UriBuilder;
+import java.io.IOException;
+import java.io.InputStream;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.Collection;
 
 import static org.rutebanken.irkalla.Constants.*;
 import static org.rutebanken.irkalla.util.Http4URL.toHttp4Url;
@@ -35,6 +44,8 @@ import static org.rutebanken.irkalla.util.Http4URL.toHttp4Url;
 @Component
 public class TiamatPollForStopPlaceChangesRouteBuilder extends BaseRouteBuilder {
 
+    private static final Logger logger = LoggerFactory.getLogger(TiamatPollForStopPlaceChangesRouteBuilder.class);
+
     @Value("${HOSTNAME:irkalla}")
     private String clientId;
 
@@ -44,10 +55,24 @@ public class TiamatPollForStopPlaceChangesRouteBuilder extends BaseRouteBuilder
     @Value("${tiamat.publication.delivery.path:/services/stop_places/netex/changed_in_period}")
     private String publicationDeliveryPath;
 
-    @Value("${sync.stop.place.batch.size:1000}")
-    private int batchSize;
+    @Value("${tiamat.stop.places.netex.path:/services/stop_places/netex}")
+    private String stopPlacesNetexPath;
+
+    @Autowired
+    private AdaptivePageSizeController pageSizeController;
+
+    @Autowired
+    private TiamatNetexPagePrefetcher netexPagePrefetcher;
+
+    @Autowired
+    private NetexPageSpool netexPageSpool;
+
+    @Autowired
+    private TimeSlicedSyncTracker timeSlicedSyncTracker;
 
 
+    private static final String PROPERTY_STOP_PLACES_URL = "IrkallaStopPlacesUrl";
+
     private static final String DATE_TIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSXXXX";
 
     private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern(DATE_TIME_PATTERN);
@@ -62,6 +87,12 @@ public class TiamatPollForStopPlaceChangesRouteBuilder extends BaseRouteBuilder
                 .choice()
                 .when(header(HEADER_NEXT_BATCH_URL).isNull())
                 .process(e -> setPollForChangesURL(e))
+                // Pages left behind by previous runs are discarded, but not while slices of a time sliced run may still need their pages
+                .choice()
+                .when(e -> e.getIn().getHeader(HEADER_SYNC_SLICE) == null && !timeSlicedSyncTracker.hasActiveRun())
+                .process(e -> netexPagePrefetcher.clear())
+                .process(e -> netexPageSpool.clear())
+                .end()
                 .end()
                 .to("direct:processBatchOfChangedStopPlacesAsNetex")
                 .routeId("tiamat-get-changed-stop-places-as-netex");
@@ -69,12 +100,22 @@ public class TiamatPollForStopPlaceChangesRouteBuilder extends BaseRouteBuilder
         from("direct:processBatchOfChangedStopPlacesAsNetex")
                 .log(LoggingLevel.INFO, "Fetching batch of changed stop places: ${header." + HEADER_NEXT_BATCH_URL + "}")
                 .removeHeader("Link")
-                .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.GET))
                 .setBody(constant(null))
+                .process(e -> e.setProperty(PROPERTY_BATCH_FETCH_MILLIS, System.currentTimeMillis()))
+                .process(e -> usePrefetchedBatchIfAvailable(e))
+                .choice()
+                .when(header(HEADER_PREFETCHED_BATCH).isNull())
+                .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.GET))
                 .toD("${header." + HEADER_NEXT_BATCH_URL + "}")
+                .end()
+                // Time spent waiting for page, ie response time for Tiamat unless page was prefetched or spooled
+                .process(e -> e.setProperty(PROPERTY_BATCH_FETCH_MILLIS, System.currentTimeMillis() - e.getProperty(PROPERTY_BATCH_FETCH_MILLIS, Long.class)))
+                .removeHeader(HEADER_PREFETCHED_BATCH)
+                .setHeader(HEADER_CURRENT_BATCH_URL, header(HEADER_NEXT_BATCH_URL))
                 .removeHeader(HEADER_NEXT_BATCH_URL)
                 .choice()
                 .when(simple("${header." + Exchange.HTTP_RESPONSE_CODE + "} == 200"))
+                .process(e -> prefetchNextBatch(e))
                 .toD("${header." + Constants.HEADER_PROCESS_TARGET + "}")
                 .choice()
                 .when(simple("${header.Link}"))
@@ -82,6 +123,70 @@ public class TiamatPollForStopPlaceChangesRouteBuilder extends BaseRouteBuilder
                 .end()
                 .routeId("tiamat-get-batch-of-changed-stop-places-as-netex");
 
+        from("direct:fetchBatchOfChangedStopPlacesAsNetex")
+                .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.GET))
+                .setBody(constant(null))
+                .toD("${header." + HEADER_NEXT_BATCH_URL + "}")
+                .filter(simple("${header." + Exchange.HTTP_RESPONSE_CODE + "} == 200"))
+                .process(e -> netexPagePrefetcher.store(e))
+                .end()
+                .routeId("tiamat-prefetch-batch-of-changed-stop-places-as-netex");
+
+        // Current version of stop places with ids in body (collection), as NeTEx publication delivery
+        from("direct:fetchStopPlacesAsNetex")
+                .process(e -> e.setProperty(PROPERTY_STOP_PLACES_URL, createStopPlacesURL(e.getIn().getBody(Collection.class))))
+                .removeHeaders("CamelHttp*")
+                .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.GET))
+                .setBody(constant(null))
+                .toD("${exchangeProperty." + PROPERTY_STOP_PLACES_URL + "}")
+                .routeId("tiamat-fetch-stop-places-as-netex");
+    }
+
+    private void usePrefetchedBatchIfAvailable(Exchange e) {
+        String url = e.getIn().getHeader(HEADER_NEXT_BATCH_URL, String.class);
+        if (useSpooledBatchIfAvailable(e, url, netexPageSpool.take(url)) || !netexPagePrefetcher.isEnabled()) {
+            return;
+        }
+        useSpooledBatchIfAvailable(e, url, netexPagePrefetcher.take(url));
+    }
+
+    /**
+     * Use page spooled when Chouette rejected it or when it was prefetched, if any. Spooled page is deleted when exchange is done.
+     */
+    private boolean useSpooledBatchIfAvailable(Exchange e, String url, NetexPageSpool.SpooledPage page) {
+        if (page == null) {
+            return false;
+        }
+        try {
+            InputStream body = page.open();
+            e.addOnCompletion(new SynchronizationAdapter() {
+                @Override
+                public void onDone(Exchange exchange) {
+                    IOHelper.close(body);
+                    page.delete();
+                }
+            });
+            logger.info("Using spooled batch of changed stop places: " + url);
+            e.getIn().setHeader(HEADER_PREFETCHED_BATCH, true);
+            e.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
+            e.getIn().setHeader("Link", page.link);
+            e.getIn().setBody(body);
+            return true;
+        } catch (IOException ioe) {
+            logger.warn("Unable to read spooled batch, fetching again: " + url + ": " + ioe.getMessage());
+            page.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Start fetching next page(s) while current page is being processed.
+     */
+    private void prefetchNextBatch(Exchange e) {
+        String link = e.getIn().getHeader("Link", String.class);
+        if (netexPagePrefetcher.isEnabled() && link != null) {
+            netexPagePrefetcher.prefetch(parseNextBatchUrl(link));
+        }
     }
 
     private void setPollForChangesURL(Exchange e) {
@@ -101,6 +206,7 @@ public class TiamatPollForStopPlaceChangesRouteBuilder extends BaseRouteBuilder
             Instant to = Instant.ofEpochMilli(toAsEpocMillis);
             uriBuilder.queryParam("to", to.atZone(TIME_ZONE_ID).format(FORMATTER));
         }
+        int batchSize = pageSizeController.getPageSize();
         if (batchSize > 0) {
             uriBuilder.queryParam("per_page", batchSize);
         }
@@ -109,13 +215,25 @@ public class TiamatPollForStopPlaceChangesRouteBuilder extends BaseRouteBuilder
     }
 
 
+    private String createStopPlacesURL(Collection<?> ids) {
+        UriBuilder uriBuilder = new JerseyUriBuilder().path(toHttp4Url(tiamatUrl) + stopPlacesNetexPath);
+        uriBuilder.queryParam("topographicPlaceExportMode", "NONE");
+        uriBuilder.queryParam("tariffZoneExportMode", "NONE");
+        uriBuilder.queryParam("idList", ids.toArray());
+        uriBuilder.queryParam("size", ids.size());
+        return uriBuilder.build().toString();
+    }
+
     /**
      * URL to next page of result set is encoded as Link header (rel="next")
      */
     private void setURLToNextBatch(Exchange e) {
-        e.getIn().setHeader(HEADER_NEXT_BATCH_URL, toHttp4Url(e.getIn().getHeader("Link", String.class)
-                .replaceFirst("\\<", "")
-                .replaceFirst("\\>; rel=\"next\"", "")));
+        e.getIn().setHeader(HEADER_NEXT_BATCH_URL, parseNextBatchUrl(e.getIn().getHeader("Link", String.class)));
+    }
+
+    static String parseNextBatchUrl(String link) {
+        return toHttp4Url(link.replaceFirst("\\<", "")
+                                  .replaceFirst("\\>; rel=\"next\"", ""));
     }
 
 }
@@ -20,6 +20,9 @@ import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
 import org.rutebanken.irkalla.Constants;
 import org.rutebanken.irkalla.routes.BaseRouteBuilder;
+import org.rutebanken.irkalla.routes.chouette.AdaptiveGraceWindow;
+import org.rutebanken.irkalla.routes.chouette.StopPlaceSyncSharding;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.time.Instant;
@@ -34,6 +37,12 @@ import java.time.Instant;
 @Component
 public class TiamatStopPlaceChangedRouteBuilder extends BaseRouteBuilder {
 
+    @Autowired
+    private AdaptiveGraceWindow graceWindow;
+
+    @Autowired
+    private StopPlaceSyncSharding syncSharding;
+
     @Override
     public void configure() throws Exception {
         super.configure();
@@ -41,6 +50,7 @@ public class TiamatStopPlaceChangedRouteBuilder extends BaseRouteBuilder {
         from("direct:handleStopPlaceChanged")
                 .choice()
                 .when(simple("${header." + Constants.HEADER_CRUD_ACTION + "} == ${type:org.rutebanken.irkalla.domain.CrudAction.DELETE}"))
+                .process(e -> syncSharding.assignDeletePartition(e, e.getIn().getHeader(Constants.HEADER_ENTITY_ID, String.class)))
                 .setBody(constant(null))
                 .to("activemq:queue:ChouetteStopPlaceDeleteQueue")
                 .otherwise()
@@ -51,28 +61,33 @@ public class TiamatStopPlaceChangedRouteBuilder extends BaseRouteBuilder {
                                                 " ${header." + Constants.HEADER_ENTITY_ID + "} " +
                                                 "v: ${header." + Constants.HEADER_ENTITY_VERSION + "} ")
                     .otherwise()
-                    .process(e -> e.getIn().setHeader("isEffective", isChangeEffective(e)))
+                    .process(e -> e.getIn().setHeader(Constants.HEADER_CHANGE_TIME, getChangeTime(e)))
+                    .process(e -> recordCommitLag(e))
                     .bean("stopPlaceChangedToEvent", "toEvent")
                     .convertBodyTo(String.class)
                     .to("activemq:queue:CrudEventQueue")
 
-                        .to("direct:triggerStopPlaceSyncIfChangeIsEffective")
+                        .to("direct:triggerTargetedSynchronization")
+                        .to("direct:triggerDeltaSynchronization")
                     .endChoice()
                 .end()
                 .routeId("tiamat-stop-place-changed");
 
-        from("direct:triggerStopPlaceSyncIfChangeIsEffective")
-                .choice()
-                .when(simple("${header.isEffective}"))
-                .setBody(constant(null))
-                .to("activemq:queue:ChouetteStopPlaceSyncQueue")
-                .routeId("tiamat-trigger-chouette-update-for-changed-stop");
-
     }
 
-    private boolean isChangeEffective(Exchange e) {
+    private Long getChangeTime(Exchange e) {
         Instant changeTime = e.getIn().getBody(StopPlaceChange.class).getChangeTime();
-        return changeTime != null && changeTime.isBefore(Instant.now());
+        return changeTime == null ? null : changeTime.toEpochMilli();
+    }
+
+    /**
+     * Stop place has just been read from Tiamat, so the change has been committed by now.
+     */
+    private void recordCommitLag(Exchange e) {
+        Instant changeTime = e.getIn().getBody(StopPlaceChange.class).getRegisteredChangeTime();
+        if (changeTime != null) {
+            graceWindow.commitLagObserved(changeTime.toEpochMilli(), System.currentTimeMillis());
+        }
     }
 
 
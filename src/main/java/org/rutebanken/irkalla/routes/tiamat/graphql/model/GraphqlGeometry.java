@@ -16,23 +16,59 @@
 package org.rutebanken.irkalla.routes.tiamat.graphql.model;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Geometry as returned by Tiamat GraphQL API.
+ * <p>
+ * Coordinates are serialized as a list of positions (ie [[x,y]] for a point), but are held in a flat primitive array
+ * with 'dimension' values per position to avoid boxing every ordinate.
+ */
 @JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonSerialize(using = GraphqlGeometrySerializer.class)
+@JsonDeserialize(using = GraphqlGeometryDeserializer.class)
 public class GraphqlGeometry {
+
+    public static final int DEFAULT_DIMENSION = 2;
+
     public String type;
 
-    public List<List<Double>> coordinates;
+    public double[] coordinates;
 
-    public GraphqlGeometry(String type, List<List<Double>> coordinates) {
+    public int dimension = DEFAULT_DIMENSION;
+
+    public GraphqlGeometry(String type, double[] coordinates, int dimension) {
         this.type = type;
         this.coordinates = coordinates;
+        this.dimension = dimension;
+    }
+
+    public GraphqlGeometry(String type, List<List<Double>> coordinates) {
+        this.type = type;
+        if (coordinates != null) {
+            this.dimension = coordinates.isEmpty() ? DEFAULT_DIMENSION : coordinates.get(0).size();
+            this.coordinates = coordinates.stream().flatMap(List::stream).mapToDouble(c -> c).toArray();
+        }
     }
 
     public GraphqlGeometry() {
     }
 
+    public int getPositionCount() {
+        if (coordinates == null || dimension <= 0) {
+            return 0;
+        }
+        return coordinates.length / dimension;
+    }
+
+    public double getOrdinate(int position, int ordinate) {
+        return coordinates[position * dimension + ordinate];
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -41,13 +77,14 @@ public class GraphqlGeometry {
         GraphqlGeometry that = (GraphqlGeometry) o;
 
         if (type != null ? !type.equals(that.type) : that.type != null) return false;
-        return coordinates != null ? coordinates.equals(that.coordinates) : that.coordinates == null;
+        if (coordinates != null && dimension != that.dimension) return false;
+        return Arrays.equals(coordinates, that.coordinates);
     }
 
     @Override
     public int hashCode() {
         int result = type != null ? type.hashCode() : 0;
-        result = 31 * result + (coordinates != null ? coordinates.hashCode() : 0);
+        result = 31 * result + Arrays.hashCode(coordinates);
         return result;
     }
 
@@ -55,7 +92,21 @@ public class GraphqlGeometry {
     public String toString() {
         return "Geometry{" +
                        "type='" + type + '\'' +
-                       ", coordinates=" + coordinates +
+                       ", coordinates=" + coordinatesToString() +
                        '}';
     }
-}
\ No newline at end of file
+
+    private String coordinatesToString() {
+        if (coordinates == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder("[");
+        for (int position = 0; position < getPositionCount(); position++) {
+            if (position > 0) {
+                sb.append(", ");
+            }
+            sb.append(Arrays.toString(Arrays.copyOfRange(coordinates, position * dimension, (position + 1) * dimension)));
+        }
+        return sb.append("]").toString();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat.graphql.model;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Read GraphQL geometry directly into flat primitive coordinate storage, without intermediate lists of boxed doubles.
+ */
+public class GraphqlGeometryDeserializer extends StdDeserializer<GraphqlGeometry> {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    public GraphqlGeometryDeserializer() {
+        super(GraphqlGeometry.class);
+    }
+
+    @Override
+    public GraphqlGeometry deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+        if (p.getCurrentToken() != JsonToken.START_OBJECT) {
+            return (GraphqlGeometry) ctxt.handleUnexpectedToken(GraphqlGeometry.class, p);
+        }
+
+        GraphqlGeometry geometry = new GraphqlGeometry();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = p.getCurrentName();
+            JsonToken token = p.nextToken();
+            if ("type".equals(fieldName)) {
+                geometry.type = token == JsonToken.VALUE_NULL ? null : InternedStringDeserializer.intern(p.getValueAsString());
+            } else if ("coordinates".equals(fieldName)) {
+                readCoordinates(p, geometry);
+            } else {
+                p.skipChildren();
+            }
+        }
+        return geometry;
+    }
+
+    private void readCoordinates(JsonParser p, GraphqlGeometry geometry) throws IOException {
+        if (p.getCurrentToken() == JsonToken.VALUE_NULL) {
+            geometry.coordinates = null;
+            return;
+        }
+        if (p.getCurrentToken() != JsonToken.START_ARRAY) {
+            throw JsonMappingException.from(p, "Expected array of positions for geometry coordinates, got: " + p.getCurrentToken());
+        }
+
+        double[] buffer = new double[INITIAL_CAPACITY];
+        int size = 0;
+        int dimension = -1;
+
+        while (p.nextToken() == JsonToken.START_ARRAY) {
+            int positionSize = 0;
+            while (p.nextToken() != JsonToken.END_ARRAY) {
+                if (size == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                buffer[size++] = p.getDoubleValue();
+                positionSize++;
+            }
+            if (dimension < 0) {
+                dimension = positionSize;
+            } else if (dimension != positionSize) {
+                throw JsonMappingException.from(p, "Inconsistent number of ordinates in geometry coordinates: " + dimension + " and " + positionSize);
+            }
+        }
+        if (p.getCurrentToken() != JsonToken.END_ARRAY) {
+            throw JsonMappingException.from(p, "Expected array of positions for geometry coordinates, got: " + p.getCurrentToken());
+        }
+
+        geometry.coordinates = size == buffer.length ? buffer : Arrays.copyOf(buffer, size);
+        geometry.dimension = dimension < 0 ? GraphqlGeometry.DEFAULT_DIMENSION : dimension;
+    }
+}
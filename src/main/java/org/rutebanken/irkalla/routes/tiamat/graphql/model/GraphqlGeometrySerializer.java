@@ -0,0 +1,52 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat.graphql.model;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+
+/**
+ * Write flat coordinate storage back to the GraphQL wire format (list of positions).
+ */
+public class GraphqlGeometrySerializer extends StdSerializer<GraphqlGeometry> {
+
+    public GraphqlGeometrySerializer() {
+        super(GraphqlGeometry.class);
+    }
+
+    @Override
+    public void serialize(GraphqlGeometry geometry, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        gen.writeStartObject();
+        if (geometry.type != null) {
+            gen.writeStringField("type", geometry.type);
+        }
+        if (geometry.coordinates != null) {
+            gen.writeArrayFieldStart("coordinates");
+            for (int position = 0; position < geometry.getPositionCount(); position++) {
+                gen.writeStartArray();
+                for (int ordinate = 0; ordinate < geometry.dimension; ordinate++) {
+                    gen.writeNumber(geometry.getOrdinate(position, ordinate));
+                }
+                gen.writeEndArray();
+            }
+            gen.writeEndArray();
+        }
+        gen.writeEndObject();
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat.graphql.model;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdScalarDeserializer;
+import com.fasterxml.jackson.databind.deser.std.StringDeserializer;
+import org.rutebanken.irkalla.util.StringInterner;
+
+import java.io.IOException;
+
+/**
+ * Deserialize strings with low cardinality (types, user names, topographic place names etc) through a shared, bounded pool,
+ * so that stop places kept in memory reference the same instances instead of holding a copy each.
+ */
+public class InternedStringDeserializer extends StdScalarDeserializer<String> {
+
+    private static final int MAX_POOL_SIZE = 10000;
+
+    private static final StringInterner INTERNER = new StringInterner(MAX_POOL_SIZE);
+
+    public InternedStringDeserializer() {
+        super(String.class);
+    }
+
+    @Override
+    public String deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+        return intern(StringDeserializer.instance.deserialize(p, ctxt));
+    }
+
+    public static String intern(String value) {
+        return INTERNER.intern(value);
+    }
+}
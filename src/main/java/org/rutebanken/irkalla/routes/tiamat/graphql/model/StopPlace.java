@@ -17,6 +17,7 @@ package org.rutebanken.irkalla.routes.tiamat.graphql.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -28,7 +29,9 @@ public class StopPlace {
     public Long version;
     public Name name;
     public String versionComment;
+    @JsonDeserialize(using = InternedStringDeserializer.class)
     public String changedBy;
+    @JsonDeserialize(using = InternedStringDeserializer.class)
     public String stopPlaceType;
     public GraphqlGeometry geometry;
 
@@ -38,6 +41,7 @@ public class StopPlace {
 
     public ValidBetween validBetween;
 
+    @JsonDeserialize(using = InternedStringDeserializer.class)
     public String __typename;
 
 
@@ -16,6 +16,7 @@
 package org.rutebanken.irkalla.routes.tiamat.graphql.model;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
 @JsonInclude(JsonInclude.Include.NON_NULL)
 public class TopographicPlace {
@@ -24,5 +25,16 @@ public class TopographicPlace {
 
     public Name name;
 
+    @JsonDeserialize(using = InternedStringDeserializer.class)
     public String topographicPlaceType;
+
+    /**
+     * Topographic place names are shared by most stops, intern them. Stop and quay names are not.
+     */
+    public void setName(Name name) {
+        if (name != null) {
+            name.value = InternedStringDeserializer.intern(name.value);
+        }
+        this.name = name;
+    }
 }
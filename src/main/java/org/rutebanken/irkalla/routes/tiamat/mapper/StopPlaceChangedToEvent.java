@@ -24,9 +24,6 @@ import org.springframework.util.ObjectUtils;
 import org.wololo.geojson.Geometry;
 import org.wololo.geojson.Point;
 
-import java.util.ArrayList;
-import java.util.List;
-
 @Component
 public class StopPlaceChangedToEvent {
 
@@ -55,11 +52,9 @@ public class StopPlaceChangedToEvent {
 
     private Geometry toGeometry(GraphqlGeometry graphqlGeometry) {
 
-        if (graphqlGeometry != null && "Point".equals(graphqlGeometry.type)) {
-            List<Double> coordinates = new ArrayList<>();
-            graphqlGeometry.coordinates.forEach(coordList -> coordinates.addAll(coordList));
-
-            return new Point(coordinates.stream().mapToDouble(c -> c).toArray());
+        if (graphqlGeometry != null && "Point".equals(graphqlGeometry.type) && graphqlGeometry.coordinates != null) {
+            // Flat coordinate storage is already in GeoJSON point layout, copy to avoid sharing the mutable array
+            return new Point(graphqlGeometry.coordinates.clone());
         }
         return null;
     }
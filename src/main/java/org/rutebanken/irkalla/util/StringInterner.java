@@ -0,0 +1,59 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded, thread safe pool for deduplicating frequently repeated string values.
+ * <p>
+ * Once the pool is full new values are returned as is, so a flood of unique values cannot grow the pool unbounded.
+ */
+public class StringInterner {
+
+    private final int maxSize;
+
+    private final ConcurrentMap<String, String> pool;
+
+    public StringInterner(int maxSize) {
+        this.maxSize = maxSize;
+        this.pool = new ConcurrentHashMap<>(Math.min(maxSize, 1024));
+    }
+
+    public String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String existing = pool.get(value);
+        if (existing != null) {
+            return existing;
+        }
+        if (pool.size() >= maxSize) {
+            return value;
+        }
+        existing = pool.putIfAbsent(value, value);
+        return existing != null ? existing : value;
+    }
+
+    public int size() {
+        return pool.size();
+    }
+
+    public void clear() {
+        pool.clear();
+    }
+}
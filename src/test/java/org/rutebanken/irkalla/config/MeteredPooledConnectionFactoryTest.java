@@ -0,0 +1,82 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.config;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jms.core.JmsTemplate;
+
+import javax.jms.ConnectionFactory;
+
+public class MeteredPooledConnectionFactoryTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MeteredPooledConnectionFactoryTest.class);
+
+    private static final String BROKER_URL = "vm://irkalla-pool-test?broker.persistent=false&broker.useJmx=false";
+
+    @Test
+    public void connectionAndSessionsAreReusedForSends() {
+        MeteredPooledConnectionFactory pooledConnectionFactory = new MeteredPooledConnectionFactory(new ActiveMQConnectionFactory(BROKER_URL));
+        try {
+            JmsTemplate jmsTemplate = new JmsTemplate(pooledConnectionFactory);
+            for (int i = 0; i < 100; i++) {
+                jmsTemplate.convertAndSend("IrkallaPoolTestQueue", "msg" + i);
+            }
+
+            Assert.assertEquals(1, pooledConnectionFactory.getConnectionsCreated());
+            Assert.assertEquals(1, pooledConnectionFactory.getPooledConnections());
+            Assert.assertEquals(1, pooledConnectionFactory.getPooledSessions());
+            Assert.assertEquals(0, pooledConnectionFactory.getActiveSessions());
+        } finally {
+            pooledConnectionFactory.stop();
+        }
+    }
+
+    @Test
+    @Ignore // Benchmark, messages/sec sent to embedded broker with and without pooling
+    public void sendThroughputBenchmark() {
+        int messageCount = 20000;
+        ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory(BROKER_URL);
+        MeteredPooledConnectionFactory pooledConnectionFactory = new MeteredPooledConnectionFactory(connectionFactory);
+        try {
+            // Keep broker running between runs
+            pooledConnectionFactory.createConnection();
+
+            long unpooledRate = sendRate(connectionFactory, messageCount);
+            long pooledRate = sendRate(pooledConnectionFactory, messageCount);
+
+            logger.info("Sent {} messages: unpooled {} msg/s, pooled {} msg/s, connections created by pool: {}", messageCount, unpooledRate, pooledRate,
+                    pooledConnectionFactory.getConnectionsCreated());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            pooledConnectionFactory.stop();
+        }
+    }
+
+    private long sendRate(ConnectionFactory connectionFactory, int messageCount) {
+        JmsTemplate jmsTemplate = new JmsTemplate(connectionFactory);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < messageCount; i++) {
+            jmsTemplate.convertAndSend("IrkallaPoolBenchmarkQueue", "msg" + i);
+        }
+        return messageCount * 1000L / Math.max(1, System.currentTimeMillis() - start);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveGraceWindowTest {
+
+    @Test
+    public void fixedGraceUntilEnoughSamples() {
+        AdaptiveGraceWindow graceWindow = new AdaptiveGraceWindow(30000, true, 99, 2000, 120000, 100);
+        observe(graceWindow, AdaptiveGraceWindow.MIN_SAMPLES - 1, 500);
+
+        Assert.assertEquals(30000, graceWindow.getGraceMillis());
+    }
+
+    @Test
+    public void graceFollowsHighPercentileOfCommitLag() {
+        AdaptiveGraceWindow graceWindow = new AdaptiveGraceWindow(30000, true, 90, 1000, 120000, 100);
+        observe(graceWindow, 90, 2000);
+        observe(graceWindow, 10, 20000);
+
+        Assert.assertEquals(2000, graceWindow.getGraceMillis());
+
+        // Lag under load pushes grace up
+        observe(graceWindow, 50, 20000);
+        Assert.assertEquals(20000, graceWindow.getGraceMillis());
+    }
+
+    @Test
+    public void graceIsBoundedByFloorAndCeiling() {
+        AdaptiveGraceWindow graceWindow = new AdaptiveGraceWindow(30000, true, 99, 2000, 60000, 100);
+        observe(graceWindow, 100, 50);
+        Assert.assertEquals(2000, graceWindow.getGraceMillis());
+
+        observe(graceWindow, 100, 600000);
+        Assert.assertEquals(60000, graceWindow.getGraceMillis());
+    }
+
+    @Test
+    public void futureChangesAreIgnored() {
+        AdaptiveGraceWindow graceWindow = new AdaptiveGraceWindow(30000, true, 99, 2000, 60000, 100);
+        long now = System.currentTimeMillis();
+        graceWindow.commitLagObserved(now + 3600000, now);
+
+        Assert.assertEquals(0, graceWindow.getSampleCount());
+        Assert.assertNull(graceWindow.getCommitLagPercentile(50));
+    }
+
+    @Test
+    public void fixedGraceWhenNotAdaptive() {
+        AdaptiveGraceWindow graceWindow = new AdaptiveGraceWindow(30000, false, 99, 2000, 60000, 100);
+        observe(graceWindow, 100, 50);
+
+        Assert.assertEquals(30000, graceWindow.getGraceMillis());
+        Assert.assertEquals(50, graceWindow.getMedianCommitLagMillis());
+    }
+
+    private void observe(AdaptiveGraceWindow graceWindow, int count, long lag) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            graceWindow.commitLagObserved(now - lag, now);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ChouetteBusyBackoffTest {
+
+    @Test
+    public void delayGrowsExponentiallyWithJitter() {
+        for (int i = 0; i < 100; i++) {
+            assertBetween(500, 1000, ChouetteBusyBackoff.delay(1, 1000, 60000));
+            assertBetween(1000, 2000, ChouetteBusyBackoff.delay(2, 1000, 60000));
+            assertBetween(4000, 8000, ChouetteBusyBackoff.delay(4, 1000, 60000));
+        }
+    }
+
+    @Test
+    public void delayIsCapped() {
+        for (int i = 0; i < 100; i++) {
+            assertBetween(30000, 60000, ChouetteBusyBackoff.delay(10, 1000, 60000));
+            assertBetween(30000, 60000, ChouetteBusyBackoff.delay(1000, 1000, 60000));
+        }
+    }
+
+    private void assertBetween(long min, long max, long actual) {
+        Assert.assertTrue("Expected delay between " + min + " and " + max + ", was " + actual, actual >= min && actual <= max);
+    }
+}
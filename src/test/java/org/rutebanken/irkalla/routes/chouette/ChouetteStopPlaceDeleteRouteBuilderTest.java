@@ -15,17 +15,25 @@
 
 package org.rutebanken.irkalla.routes.chouette;
 
+import org.apache.activemq.ScheduledMessage;
 import org.apache.camel.EndpointInject;
+import org.apache.camel.Exchange;
 import org.apache.camel.Produce;
 import org.apache.camel.ProducerTemplate;
 import org.apache.camel.builder.AdviceWithRouteBuilder;
 import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.http.common.HttpOperationFailedException;
+import org.junit.Assert;
 import org.junit.Test;
 import org.rutebanken.irkalla.Constants;
 import org.rutebanken.irkalla.routes.RouteBuilderIntegrationTestBase;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.test.annotation.DirtiesContext;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
 import static org.rutebanken.irkalla.util.Http4URL.toHttp4Url;
 
 @DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
@@ -41,6 +49,15 @@ public class ChouetteStopPlaceDeleteRouteBuilderTest extends RouteBuilderIntegra
     @EndpointInject(uri = "mock:chouetteDeleteStopPlace")
     protected MockEndpoint chouetteDeleteStopPlace;
 
+    @EndpointInject(uri = "mock:chouetteStopPlaceDeleteQueue")
+    protected MockEndpoint chouetteStopPlaceDeleteQueueMock;
+
+    @EndpointInject(uri = "mock:deadLetterQueue")
+    protected MockEndpoint deadLetterQueueMock;
+
+    @Produce(uri = "direct:handleFailedDeleteStopPlaces")
+    protected ProducerTemplate handleFailedDeleteStopPlaces;
+
     @Test
     public void testDeleteStopPlace() throws Exception {
 
@@ -62,4 +79,118 @@ public class ChouetteStopPlaceDeleteRouteBuilderTest extends RouteBuilderIntegra
 
         chouetteDeleteStopPlace.assertIsSatisfied();
     }
+
+    @Test
+    public void testDeleteStopPlaceRetryWhenChouetteIsBusy() throws Exception {
+
+        String stopPlaceId = "NSR:StopPlace:33";
+
+        context.getRouteDefinition("chouette-delete-stop-place").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint(toHttp4Url(chouetteUrl) + "/chouette_iev/stop_place/NSR:StopPlace:33")
+                        .skipSendToOriginalEndpoint().to("mock:chouetteDeleteStopPlace");
+            }
+        });
+
+        context.getRouteDefinition("chouette-retry-delete-stop-places").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint("activemq:queue:ChouetteStopPlaceDeleteQueue")
+                        .skipSendToOriginalEndpoint().to("mock:chouetteStopPlaceDeleteQueue");
+            }
+        });
+
+        context.start();
+        chouetteDeleteStopPlace.expectedMessageCount(1);
+        chouetteStopPlaceDeleteQueueMock.expectedMessageCount(1);
+
+        // Chouette is busy, returning 423 - "locked"
+        chouetteDeleteStopPlace.whenExchangeReceived(1, e -> {
+            throw new HttpOperationFailedException(null, 423, null, null, null, null);
+        });
+
+        deleteStopPlaces.sendBodyAndHeader(null, Constants.HEADER_ENTITY_ID, stopPlaceId);
+
+        chouetteDeleteStopPlace.assertIsSatisfied();
+        chouetteStopPlaceDeleteQueueMock.assertIsSatisfied();
+
+        Exchange retry = chouetteStopPlaceDeleteQueueMock.getExchanges().get(0);
+        Assert.assertEquals(stopPlaceId, retry.getIn().getHeader(Constants.HEADER_ENTITY_ID));
+        Assert.assertNotNull(retry.getIn().getHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY));
+    }
+
+    @Test
+    public void testFailedDeleteOfStopPlaceIsRetriedWithoutFailingOtherStopPlaces() throws Exception {
+
+        context.getRouteDefinition("chouette-delete-stop-place").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint(toHttp4Url(chouetteUrl) + "/chouette_iev/stop_place/*")
+                        .skipSendToOriginalEndpoint().to("mock:chouetteDeleteStopPlace");
+            }
+        });
+
+        context.getRouteDefinition("chouette-handle-failed-delete-stop-places").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint("activemq:queue:ChouetteStopPlaceDeleteQueue")
+                        .skipSendToOriginalEndpoint().to("mock:chouetteStopPlaceDeleteQueue");
+            }
+        });
+
+        context.start();
+        chouetteDeleteStopPlace.expectedMessageCount(2);
+        chouetteStopPlaceDeleteQueueMock.expectedMessageCount(1);
+
+        chouetteDeleteStopPlace.whenAnyExchangeReceived(e -> {
+            if ("NSR:StopPlace:1".equals(e.getIn().getHeader(Constants.HEADER_ENTITY_ID))) {
+                throw new HttpOperationFailedException(null, 500, null, null, null, null);
+            }
+        });
+
+        deleteStopPlaces.sendBodyAndHeader(null, Constants.HEADER_ENTITY_ID, "NSR:StopPlace:1");
+        deleteStopPlaces.sendBodyAndHeader(null, Constants.HEADER_ENTITY_ID, "NSR:StopPlace:2");
+
+        chouetteDeleteStopPlace.assertIsSatisfied();
+        chouetteStopPlaceDeleteQueueMock.assertIsSatisfied();
+
+        Exchange retry = chouetteStopPlaceDeleteQueueMock.getExchanges().get(0);
+        Assert.assertEquals("NSR:StopPlace:1", retry.getIn().getHeader(Constants.HEADER_ENTITY_ID));
+        Assert.assertEquals(1, retry.getIn().getHeader(Constants.HEADER_DELETE_FAILURES));
+        Assert.assertNotNull(retry.getIn().getHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY));
+    }
+
+    @Test
+    public void testStopPlaceFailingTooManyTimesIsMovedToDeadLetterQueue() throws Exception {
+
+        context.getRouteDefinition("chouette-handle-failed-delete-stop-places").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint("activemq:queue:ChouetteStopPlaceDeleteQueue")
+                        .skipSendToOriginalEndpoint().to("mock:chouetteStopPlaceDeleteQueue");
+                interceptSendToEndpoint("activemq:queue:ActiveMQ.DLQ")
+                        .skipSendToOriginalEndpoint().to("mock:deadLetterQueue");
+            }
+        });
+
+        context.start();
+        chouetteStopPlaceDeleteQueueMock.expectedMessageCount(1);
+        deadLetterQueueMock.expectedMessageCount(1);
+
+        Map<String, Integer> failures = new HashMap<>();
+        failures.put("NSR:StopPlace:1", 1);
+        failures.put("NSR:StopPlace:2", 6);
+        handleFailedDeleteStopPlaces.send(e -> {
+            e.setProperty("IrkallaDeleteFailures", failures);
+            e.getIn().setBody(Arrays.asList("NSR:StopPlace:1", "NSR:StopPlace:2"));
+        });
+
+        chouetteStopPlaceDeleteQueueMock.assertIsSatisfied();
+        deadLetterQueueMock.assertIsSatisfied();
+
+        Assert.assertEquals("NSR:StopPlace:1", chouetteStopPlaceDeleteQueueMock.getExchanges().get(0).getIn().getHeader(Constants.HEADER_ENTITY_ID));
+        Assert.assertEquals(2, chouetteStopPlaceDeleteQueueMock.getExchanges().get(0).getIn().getHeader(Constants.HEADER_DELETE_FAILURES));
+        Assert.assertEquals("NSR:StopPlace:2", deadLetterQueueMock.getExchanges().get(0).getIn().getHeader(Constants.HEADER_ENTITY_ID));
+    }
 }
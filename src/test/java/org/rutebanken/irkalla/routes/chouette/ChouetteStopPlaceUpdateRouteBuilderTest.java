@@ -25,6 +25,7 @@ import org.apache.camel.component.mock.MockEndpoint;
 import org.apache.camel.http.common.HttpOperationFailedException;
 import org.junit.Assert;
 import org.junit.Test;
+import org.rutebanken.irkalla.Constants;
 import org.rutebanken.irkalla.routes.RouteBuilderIntegrationTestBase;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.test.annotation.DirtiesContext;
@@ -50,6 +51,18 @@ public class ChouetteStopPlaceUpdateRouteBuilderTest extends RouteBuilderIntegra
     @Value("${tiamat.publication.delivery.path:/services/stop_places/netex/changed_in_period}")
     private String publicationDeliveryPath;
 
+    @Produce(uri = "activemq:queue:ChouetteStopPlaceIdsSyncQueue")
+    protected ProducerTemplate updateStopPlacesById;
+
+    @Value("${tiamat.stop.places.netex.path:/services/stop_places/netex}")
+    private String stopPlacesNetexPath;
+
+    @EndpointInject(uri = "mock:tiamatStopPlaces")
+    protected MockEndpoint tiamatStopPlaces;
+
+    @EndpointInject(uri = "mock:chouetteStopPlaceIdsSyncQueue")
+    protected MockEndpoint chouetteStopPlaceIdsSyncQueueMock;
+
     @EndpointInject(uri = "mock:chouetteUpdateStopPlaces")
     protected MockEndpoint chouetteUpdateStopPlaces;
 
@@ -212,5 +225,76 @@ public class ChouetteStopPlaceUpdateRouteBuilderTest extends RouteBuilderIntegra
         chouetteStopPlaceSyncQueueMock.assertIsSatisfied();
 
         Assert.assertNotNull(chouetteStopPlaceSyncQueueMock.getExchanges().get(0).getIn().getHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY));
+        // Retry should resume from rejected batch
+        Assert.assertNotNull(chouetteStopPlaceSyncQueueMock.getExchanges().get(0).getIn().getHeader(Constants.HEADER_NEXT_BATCH_URL));
+    }
+
+    @Test
+    public void testUpdateStopPlacesById() throws Exception {
+        adviceStopPlacesById();
+        context.start();
+
+        // Batch size is 2 in test
+        tiamatStopPlaces.expectedMessageCount(2);
+        chouetteUpdateStopPlaces.expectedMessageCount(2);
+        chouetteStopPlaceIdsSyncQueueMock.expectedMessageCount(0);
+
+        updateStopPlacesById.sendBody("NSR:StopPlace:1,NSR:StopPlace:2,NSR:StopPlace:3");
+
+        tiamatStopPlaces.assertIsSatisfied();
+        chouetteUpdateStopPlaces.assertIsSatisfied();
+        chouetteStopPlaceIdsSyncQueueMock.assertIsSatisfied();
+    }
+
+    @Test
+    public void testUpdateStopPlacesByIdRetryRemainingWhenChouetteIsBusy() throws Exception {
+        adviceStopPlacesById();
+        context.start();
+
+        tiamatStopPlaces.expectedMessageCount(2);
+        chouetteUpdateStopPlaces.expectedMessageCount(2);
+        chouetteStopPlaceIdsSyncQueueMock.expectedMessageCount(1);
+
+        // Chouette is busy, returning 423 - "locked" for second batch
+        chouetteUpdateStopPlaces.whenExchangeReceived(2, e -> {
+            throw new HttpOperationFailedException(null, 423, null, null, null, null);
+        });
+
+        updateStopPlacesById.sendBody("NSR:StopPlace:1,NSR:StopPlace:2,NSR:StopPlace:3,NSR:StopPlace:4,NSR:StopPlace:5");
+
+        tiamatStopPlaces.assertIsSatisfied();
+        chouetteUpdateStopPlaces.assertIsSatisfied();
+        chouetteStopPlaceIdsSyncQueueMock.assertIsSatisfied();
+
+        Exchange retry = chouetteStopPlaceIdsSyncQueueMock.getExchanges().get(0);
+        Assert.assertNotNull(retry.getIn().getHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY));
+        // Retry should resume from rejected batch
+        Assert.assertEquals("NSR:StopPlace:3,NSR:StopPlace:4,NSR:StopPlace:5", retry.getIn().getBody(String.class));
+    }
+
+    private void adviceStopPlacesById() throws Exception {
+        context.getRouteDefinition("tiamat-fetch-stop-places-as-netex").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint(toHttp4Url(tiamatUrl) + stopPlacesNetexPath + "*")
+                        .skipSendToOriginalEndpoint().to("mock:tiamatStopPlaces");
+            }
+        });
+
+        context.getRouteDefinition("chouette-upload-stop-places-by-id").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint(toHttp4Url(chouetteUrl) + "/chouette_iev/stop_place*")
+                        .skipSendToOriginalEndpoint().to("mock:chouetteUpdateStopPlaces");
+            }
+        });
+
+        context.getRouteDefinition("chouette-synchronize-stop-places-by-id").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint("activemq:queue:ChouetteStopPlaceIdsSyncQueue")
+                        .skipSendToOriginalEndpoint().to("mock:chouetteStopPlaceIdsSyncQueue");
+            }
+        });
     }
 }
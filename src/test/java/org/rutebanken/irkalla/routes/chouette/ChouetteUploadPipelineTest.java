@@ -0,0 +1,124 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ChouetteUploadPipelineTest {
+
+    private static final String REJECTED = "rejected";
+
+    private final DefaultCamelContext context = new DefaultCamelContext();
+
+    private ChouetteUploadPipeline pipeline;
+
+    @Before
+    public void setUp() {
+        pipeline = new ChouetteUploadPipeline(4);
+        pipeline.init();
+    }
+
+    @After
+    public void tearDown() {
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void uploadsInWindowRunConcurrently() {
+        ChouetteUploadPipeline.Window window = pipeline.openWindow();
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        window.submit("page1", () -> awaitOther(bothStarted));
+        window.submit("page2", () -> awaitOther(bothStarted));
+
+        ChouetteUploadPipeline.Result result = window.await(REJECTED);
+        Assert.assertEquals(2, result.uploadCount);
+        Assert.assertNull(result.rejectedUrl);
+        Assert.assertNull(result.failure);
+    }
+
+    @Test
+    public void resumeFromFirstRejectedPageAndShrinkWindow() {
+        int initialSize = pipeline.getWindowSize();
+        ChouetteUploadPipeline.Window window = pipeline.openWindow();
+        window.submit("page1", () -> upload(false));
+        window.submit("page2", () -> upload(true));
+        window.submit("page3", () -> upload(false));
+        window.submit("page4", () -> upload(true));
+
+        ChouetteUploadPipeline.Result result = window.await(REJECTED);
+        Assert.assertEquals("page2", result.rejectedUrl);
+        Assert.assertEquals(initialSize / 2, pipeline.getWindowSize());
+
+        ChouetteUploadPipeline.Window nextWindow = pipeline.openWindow();
+        for (int i = 0; i < initialSize / 2; i++) {
+            nextWindow.submit("page" + i, () -> upload(false));
+        }
+        Assert.assertTrue(nextWindow.isFull());
+        nextWindow.await(REJECTED);
+        Assert.assertEquals(initialSize / 2 + 1, pipeline.getWindowSize());
+    }
+
+    @Test
+    public void failureIsReported() {
+        ChouetteUploadPipeline.Window window = pipeline.openWindow();
+        window.submit("page1", () -> {
+            Exchange exchange = upload(false);
+            exchange.setException(new RuntimeException("failed"));
+            return exchange;
+        });
+
+        ChouetteUploadPipeline.Result result = window.await(REJECTED);
+        Assert.assertNotNull(result.failure);
+        Assert.assertEquals("page1", result.rejectedUrl);
+    }
+
+    @Test
+    public void exceptionThrownByUploadIsReported() {
+        RuntimeException failure = new RuntimeException("failed");
+        ChouetteUploadPipeline.Window window = pipeline.openWindow();
+        window.submit("page1", () -> upload(false));
+        window.submit("page2", () -> {
+            throw failure;
+        });
+
+        ChouetteUploadPipeline.Result result = window.await(REJECTED);
+        Assert.assertSame(failure, result.failure);
+        Assert.assertEquals("page2", result.rejectedUrl);
+    }
+
+    private Exchange awaitOther(CountDownLatch latch) throws InterruptedException {
+        latch.countDown();
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return upload(false);
+    }
+
+    private Exchange upload(boolean rejected) {
+        Exchange exchange = new DefaultExchange(context);
+        if (rejected) {
+            exchange.setProperty(REJECTED, true);
+        }
+        return exchange;
+    }
+}
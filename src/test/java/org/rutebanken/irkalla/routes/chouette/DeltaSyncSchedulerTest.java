@@ -0,0 +1,74 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DeltaSyncSchedulerTest {
+
+    @Test
+    public void changeIsOnlyCoveredByRunNotYetDue() {
+        DeltaSyncScheduler scheduler = new DeltaSyncScheduler(60000, 10);
+
+        Assert.assertEquals(Long.valueOf(0), scheduler.scheduleDelta("NSR:StopPlace:1", null));
+
+        // First run is due and may have been merged into another synchronization, schedule new run min interval later
+        Long delay = scheduler.scheduleDelta("NSR:StopPlace:2", null);
+        Assert.assertNotNull(delay);
+        Assert.assertTrue(delay > 50000 && delay <= 60000);
+
+        Assert.assertNull(scheduler.scheduleDelta("NSR:StopPlace:3", null));
+    }
+
+    @Test
+    public void runsAreKeptMinIntervalApart() {
+        DeltaSyncScheduler scheduler = new DeltaSyncScheduler(60000, 10);
+        scheduler.synchronizationStarted();
+
+        Long delay = scheduler.scheduleDelta("NSR:StopPlace:1", null);
+        Assert.assertNotNull(delay);
+        Assert.assertTrue(delay > 50000 && delay <= 60000);
+        Assert.assertNull(scheduler.scheduleDelta("NSR:StopPlace:2", null));
+    }
+
+    @Test
+    public void futureChangeIsScheduledWhenEffective() {
+        DeltaSyncScheduler scheduler = new DeltaSyncScheduler(0, 10);
+        long changeTime = System.currentTimeMillis() + 3600000;
+
+        Long delay = scheduler.scheduleDelta("NSR:StopPlace:1", changeTime);
+        Assert.assertTrue(delay > 3500000 && delay <= 3600000);
+
+        // Run scheduled for later change does not cover change effective now
+        Assert.assertEquals(Long.valueOf(0), scheduler.scheduleDelta("NSR:StopPlace:2", null));
+    }
+
+    @Test
+    public void lagIsRecordedForSynchronizedChanges() {
+        DeltaSyncScheduler scheduler = new DeltaSyncScheduler(0, 10);
+        long changeTime = System.currentTimeMillis() - 1000;
+        scheduler.scheduleDelta("NSR:StopPlace:1", changeTime);
+        scheduler.scheduleDelta("NSR:StopPlace:2", System.currentTimeMillis() + 3600000);
+        Assert.assertNull(scheduler.getLagPercentile(50));
+
+        scheduler.synchronizationStarted();
+        scheduler.synchronizationCompleted(System.currentTimeMillis());
+
+        Assert.assertEquals(1, scheduler.getLagHistory().size());
+        Assert.assertTrue(scheduler.getLagPercentile(50) >= 0);
+    }
+}
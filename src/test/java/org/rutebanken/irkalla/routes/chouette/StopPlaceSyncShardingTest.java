@@ -0,0 +1,45 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class StopPlaceSyncShardingTest {
+
+    @Test
+    public void stopPlacesAreSpreadOverAllDeletePartitions() {
+        StopPlaceSyncSharding sharding = new StopPlaceSyncSharding(true, 8);
+        Set<String> groups = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            groups.add(sharding.deletePartitionGroup("NSR:StopPlace:" + i));
+        }
+
+        Assert.assertEquals(8, groups.size());
+        Assert.assertEquals(sharding.deletePartitionGroup("NSR:StopPlace:1"), sharding.deletePartitionGroup("NSR:StopPlace:1"));
+    }
+
+    @Test
+    public void configuredTimeSlicesAreUsedWhenNotSharded() {
+        StopPlaceSyncSharding sharding = new StopPlaceSyncSharding(false, 8);
+
+        Assert.assertEquals(1, sharding.getMemberCount());
+        Assert.assertEquals(3, sharding.getTimeSliceCount(3, 4));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rutebanken.irkalla.IrkallaException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class StopPlaceVersionIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void onlyNewerVersionsAreUndelivered() {
+        StopPlaceVersionIndex index = createIndex();
+        index.update(Collections.singletonMap("NSR:StopPlace:1", "3"));
+
+        Assert.assertTrue(index.isDelivered("NSR:StopPlace:1", "2"));
+        Assert.assertTrue(index.isDelivered("NSR:StopPlace:1", "3"));
+        Assert.assertFalse(index.isDelivered("NSR:StopPlace:1", "4"));
+        Assert.assertFalse(index.isDelivered("NSR:StopPlace:2", "1"));
+
+        // Older version does not replace newer
+        index.update(Collections.singletonMap("NSR:StopPlace:1", "2"));
+        Assert.assertTrue(index.isDelivered("NSR:StopPlace:1", "3"));
+    }
+
+    @Test
+    public void idsNotOnExpectedFormAreNeverDelivered() {
+        StopPlaceVersionIndex index = createIndex();
+        Map<String, String> versions = new HashMap<>();
+        versions.put("XYZ:StopPlace:1", "1");
+        versions.put("NSR:StopPlace:abc", "1");
+        versions.put("NSR:StopPlace:2", "v1");
+        index.update(versions);
+
+        Assert.assertEquals(0, index.size());
+        Assert.assertFalse(index.isDelivered("XYZ:StopPlace:1", "1"));
+        Assert.assertFalse(index.isDelivered("NSR:StopPlace:2", null));
+    }
+
+    @Test(expected = IrkallaException.class)
+    public void indexFileMustBeConfiguredWhenEnabled() {
+        new StopPlaceVersionIndex(true, null, "NSR:StopPlace:", "NSR:Quay:");
+    }
+
+    @Test
+    public void tableGrowsBeyondInitialCapacity() {
+        StopPlaceVersionIndex.VersionTable table = new StopPlaceVersionIndex.VersionTable(16);
+        for (long key = 0; key < 100000; key++) {
+            table.put(key, key + 1);
+        }
+        table.put(5, 10);
+
+        Assert.assertEquals(100000, table.size());
+        Assert.assertEquals(10, table.get(5));
+        Assert.assertEquals(100000, table.get(99999));
+        Assert.assertEquals(-1, table.get(100000));
+        Assert.assertEquals(200000, table.entries().length);
+    }
+
+    @Test
+    public void indexIsSavedAndReloaded() {
+        StopPlaceVersionIndex index = createIndex();
+        index.update(Collections.singletonMap("NSR:StopPlace:1", "3"));
+        index.save();
+
+        StopPlaceVersionIndex reloaded = createIndex();
+        Assert.assertEquals(1, reloaded.size());
+        Assert.assertTrue(reloaded.isDelivered("NSR:StopPlace:1", "3"));
+
+        reloaded.clear();
+        reloaded.save();
+        Assert.assertEquals(0, createIndex().size());
+    }
+
+    @Test
+    public void deliveredStopPlacesAreRemovedFromPage() {
+        StopPlaceVersionIndex index = createIndex();
+        DeliveredStopPlaceFilter filter = new DeliveredStopPlaceFilter(index);
+
+        DeliveredStopPlaceFilter.FilteredPage firstPage = filter.filter(page(stopPlace("NSR:StopPlace:1", "1"), stopPlace("NSR:StopPlace:2", "1")), new ByteArrayOutputStream());
+        Assert.assertEquals(2, firstPage.undeliveredVersions.size());
+        index.update(firstPage.undeliveredVersions);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeliveredStopPlaceFilter.FilteredPage secondPage = filter.filter(page(stopPlace("NSR:StopPlace:1", "1"), stopPlace("NSR:StopPlace:2", "2")), out);
+        Assert.assertEquals(2, secondPage.stopPlaceCount);
+        Assert.assertEquals(1, secondPage.kept);
+        Assert.assertEquals(Collections.singletonMap("NSR:StopPlace:2", "2"), secondPage.undeliveredVersions);
+        String body = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertFalse(body.contains("NSR:StopPlace:1"));
+        Assert.assertTrue(body.contains("NSR:StopPlace:2"));
+
+        index.update(secondPage.undeliveredVersions);
+        Assert.assertEquals(0, filter.filter(page(stopPlace("NSR:StopPlace:2", "2")), new ByteArrayOutputStream()).kept);
+    }
+
+    @Test
+    public void stopPlaceWithChangedQuayIsUndelivered() {
+        StopPlaceVersionIndex index = createIndex();
+        DeliveredStopPlaceFilter filter = new DeliveredStopPlaceFilter(index);
+
+        DeliveredStopPlaceFilter.FilteredPage firstPage = filter.filter(page(stopPlace("NSR:StopPlace:1", "1", quay("NSR:Quay:1", "1"), quay("NSR:Quay:2", "1"))),
+                new ByteArrayOutputStream());
+        Assert.assertEquals("1", firstPage.undeliveredVersions.get("NSR:Quay:2"));
+        index.update(firstPage.undeliveredVersions);
+        Assert.assertEquals(0, filter.filter(page(stopPlace("NSR:StopPlace:1", "1", quay("NSR:Quay:1", "1"), quay("NSR:Quay:2", "1"))),
+                new ByteArrayOutputStream()).kept);
+
+        // Only quay changed, same version of stop place
+        DeliveredStopPlaceFilter.FilteredPage quayChangedPage = filter.filter(page(stopPlace("NSR:StopPlace:1", "1", quay("NSR:Quay:1", "1"), quay("NSR:Quay:2", "2"))),
+                new ByteArrayOutputStream());
+        Assert.assertEquals(1, quayChangedPage.kept);
+        Assert.assertEquals("2", quayChangedPage.undeliveredVersions.get("NSR:Quay:2"));
+
+        // Quay and stop place with same number are indexed separately
+        Assert.assertFalse(index.isDelivered("NSR:Quay:1", "2"));
+        Assert.assertTrue(index.isDelivered("NSR:StopPlace:1", "1"));
+    }
+
+    private StopPlaceVersionIndex createIndex() {
+        StopPlaceVersionIndex index = new StopPlaceVersionIndex(true, folder.getRoot().getAbsolutePath() + "/versions.bin", "NSR:StopPlace:", "NSR:Quay:");
+        index.init();
+        return index;
+    }
+
+    private String stopPlace(String id, String version, String... quays) {
+        return "<StopPlace version=\"" + version + "\" id=\"" + id + "\"><Name>Stop</Name><quays>" + String.join("", quays) + "</quays></StopPlace>";
+    }
+
+    private String quay(String id, String version) {
+        return "<Quay version=\"" + version + "\" id=\"" + id + "\"><PublicCode>1</PublicCode></Quay>";
+    }
+
+    private ByteArrayInputStream page(String... stopPlaces) {
+        String xml = "<PublicationDelivery xmlns=\"http://www.netex.org.uk/netex\" version=\"1.0\"><dataObjects><SiteFrame version=\"1\" id=\"NSR:SiteFrame:1\"><stopPlaces>"
+                             + String.join("", stopPlaces)
+                             + "</stopPlaces></SiteFrame></dataObjects></PublicationDelivery>";
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.apache.activemq.command.ActiveMQMessage;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.rutebanken.irkalla.Constants.*;
+
+public class SyncMsgMergerTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(SyncMsgMergerTest.class);
+
+    @Test
+    public void highestPriorityMessageIsSelected() throws Exception {
+        List<ActiveMQMessage> msgs = Arrays.asList(msg(SYNC_OPERATION_DELTA, null), msg(SYNC_OPERATION_FULL, null),
+                msg(SYNC_OPERATION_DELTA, "deltaUrl"), msg(SYNC_OPERATION_FULL, "fullUrl"));
+
+        SyncMsgMerger.MergedSyncMsg merged = SyncMsgMerger.merge(msgs);
+        Assert.assertEquals(SYNC_OPERATION_FULL, merged.syncOperation);
+        Assert.assertEquals("fullUrl", merged.nextBatchUrl);
+
+        merged = SyncMsgMerger.merge(Arrays.asList(msg(SYNC_OPERATION_FULL, "fullUrl"), msg(SYNC_OPERATION_FULL_WITH_DELETE_UNUSED_FIRST, null)));
+        Assert.assertEquals(SYNC_OPERATION_FULL_WITH_DELETE_UNUSED_FIRST, merged.syncOperation);
+        Assert.assertNull(merged.nextBatchUrl);
+    }
+
+    @Test
+    public void firstMessageWinsAmongEqualPriority() throws Exception {
+        SyncMsgMerger.MergedSyncMsg merged = SyncMsgMerger.merge(Arrays.asList(msg(SYNC_OPERATION_DELTA, null),
+                msg(SYNC_OPERATION_DELTA, "first"), msg(SYNC_OPERATION_DELTA, "second")));
+        Assert.assertEquals("first", merged.nextBatchUrl);
+    }
+
+    @Test
+    public void messagesWithoutOperationAreMergedToDelta() throws Exception {
+        SyncMsgMerger.MergedSyncMsg merged = SyncMsgMerger.merge(Arrays.asList(msg(null, null), msg(null, null)));
+        Assert.assertEquals(SYNC_OPERATION_DELTA, merged.syncOperation);
+        Assert.assertNull(merged.nextBatchUrl);
+
+        Assert.assertEquals(SYNC_OPERATION_DELTA, SyncMsgMerger.merge(new ArrayList<>()).syncOperation);
+    }
+
+    @Test
+    public void newFullSynchronizationIsForcedIfAnyMergedMessageForcesIt() throws Exception {
+        ActiveMQMessage forced = msg(SYNC_OPERATION_FULL, null);
+        forced.setProperty(HEADER_SYNC_FORCE_FULL, true);
+
+        Assert.assertEquals(Boolean.TRUE, SyncMsgMerger.merge(Arrays.asList(msg(SYNC_OPERATION_FULL, null), forced)).forceFull);
+        Assert.assertNull(SyncMsgMerger.merge(Arrays.asList(msg(SYNC_OPERATION_FULL, "url"), forced)).forceFull);
+    }
+
+    @Test
+    public void completeUploadDecisionIsKeptForOngoingSynchronization() throws Exception {
+        ActiveMQMessage ongoing = msg(SYNC_OPERATION_FULL, "url");
+        ongoing.setProperty(HEADER_SYNC_COMPLETE_UPLOAD, true);
+
+        Assert.assertEquals(Boolean.TRUE, SyncMsgMerger.merge(Arrays.asList(msg(SYNC_OPERATION_DELTA, null), ongoing)).completeUpload);
+    }
+
+    @Test
+    public void newDeltaMergedIntoOngoingSynchronizationIsKeptPending() throws Exception {
+        Assert.assertEquals(Boolean.TRUE, SyncMsgMerger.merge(Arrays.asList(msg(SYNC_OPERATION_FULL, "url"), msg(null, null))).deltaPending);
+        Assert.assertNull(SyncMsgMerger.merge(Arrays.asList(msg(SYNC_OPERATION_FULL, null), msg(null, null))).deltaPending);
+        Assert.assertNull(SyncMsgMerger.merge(Arrays.asList(msg(SYNC_OPERATION_DELTA, null), msg(null, null))).deltaPending);
+
+        ActiveMQMessage pending = msg(SYNC_OPERATION_FULL, "url");
+        pending.setProperty(HEADER_SYNC_DELTA_PENDING, true);
+        Assert.assertEquals(Boolean.TRUE, SyncMsgMerger.merge(Arrays.asList(pending, msg(SYNC_OPERATION_FULL, "other"))).deltaPending);
+    }
+
+    @Test
+    @Ignore // Benchmark, sorting vs single pass merge of batches of control messages
+    public void mergeBenchmark() throws Exception {
+        String[] operations = {null, SYNC_OPERATION_DELTA, SYNC_OPERATION_FULL};
+        for (int size : new int[]{100, 1000, 10000}) {
+            List<ActiveMQMessage> msgs = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                // Highest priority message near the end of the batch
+                String operation = i == size - 2 ? SYNC_OPERATION_FULL_WITH_DELETE_UNUSED_FIRST : operations[i % operations.length];
+                msgs.add(msg(operation, i % 7 == 0 ? "url" + i : null));
+            }
+            int iterations = Math.max(10, 1000000 / size);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                List<ActiveMQMessage> sorted = new ArrayList<>(msgs);
+                Collections.sort(sorted, new SyncMsgComparator());
+                Assert.assertEquals(SYNC_OPERATION_FULL_WITH_DELETE_UNUSED_FIRST, sorted.get(0).getProperty(HEADER_SYNC_OPERATION));
+            }
+            long sortNanos = (System.nanoTime() - start) / iterations;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                Assert.assertEquals(SYNC_OPERATION_FULL_WITH_DELETE_UNUSED_FIRST, SyncMsgMerger.merge(msgs).syncOperation);
+            }
+            long mergeNanos = (System.nanoTime() - start) / iterations;
+
+            logger.info("{} messages: sort {} us, single pass merge {} us", size, sortNanos / 1000, mergeNanos / 1000);
+        }
+    }
+
+    private ActiveMQMessage msg(String syncOperation, String nextBatchUrl) throws Exception {
+        ActiveMQMessage msg = new ActiveMQMessage();
+        msg.setProperty(HEADER_NEXT_BATCH_URL, nextBatchUrl);
+        msg.setProperty(HEADER_SYNC_OPERATION, syncOperation);
+        return msg;
+    }
+}
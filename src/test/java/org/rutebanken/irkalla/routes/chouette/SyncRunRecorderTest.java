@@ -0,0 +1,106 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.rutebanken.irkalla.Constants.SYNC_OPERATION_DELTA;
+import static org.rutebanken.irkalla.Constants.SYNC_OPERATION_FULL;
+
+public class SyncRunRecorderTest {
+
+    @Test
+    public void completedRunIsSummarizedInHistory() {
+        SyncRunRecorder recorder = new SyncRunRecorder(10, 60000);
+        String runId = recorder.runStarted(SYNC_OPERATION_FULL);
+        for (int i = 1; i <= 100; i++) {
+            recorder.pageFetched(runId, 1000, 10, (long) i);
+            recorder.chouetteCompleted(runId, i * 10);
+        }
+        recorder.chouetteBusy(runId, 5);
+        recorder.retryScheduled(runId);
+        recorder.runCompleted(runId);
+
+        List<SyncRunRecorder.SyncRunReport> runs = recorder.getRuns();
+        Assert.assertEquals(1, runs.size());
+        SyncRunRecorder.SyncRunReport run = runs.get(0);
+        Assert.assertEquals(SyncRunRecorder.STATUS_COMPLETED, run.status);
+        Assert.assertEquals(SYNC_OPERATION_FULL, run.operation);
+        Assert.assertEquals(100, run.pages);
+        Assert.assertEquals(100000, run.bytes);
+        Assert.assertEquals(1000, run.stopPlaces);
+        Assert.assertEquals(1, run.chouetteBusyCount);
+        Assert.assertEquals(1, run.retries);
+        Assert.assertNotNull(run.endTime);
+
+        Assert.assertEquals(100, run.tiamatLatency.count);
+        Assert.assertEquals(50, run.tiamatLatency.p50);
+        Assert.assertEquals(99, run.tiamatLatency.p99);
+        Assert.assertEquals(100, run.tiamatLatency.max);
+        Assert.assertEquals(101, run.chouetteLatency.count);
+        Assert.assertEquals(900, run.chouetteLatency.p90);
+
+        Assert.assertEquals(1, recorder.getCompletedRuns());
+        Assert.assertEquals(1, recorder.getChouetteBusyCount());
+        Assert.assertEquals(1000, recorder.getStopPlacesFetched());
+    }
+
+    @Test
+    public void newRunSupersedesRunNotSliced() {
+        SyncRunRecorder recorder = new SyncRunRecorder(10, 60000);
+        String superseded = recorder.runStarted(SYNC_OPERATION_DELTA);
+        String sliced = recorder.runStarted(SYNC_OPERATION_FULL);
+        recorder.runSliced(sliced);
+        String delta = recorder.runStarted(SYNC_OPERATION_DELTA);
+
+        Assert.assertFalse(recorder.isActive(superseded));
+        Assert.assertTrue(recorder.isActive(sliced));
+        Assert.assertTrue(recorder.isActive(delta));
+        Assert.assertEquals(1, recorder.getAbandonedRuns());
+
+        List<SyncRunRecorder.SyncRunReport> runs = recorder.getRuns();
+        Assert.assertEquals(3, runs.size());
+        Assert.assertEquals(SyncRunRecorder.STATUS_RUNNING, runs.get(0).status);
+        Assert.assertEquals(SyncRunRecorder.STATUS_ABANDONED, runs.get(2).status);
+    }
+
+    @Test
+    public void historyIsBounded() {
+        SyncRunRecorder recorder = new SyncRunRecorder(2, 60000);
+        String first = recorder.runStarted(SYNC_OPERATION_DELTA);
+        recorder.runCompleted(first);
+        for (int i = 0; i < 4; i++) {
+            recorder.runCompleted(recorder.runStarted(SYNC_OPERATION_DELTA));
+        }
+        Assert.assertEquals(2, recorder.getRuns().size());
+        Assert.assertEquals(5, recorder.getCompletedRuns());
+        Assert.assertTrue(recorder.getRuns().stream().noneMatch(run -> run.runId.equals(first)));
+    }
+
+    @Test
+    public void unknownRunIsIgnored() {
+        SyncRunRecorder recorder = new SyncRunRecorder(10, 60000);
+        recorder.pageFetched(null, 1000, 10, 1L);
+        recorder.chouetteBusy("unknown", 1);
+        recorder.runCompleted("unknown");
+
+        Assert.assertTrue(recorder.getRuns().isEmpty());
+        Assert.assertEquals(0, recorder.getPagesFetched());
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TargetedSyncLaneTest {
+
+    @Test
+    public void laneIsCreditedWithShareOfFullSyncTime() throws Exception {
+        TargetedSyncLane lane = new TargetedSyncLane(0.5, 10);
+        Assert.assertFalse(lane.hasCapacity());
+        lane.gapEnded();
+
+        Thread.sleep(50);
+        lane.gapStarted();
+        Assert.assertTrue(lane.hasCapacity());
+        lane.targetedUploadCompleted(1000, 3);
+        Assert.assertFalse(lane.hasCapacity());
+        lane.gapEnded();
+
+        Assert.assertEquals(1, lane.getTargetedUploads());
+        Assert.assertEquals(3, lane.getTargetedStopPlaces());
+    }
+
+    @Test
+    public void laneIsDisabledWithoutShare() {
+        Assert.assertFalse(new TargetedSyncLane(0, 10).isEnabled());
+        Assert.assertTrue(new TargetedSyncLane(0.1, 10).isEnabled());
+    }
+}
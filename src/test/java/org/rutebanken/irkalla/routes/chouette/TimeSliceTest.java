@@ -0,0 +1,57 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class TimeSliceTest {
+
+    @Test
+    public void splitOpenPeriodKeepsFirstSliceOpen() {
+        List<TimeSlice> slices = TimeSlice.split(null, 100, 400, 3);
+
+        Assert.assertEquals(3, slices.size());
+        assertSlice(slices.get(0), 0, null, 200L);
+        assertSlice(slices.get(1), 1, 200L, 300L);
+        assertSlice(slices.get(2), 2, 300L, 400L);
+    }
+
+    @Test
+    public void splitUsesFromAsStartWhenSet() {
+        List<TimeSlice> slices = TimeSlice.split(200L, 100, 400, 2);
+
+        Assert.assertEquals(2, slices.size());
+        assertSlice(slices.get(0), 0, 200L, 300L);
+        assertSlice(slices.get(1), 1, 300L, 400L);
+    }
+
+    @Test
+    public void splitGivesSingleSliceIfStartIsAfterEnd() {
+        List<TimeSlice> slices = TimeSlice.split(null, 500, 400, 4);
+
+        Assert.assertEquals(1, slices.size());
+        assertSlice(slices.get(0), 0, null, 400L);
+    }
+
+    private void assertSlice(TimeSlice slice, int index, Long from, Long to) {
+        Assert.assertEquals(index, slice.getIndex());
+        Assert.assertEquals(from, slice.getFrom());
+        Assert.assertEquals(to, slice.getTo());
+    }
+}
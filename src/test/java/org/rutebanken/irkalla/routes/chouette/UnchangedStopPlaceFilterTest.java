@@ -0,0 +1,132 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rutebanken.irkalla.IrkallaException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+public class UnchangedStopPlaceFilterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void onlyChangedStopPlacesAreKept() throws Exception {
+        StopPlaceHashStore hashStore = createHashStore();
+        UnchangedStopPlaceFilter filter = new UnchangedStopPlaceFilter(hashStore);
+
+        UnchangedStopPlaceFilter.FilteredPage firstPage = filter.filter(page(stopPlace("NSR:StopPlace:1", "A"), stopPlace("NSR:StopPlace:2", "B")), null);
+        Assert.assertEquals(2, firstPage.stopPlaceCount);
+        Assert.assertEquals(2, firstPage.changedHashes.size());
+        hashStore.update(firstPage.changedHashes);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UnchangedStopPlaceFilter.FilteredPage secondPage = filter.filter(page(stopPlace("NSR:StopPlace:1", "A"), stopPlace("NSR:StopPlace:2", "B changed")), out);
+        Assert.assertEquals(1, secondPage.kept);
+        Assert.assertEquals(1, secondPage.changedHashes.size());
+        Assert.assertTrue(secondPage.changedHashes.containsKey("NSR:StopPlace:2"));
+
+        String body = out.toString("UTF-8");
+        Assert.assertFalse(body.contains("NSR:StopPlace:1"));
+        Assert.assertTrue(body.contains("B changed"));
+        Assert.assertTrue(body.contains("PublicationDelivery"));
+    }
+
+    @Test
+    public void stopPlaceWithChangedQuayIsKept() throws Exception {
+        StopPlaceHashStore hashStore = createHashStore();
+        UnchangedStopPlaceFilter filter = new UnchangedStopPlaceFilter(hashStore);
+        hashStore.update(filter.filter(page(stopPlace("NSR:StopPlace:1", "A", "<Quay version=\"1\" id=\"NSR:Quay:1\"><PublicCode>1</PublicCode></Quay>")), null).changedHashes);
+
+        UnchangedStopPlaceFilter.FilteredPage page = filter.filter(page(stopPlace("NSR:StopPlace:1", "A", "<Quay version=\"2\" id=\"NSR:Quay:1\"><PublicCode>2</PublicCode></Quay>")), null);
+        Assert.assertEquals(1, page.kept);
+    }
+
+    @Test
+    public void noStopPlacesKeptWhenAllAreUnchanged() throws Exception {
+        StopPlaceHashStore hashStore = createHashStore();
+        UnchangedStopPlaceFilter filter = new UnchangedStopPlaceFilter(hashStore);
+        hashStore.update(filter.filter(page(stopPlace("NSR:StopPlace:1", "A")), null).changedHashes);
+
+        UnchangedStopPlaceFilter.FilteredPage page = filter.filter(page(stopPlace("NSR:StopPlace:1", "A")), new ByteArrayOutputStream());
+        Assert.assertEquals(0, page.kept);
+        Assert.assertTrue(page.changedHashes.isEmpty());
+    }
+
+    @Test
+    public void unchangedStopPlacesAreKeptWhenForced() throws Exception {
+        StopPlaceHashStore hashStore = createHashStore();
+        UnchangedStopPlaceFilter filter = new UnchangedStopPlaceFilter(hashStore);
+        hashStore.update(filter.filter(page(stopPlace("NSR:StopPlace:1", "A")), null).changedHashes);
+
+        UnchangedStopPlaceFilter.FilteredPage page = filter.filter(page(stopPlace("NSR:StopPlace:1", "A")), new ByteArrayOutputStream(), true);
+        Assert.assertEquals(1, page.kept);
+        Assert.assertEquals(1, page.changedHashes.size());
+    }
+
+    @Test
+    public void hashesAreSavedAndDiscardedWhenForced() throws Exception {
+        StopPlaceHashStore hashStore = createHashStore();
+        hashStore.startFullSync(false);
+        hashStore.update(new UnchangedStopPlaceFilter(hashStore).filter(page(stopPlace("NSR:StopPlace:1", "A")), null).changedHashes);
+        hashStore.completeFullSync();
+
+        StopPlaceHashStore reloaded = createHashStore();
+        Assert.assertEquals(1, reloaded.size());
+
+        reloaded.startFullSync(true);
+        Assert.assertEquals(0, reloaded.size());
+    }
+
+    @Test
+    public void completeUploadWhenForcedOrNoPreviousCompleteUpload() throws Exception {
+        StopPlaceHashStore hashStore = createHashStore();
+        Assert.assertTrue(hashStore.startFullSync(false));
+        hashStore.completeFullSync();
+
+        Assert.assertFalse(hashStore.startFullSync(false));
+        Assert.assertTrue(hashStore.startFullSync(true));
+    }
+
+    @Test(expected = IrkallaException.class)
+    public void hashFileMustBeConfiguredWhenEnabled() {
+        new StopPlaceHashStore(true, "", 7);
+    }
+
+    private StopPlaceHashStore createHashStore() {
+        StopPlaceHashStore hashStore = new StopPlaceHashStore(true, folder.getRoot().getAbsolutePath() + "/hashes.bin", 7);
+        hashStore.init();
+        return hashStore;
+    }
+
+    private String stopPlace(String id, String name, String... quays) {
+        return "<StopPlace version=\"1\" id=\"" + id + "\"><Name>" + name + "</Name><quays>" + String.join("", quays) + "</quays></StopPlace>";
+    }
+
+    private ByteArrayInputStream page(String... stopPlaces) {
+        String xml = "<PublicationDelivery xmlns=\"http://www.netex.org.uk/netex\" version=\"1.0\"><dataObjects><SiteFrame version=\"1\" id=\"NSR:SiteFrame:1\"><stopPlaces>"
+                             + String.join("", stopPlaces)
+                             + "</stopPlaces></SiteFrame></dataObjects></PublicationDelivery>";
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.time.Instant;
+import java.util.Collections;
+
+public class WarmStandbyCachesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void standbyRegistersUploadedStopPlacesAndSavesWhenCompleted() {
+        StopPlaceVersionIndex versionIndex = new StopPlaceVersionIndex(true, folder.getRoot().getAbsolutePath() + "/versions.bin", "NSR:StopPlace:", "NSR:Quay:");
+        StopPlaceHashStore hashStore = new StopPlaceHashStore(true, folder.getRoot().getAbsolutePath() + "/hashes.bin", 7);
+        WarmStandbyCaches standby = new WarmStandbyCaches(true, versionIndex, hashStore);
+
+        standby.apply(new WarmStandbyCaches.CacheUpdate(Collections.singletonMap("NSR:StopPlace:1", "2"), Collections.singletonMap("NSR:StopPlace:1", 42L), null, false));
+        Assert.assertTrue(versionIndex.isDelivered("NSR:StopPlace:1", "2"));
+        Assert.assertTrue(hashStore.isUnchanged("NSR:StopPlace:1", 42L));
+
+        Instant completeUploadTime = Instant.now();
+        standby.apply(new WarmStandbyCaches.CacheUpdate(null, null, completeUploadTime.toEpochMilli(), true));
+        Assert.assertEquals(completeUploadTime.toEpochMilli(), hashStore.getCompleteUploadTime().toEpochMilli());
+
+        // Node taking over starts with replicated caches
+        StopPlaceVersionIndex reloadedIndex = new StopPlaceVersionIndex(true, folder.getRoot().getAbsolutePath() + "/versions.bin", "NSR:StopPlace:", "NSR:Quay:");
+        reloadedIndex.init();
+        StopPlaceHashStore reloadedHashes = new StopPlaceHashStore(true, folder.getRoot().getAbsolutePath() + "/hashes.bin", 7);
+        reloadedHashes.init();
+        Assert.assertEquals(1, reloadedIndex.size());
+        Assert.assertEquals(1, reloadedHashes.size());
+    }
+
+    @Test
+    public void cachesNotInUseAreNotUpdated() {
+        StopPlaceVersionIndex versionIndex = new StopPlaceVersionIndex(false, folder.getRoot().getAbsolutePath() + "/versions.bin", "NSR:StopPlace:", "NSR:Quay:");
+        StopPlaceHashStore hashStore = new StopPlaceHashStore(false, folder.getRoot().getAbsolutePath() + "/hashes.bin", 7);
+        WarmStandbyCaches standby = new WarmStandbyCaches(true, versionIndex, hashStore);
+
+        standby.apply(new WarmStandbyCaches.CacheUpdate(Collections.singletonMap("NSR:StopPlace:1", "2"), Collections.singletonMap("NSR:StopPlace:1", 42L), null, false));
+        Assert.assertEquals(0, versionIndex.size());
+        Assert.assertEquals(0, hashStore.size());
+    }
+}
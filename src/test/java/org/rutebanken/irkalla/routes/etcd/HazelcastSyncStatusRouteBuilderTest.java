@@ -0,0 +1,84 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.etcd;
+
+import org.apache.camel.EndpointInject;
+import org.apache.camel.Produce;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.AdviceWithRouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rutebanken.irkalla.IrkallaException;
+import org.rutebanken.irkalla.routes.RouteBuilderIntegrationTestBase;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+
+import java.time.Instant;
+
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@TestPropertySource(properties = {"sync.status.in.memory=false", "sync.status.hazelcast=true", "sync.status.etcd.write.behind.ms=100"})
+public class HazelcastSyncStatusRouteBuilderTest extends RouteBuilderIntegrationTestBase {
+
+    @Produce(uri = "direct:getSyncStatusUntilTime")
+    protected ProducerTemplate getSyncStatus;
+
+    @Produce(uri = "direct:setSyncStatusUntilTime")
+    protected ProducerTemplate setSyncStatus;
+
+    @EndpointInject(uri = "mock:etcdGet")
+    protected MockEndpoint etcdGet;
+
+    @EndpointInject(uri = "mock:etcdSet")
+    protected MockEndpoint etcdSet;
+
+    @Test
+    public void statusIsLoadedFromEtcdOnceAndWrittenBehind() throws Exception {
+        context.getRouteDefinition("get-sync-status-until-etcd").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                weaveAddFirst().to("mock:etcdGet").stop();
+            }
+        });
+        context.getRouteDefinition("set-sync-status-until-etcd").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                weaveAddFirst().to("mock:etcdSet").stop();
+            }
+        });
+
+        etcdGet.expectedMessageCount(1);
+        etcdGet.whenAnyExchangeReceived(e -> e.getIn().setBody(1000L));
+        context.start();
+
+        Assert.assertEquals(Long.valueOf(1000), getSyncStatus.requestBody((Object) null, Long.class));
+        Assert.assertEquals(Long.valueOf(1000), getSyncStatus.requestBody((Object) null, Long.class));
+        etcdGet.assertIsSatisfied();
+
+        etcdSet.expectedBodiesReceived(3000L);
+        setSyncStatus.sendBody(Instant.ofEpochMilli(2000));
+        setSyncStatus.sendBody(Instant.ofEpochMilli(3000));
+        Assert.assertEquals(Long.valueOf(3000), getSyncStatus.requestBody((Object) null, Long.class));
+
+        // Only latest status is written to etcd
+        etcdSet.assertIsSatisfied();
+    }
+
+    @Test(expected = IrkallaException.class)
+    public void inMemoryAndHazelcastSyncStatusAreMutuallyExclusive() {
+        new HazelcastSyncStatusRouteBuilder(true);
+    }
+}
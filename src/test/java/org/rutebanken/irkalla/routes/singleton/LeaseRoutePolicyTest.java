@@ -0,0 +1,211 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.singleton;
+
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.ServiceSupport;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LeaseRoutePolicyTest {
+
+    private static final String KEY = "syncRoute";
+
+    // Heartbeats are triggered by the test, not by the scheduler
+    private static final long HEARTBEAT_MILLIS = 3600000;
+
+    private static final long TTL_MILLIS = 10000;
+
+    private final FakeCluster cluster = new FakeCluster();
+
+    private final SingletonLeaseMetrics metricsA = new SingletonLeaseMetrics();
+
+    private final SingletonLeaseMetrics metricsB = new SingletonLeaseMetrics();
+
+    private final LeaseRoutePolicy policyA = new LeaseRoutePolicy(new FakeLeaseStore("node-a", cluster), KEY, HEARTBEAT_MILLIS, TTL_MILLIS, metricsA);
+
+    private final LeaseRoutePolicy policyB = new LeaseRoutePolicy(new FakeLeaseStore("node-b", cluster), KEY, HEARTBEAT_MILLIS, TTL_MILLIS, metricsB);
+
+    private DefaultCamelContext context;
+
+    @Before
+    public void setUp() throws Exception {
+        context = new DefaultCamelContext();
+        context.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                from("direct:a").routePolicy(policyA).routeId("a")
+                        .process(e -> e.getIn().setBody(e.getProperty(LeaseRoutePolicy.PROPERTY_LEASE_TOKEN)));
+                from("direct:b").routePolicy(policyB).routeId("b")
+                        .process(e -> e.getIn().setBody(e.getProperty(LeaseRoutePolicy.PROPERTY_LEASE_TOKEN)));
+            }
+        });
+        context.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        context.stop();
+    }
+
+    @Test
+    public void consumerIsOnlyStartedOnLeader() {
+        Assert.assertFalse(isConsumerStarted("a"));
+        Assert.assertFalse(isConsumerStarted("b"));
+
+        policyA.heartbeat();
+        policyB.heartbeat();
+
+        Assert.assertTrue(policyA.isLeader());
+        Assert.assertFalse(policyB.isLeader());
+        Assert.assertTrue(isConsumerStarted("a"));
+        Assert.assertFalse(isConsumerStarted("b"));
+    }
+
+    @Test
+    public void leaderRenewsLeaseOnHeartbeat() {
+        policyA.heartbeat();
+        long firstExpiry = Lease.parse(cluster.leases.get(KEY)).expiresAt;
+
+        cluster.advance(TTL_MILLIS - 1000);
+        policyA.heartbeat();
+        cluster.advance(TTL_MILLIS - 1000);
+        policyB.heartbeat();
+
+        Lease lease = Lease.parse(cluster.leases.get(KEY));
+        // Still held after first expiry, as renewed before it
+        Assert.assertEquals(firstExpiry + TTL_MILLIS - 1000, lease.expiresAt);
+        Assert.assertEquals("node-a", lease.owner);
+        Assert.assertTrue(policyA.isLeader());
+        Assert.assertFalse(policyB.isLeader());
+    }
+
+    @Test
+    public void leaseIsTakenOverWhenExpiredWithNewFencingToken() {
+        policyA.heartbeat();
+        long tokenA = sendAndGetToken("direct:a");
+        Assert.assertTrue(policyA.isValid(tokenA));
+
+        cluster.advance(TTL_MILLIS);
+        policyB.heartbeat();
+
+        Assert.assertTrue(policyB.isLeader());
+        Assert.assertTrue(isConsumerStarted("b"));
+        long tokenB = sendAndGetToken("direct:b");
+        Assert.assertEquals(tokenA + 1, tokenB);
+        Assert.assertTrue(policyB.isValid(tokenB));
+        Assert.assertEquals(TTL_MILLIS, metricsB.getLastTakeoverMillis());
+        Assert.assertEquals(0, metricsB.getGracefulTakeovers());
+
+        // Work started under the expired lease is rejected, and the previous leader steps down on its next heartbeat
+        Assert.assertFalse(policyA.isValid(tokenA));
+        policyA.heartbeat();
+        Assert.assertFalse(policyA.isLeader());
+        Assert.assertFalse(isConsumerStarted("a"));
+        Assert.assertEquals(1, metricsA.getLeasesLost());
+    }
+
+    @Test
+    public void leaseIsReleasedWhenRouteIsStopped() throws Exception {
+        policyA.heartbeat();
+        Assert.assertTrue(policyA.isLeader());
+
+        context.stopRoute("a");
+        Assert.assertFalse(policyA.isLeader());
+        Assert.assertTrue(Lease.parse(cluster.leases.get(KEY)).released);
+
+        // Taken over at next heartbeat, without waiting for lease to expire
+        cluster.advance(1000);
+        policyB.heartbeat();
+        Assert.assertTrue(policyB.isLeader());
+        Assert.assertEquals(1, metricsB.getGracefulTakeovers());
+        Assert.assertEquals(1000, metricsB.getLastTakeoverMillis());
+
+        // Stopped route does not compete for lease
+        cluster.advance(TTL_MILLIS);
+        policyA.heartbeat();
+        Assert.assertFalse(policyA.isLeader());
+    }
+
+    private long sendAndGetToken(String uri) {
+        return context.createProducerTemplate().requestBody(uri, null, Long.class);
+    }
+
+    private boolean isConsumerStarted(String routeId) {
+        return ((ServiceSupport) context.getRoute(routeId).getConsumer()).isStarted();
+    }
+
+    private static class FakeCluster {
+        private final Map<String, String> leases = new ConcurrentHashMap<>();
+
+        private final AtomicLong tokens = new AtomicLong();
+
+        private long time = 1000000;
+
+        void advance(long millis) {
+            time += millis;
+        }
+    }
+
+    private static class FakeLeaseStore implements LeaseStore {
+
+        private final String nodeId;
+
+        private final FakeCluster cluster;
+
+        FakeLeaseStore(String nodeId, FakeCluster cluster) {
+            this.nodeId = nodeId;
+            this.cluster = cluster;
+        }
+
+        @Override
+        public String localNodeId() {
+            return nodeId;
+        }
+
+        @Override
+        public long clusterTime() {
+            return cluster.time;
+        }
+
+        @Override
+        public String get(String key) {
+            return cluster.leases.get(key);
+        }
+
+        @Override
+        public boolean putIfAbsent(String key, String value) {
+            return cluster.leases.putIfAbsent(key, value) == null;
+        }
+
+        @Override
+        public boolean replace(String key, String expectedValue, String newValue) {
+            return cluster.leases.replace(key, expectedValue, newValue);
+        }
+
+        @Override
+        public long nextToken(String key) {
+            return cluster.tokens.incrementAndGet();
+        }
+    }
+}
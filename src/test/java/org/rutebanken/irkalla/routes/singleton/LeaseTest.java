@@ -0,0 +1,64 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.singleton;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LeaseTest {
+
+    @Test
+    public void leaseIsHeldUntilExpired() {
+        Lease lease = Lease.acquire("node-1", 7, 1000, 10000);
+
+        Assert.assertTrue(lease.isHeldBy("node-1", 7, 5000));
+        Assert.assertFalse(lease.isHeldBy("node-1", 6, 5000));
+        Assert.assertFalse(lease.isHeldBy("node-2", 7, 5000));
+        Assert.assertFalse(lease.isAvailable(10999));
+        Assert.assertTrue(lease.isAvailable(11000));
+        Assert.assertFalse(lease.isHeldBy("node-1", 7, 11000));
+    }
+
+    @Test
+    public void renewedLeaseKeepsToken() {
+        Lease renewed = Lease.acquire("node-1", 7, 1000, 10000).renew(9000, 10000);
+
+        Assert.assertEquals(7, renewed.token);
+        Assert.assertEquals(9000, renewed.renewedAt);
+        Assert.assertTrue(renewed.isHeldBy("node-1", 7, 15000));
+    }
+
+    @Test
+    public void releasedLeaseIsAvailableImmediately() {
+        Lease released = Lease.acquire("node-1", 7, 1000, 10000).release(2000);
+
+        Assert.assertTrue(released.isAvailable(2000));
+        Assert.assertFalse(released.isHeldBy("node-1", 7, 2000));
+        Assert.assertEquals(2000, released.renewedAt);
+    }
+
+    @Test
+    public void leaseIsStoredAsString() {
+        Lease lease = Lease.acquire("b8a1b2c3-node", 42, 1000, 10000);
+        Lease parsed = Lease.parse(lease.toString());
+
+        Assert.assertEquals(lease.toString(), parsed.toString());
+        Assert.assertEquals("b8a1b2c3-node", parsed.owner);
+        Assert.assertFalse(parsed.released);
+        Assert.assertTrue(Lease.parse(lease.release(2000).toString()).released);
+        Assert.assertNull(Lease.parse(null));
+    }
+}
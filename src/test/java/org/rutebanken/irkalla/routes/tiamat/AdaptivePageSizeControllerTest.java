@@ -0,0 +1,127 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptivePageSizeControllerTest {
+
+    private static final String PAGE_URL = "http4://tiamat/services/stop_places/netex/changed_in_period?topographicPlaceExportMode=NONE&per_page=";
+
+    @Test
+    public void pageSizeNotChangedWhenNotAdaptive() {
+        AdaptivePageSizeController controller = new AdaptivePageSizeController(1000, false, 100, 5000, 30000, 1000000);
+        controller.uploadCompleted(PAGE_URL + 1000, 1000, 1000);
+        controller.uploadRejected(PAGE_URL + 1000, 1000, 1000);
+
+        Assert.assertEquals(1000, controller.getPageSize());
+        Assert.assertTrue(controller.getDecisions().isEmpty());
+    }
+
+    @Test
+    public void pageSizeGrowsWhenUploadIsFasterThanTarget() {
+        AdaptivePageSizeController controller = new AdaptivePageSizeController(1000, true, 100, 5000, 30000, 100000000);
+        controller.uploadCompleted(PAGE_URL + 1000, 10000, 1000);
+
+        Assert.assertEquals(2000, controller.getPageSize());
+    }
+
+    @Test
+    public void pageSizeShrinksWhenUploadIsSlowerThanTarget() {
+        AdaptivePageSizeController controller = new AdaptivePageSizeController(1000, true, 100, 5000, 30000, 100000000);
+        controller.uploadCompleted(PAGE_URL + 1000, 60000, 1000);
+
+        Assert.assertEquals(500, controller.getPageSize());
+    }
+
+    @Test
+    public void pageSizeHalvedWhenChouetteIsBusyAndNotGrowingRightAfter() {
+        AdaptivePageSizeController controller = new AdaptivePageSizeController(1000, true, 100, 5000, 30000, 100000000);
+        controller.uploadRejected(PAGE_URL + 1000, 1000, 1000);
+        Assert.assertEquals(500, controller.getPageSize());
+
+        controller.uploadCompleted(PAGE_URL + 500, 1000, 1000);
+        Assert.assertEquals(500, controller.getPageSize());
+        Assert.assertEquals(2, controller.getDecisions().size());
+    }
+
+    @Test
+    public void pageSizeLimitedByBytesAndBounds() {
+        AdaptivePageSizeController controller = new AdaptivePageSizeController(1000, true, 100, 5000, 30000, 1500);
+        controller.uploadCompleted(PAGE_URL + 1000, 1000, 1000);
+        Assert.assertEquals(1500, controller.getPageSize());
+
+        for (int pageSize = 1500; pageSize > 100; pageSize = controller.getPageSize()) {
+            controller.uploadRejected(PAGE_URL + pageSize, 1000, 1000);
+        }
+        Assert.assertEquals(100, controller.getPageSize());
+    }
+
+    @Test
+    public void pageSizeChangedOneStepForRunWithManyPages() {
+        AdaptivePageSizeController controller = new AdaptivePageSizeController(1000, true, 100, 5000, 30000, 100000000);
+        // All pages of a run are fetched with per_page of first page
+        for (int page = 0; page < 5; page++) {
+            controller.uploadCompleted(PAGE_URL + 1000 + "&page=" + page, 10000, 1000);
+        }
+        Assert.assertEquals(2000, controller.getPageSize());
+
+        for (int page = 0; page < 5; page++) {
+            controller.uploadCompleted(PAGE_URL + 2000 + "&page=" + page, 60000, 1000);
+        }
+        Assert.assertEquals(1000, controller.getPageSize());
+    }
+
+    @Test
+    public void pageSizeNotRestoredByPagesUploadedAfterRejectedPageInSameRun() {
+        AdaptivePageSizeController controller = new AdaptivePageSizeController(1000, true, 100, 5000, 30000, 100000000);
+        controller.uploadCompleted(PAGE_URL + 1000 + "&page=0", 1000, 1000);
+        controller.uploadRejected(PAGE_URL + 1000 + "&page=1", 1000, 1000);
+        controller.uploadRejected(PAGE_URL + 1000 + "&page=2", 1000, 1000);
+        controller.uploadCompleted(PAGE_URL + 1000 + "&page=3", 1000, 1000);
+
+        Assert.assertEquals(500, controller.getPageSize());
+    }
+
+    @Test
+    public void pagesWithoutPageSizeAreIgnored() {
+        AdaptivePageSizeController controller = new AdaptivePageSizeController(1000, true, 100, 5000, 30000, 100000000);
+        controller.uploadCompleted("http4://tiamat/services/stop_places/netex?idList=NSR:StopPlace:1", 1000, 1000);
+        controller.uploadRejected(null, 1000, 1000);
+
+        Assert.assertEquals(1000, controller.getPageSize());
+        Assert.assertTrue(controller.getDecisions().isEmpty());
+    }
+
+    @Test
+    public void decisionsKeptOldestFirst() {
+        AdaptivePageSizeController controller = new AdaptivePageSizeController(1000, true, 100, 5000, 30000, 100000000);
+        controller.uploadCompleted(PAGE_URL + 1000, 10000, 3000);
+        controller.uploadRejected(PAGE_URL + 2000, 1000, 6000);
+
+        Assert.assertEquals(2, controller.getDecisions().size());
+        AdaptivePageSizeController.PageSizeDecision first = controller.getDecisions().get(0);
+        Assert.assertEquals(1000, first.previousPageSize);
+        Assert.assertEquals(2000, first.pageSize);
+        Assert.assertEquals(3000, first.pageBytes);
+        Assert.assertEquals(1000, controller.getDecisions().get(1).pageSize);
+
+        String[] history = controller.getDecisionHistory();
+        Assert.assertEquals(2, history.length);
+        Assert.assertTrue(history[1].contains("Chouette busy (423)"));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.GraphqlGeometry;
+
+import java.util.Arrays;
+
+public class GraphqlGeometryTest {
+
+    private ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void deserializeIntoFlatCoordinates() throws Exception {
+        GraphqlGeometry geometry = mapper.readValue("{\"type\":\"Point\",\"coordinates\":[[10.75,59.91]]}", GraphqlGeometry.class);
+
+        Assert.assertEquals("Point", geometry.type);
+        Assert.assertEquals(2, geometry.dimension);
+        Assert.assertEquals(1, geometry.getPositionCount());
+        Assert.assertArrayEquals(new double[]{10.75, 59.91}, geometry.coordinates, 0);
+    }
+
+    @Test
+    public void serializeKeepsWireFormat() throws Exception {
+        String json = "{\"type\":\"Polygon\",\"coordinates\":[[1.0,2.0],[3.0,4.0],[1.0,2.0]]}";
+
+        GraphqlGeometry geometry = mapper.readValue(json, GraphqlGeometry.class);
+
+        Assert.assertEquals(3, geometry.getPositionCount());
+        Assert.assertEquals(json, mapper.writeValueAsString(geometry));
+    }
+
+    @Test
+    public void deserializeNullCoordinates() throws Exception {
+        GraphqlGeometry geometry = mapper.readValue("{\"type\":\"Point\",\"coordinates\":null,\"unknown\":{\"a\":[1]}}", GraphqlGeometry.class);
+
+        Assert.assertEquals("Point", geometry.type);
+        Assert.assertNull(geometry.coordinates);
+        Assert.assertEquals(0, geometry.getPositionCount());
+    }
+
+    @Test
+    public void equalToGeometryCreatedFromLists() throws Exception {
+        GraphqlGeometry deserialized = mapper.readValue("{\"type\":\"Point\",\"coordinates\":[[4,2]]}", GraphqlGeometry.class);
+
+        GraphqlGeometry fromLists = new GraphqlGeometry("Point", Arrays.asList(Arrays.asList(4.0, 2.0)));
+
+        Assert.assertEquals(fromLists, deserialized);
+        Assert.assertEquals(fromLists.hashCode(), deserialized.hashCode());
+    }
+}
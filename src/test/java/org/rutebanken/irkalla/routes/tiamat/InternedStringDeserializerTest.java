@@ -0,0 +1,184 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.introspect.Annotated;
+import com.fasterxml.jackson.databind.introspect.JacksonAnnotationIntrospector;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.GraphqlGeometry;
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.GraphqlGeometryDeserializer;
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.InternedStringDeserializer;
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.Name;
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.StopPlace;
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.TopographicPlace;
+import org.rutebanken.irkalla.util.StringInterner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+public class InternedStringDeserializerTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(InternedStringDeserializerTest.class);
+
+    @Test
+    public void repeatedValuesAreDeserializedAsSameInstance() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+
+        StopPlace stop1 = mapper.readValue(stopPlaceJson(1), StopPlace.class);
+        StopPlace stop2 = mapper.readValue(stopPlaceJson(101), StopPlace.class);
+
+        Assert.assertEquals("onstreetBus", stop1.stopPlaceType);
+        Assert.assertSame(stop1.stopPlaceType, stop2.stopPlaceType);
+        Assert.assertSame(stop1.__typename, stop2.__typename);
+        Assert.assertSame(stop1.changedBy, stop2.changedBy);
+        Assert.assertSame(stop1.topographicPlace.topographicPlaceType, stop2.topographicPlace.topographicPlaceType);
+        Assert.assertSame(stop1.topographicPlace.name.value, stop2.topographicPlace.name.value);
+        Assert.assertSame(stop1.topographicPlace.parentTopographicPlace.name.value, stop2.topographicPlace.parentTopographicPlace.name.value);
+        Assert.assertNotSame(stop1.name.value, stop2.name.value);
+    }
+
+    @Test
+    public void internerIsBounded() {
+        StringInterner interner = new StringInterner(2);
+        String a = interner.intern(new String("a"));
+        interner.intern(new String("b"));
+
+        Assert.assertSame(a, interner.intern(new String("a")));
+
+        String c = new String("c");
+        Assert.assertSame(c, interner.intern(c));
+        Assert.assertEquals(2, interner.size());
+        Assert.assertNull(interner.intern(null));
+    }
+
+    @Test
+    public void notInterningMapperDoesNotShareValues() throws Exception {
+        ObjectMapper mapper = notInterningMapper();
+
+        StopPlace stop1 = mapper.readValue(stopPlaceJson(1), StopPlace.class);
+        StopPlace stop2 = mapper.readValue(stopPlaceJson(101), StopPlace.class);
+
+        Assert.assertEquals(stop1.stopPlaceType, stop2.stopPlaceType);
+        Assert.assertNotSame(stop1.stopPlaceType, stop2.stopPlaceType);
+        Assert.assertNotSame(stop1.__typename, stop2.__typename);
+        Assert.assertNotSame(stop1.topographicPlace.topographicPlaceType, stop2.topographicPlace.topographicPlaceType);
+        Assert.assertEquals(stop1.topographicPlace.name.value, stop2.topographicPlace.name.value);
+        Assert.assertNotSame(stop1.topographicPlace.name.value, stop2.topographicPlace.name.value);
+        Assert.assertNotSame(stop1.topographicPlace.parentTopographicPlace.name.value, stop2.topographicPlace.parentTopographicPlace.name.value);
+        Assert.assertEquals(stop1.geometry, stop2.geometry);
+        Assert.assertNotSame(stop1.geometry.type, stop2.geometry.type);
+    }
+
+    @Test
+    @Ignore // Benchmark, compare retained heap with and without interning
+    public void retainedHeapBenchmark() throws Exception {
+        int stopCount = 200000;
+
+        long withoutInterning = retainedHeap(notInterningMapper(), stopCount);
+        long withInterning = retainedHeap(new ObjectMapper(), stopCount);
+
+        logger.info("Retained heap for {} stop places. Without interning: {} KB, with interning: {} KB", stopCount, withoutInterning / 1024, withInterning / 1024);
+    }
+
+    /**
+     * Mapper for baseline without any interning: plain string deserialization, topographic place names set directly on
+     * the field instead of through the interning setter and geometry type not interned. Coordinates are still read into
+     * flat storage, so only the effect of interning is compared.
+     */
+    private ObjectMapper notInterningMapper() {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.setAnnotationIntrospector(new JacksonAnnotationIntrospector() {
+            @Override
+            public Object findDeserializer(Annotated a) {
+                Object deserializer = super.findDeserializer(a);
+                if (InternedStringDeserializer.class.equals(deserializer)) {
+                    return null;
+                }
+                return GraphqlGeometryDeserializer.class.equals(deserializer) ? NotInterningGeometryDeserializer.class : deserializer;
+            }
+        });
+        mapper.addMixIn(TopographicPlace.class, NotInterningTopographicPlace.class);
+        return mapper;
+    }
+
+    private abstract static class NotInterningTopographicPlace {
+        @JsonProperty
+        public Name name;
+
+        @JsonIgnore
+        public abstract void setName(Name name);
+    }
+
+    public static class NotInterningGeometryDeserializer extends StdDeserializer<GraphqlGeometry> {
+
+        public NotInterningGeometryDeserializer() {
+            super(GraphqlGeometry.class);
+        }
+
+        @Override
+        public GraphqlGeometry deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            JsonNode node = p.readValueAsTree();
+            JsonNode coordinates = node.get("coordinates");
+            List<List<Double>> positions = coordinates == null || coordinates.isNull() ? null :
+                                                   StreamSupport.stream(coordinates.spliterator(), false)
+                                                           .map(position -> StreamSupport.stream(position.spliterator(), false).map(JsonNode::doubleValue).collect(Collectors.toList()))
+                                                           .collect(Collectors.toList());
+            return new GraphqlGeometry(node.path("type").textValue(), positions);
+        }
+    }
+
+    private long retainedHeap(ObjectMapper mapper, int stopCount) throws Exception {
+        long before = usedHeap();
+        List<StopPlace> stops = new ArrayList<>(stopCount);
+        for (int i = 0; i < stopCount; i++) {
+            stops.add(mapper.readValue(stopPlaceJson(i), StopPlace.class));
+        }
+        long retained = usedHeap() - before;
+        Assert.assertEquals(stopCount, stops.size());
+        return retained;
+    }
+
+    private long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private String stopPlaceJson(int i) {
+        return "{\"id\":\"NSR:StopPlace:" + i + "\",\"version\":1,\"name\":{\"value\":\"Stop " + i + "\"}," +
+                       "\"changedBy\":\"user" + (i % 10) + "\",\"stopPlaceType\":\"onstreetBus\",\"__typename\":\"StopPlace\"," +
+                       "\"geometry\":{\"type\":\"Point\",\"coordinates\":[[10.7,59.9]]}," +
+                       "\"topographicPlace\":{\"topographicPlaceType\":\"town\",\"name\":{\"value\":\"Town " + (i % 100) + "\"}," +
+                       "\"parentTopographicPlace\":{\"topographicPlaceType\":\"county\",\"name\":{\"value\":\"County " + (i % 10) + "\"}}}}";
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class NetexPageSpoolTest {
+
+    private static final String URL = "http4://tiamat/changed_in_period?page=1";
+
+    private static final String RUN = "run-1";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void spooledPageIsTakenOnce() throws Exception {
+        NetexPageSpool spool = createSpool(1000);
+        spool.store(RUN, URL, "<next>; rel=\"next\"", page("<PublicationDelivery/>"));
+
+        NetexPageSpool.SpooledPage page = spool.take(URL);
+        Assert.assertNotNull(page);
+        Assert.assertEquals("<next>; rel=\"next\"", page.link);
+        Assert.assertEquals("<PublicationDelivery/>", new String(Files.readAllBytes(page.file), StandardCharsets.UTF_8));
+        Assert.assertNull(spool.take(URL));
+        Assert.assertEquals(0, spool.getSpooledBytes());
+
+        page.delete();
+        Assert.assertFalse(Files.exists(page.file));
+    }
+
+    @Test
+    public void pageNotSpooledWhenSpoolIsFull() throws Exception {
+        NetexPageSpool spool = createSpool(10);
+        spool.store(RUN, URL, null, page("<PublicationDelivery/>"));
+
+        Assert.assertNull(spool.take(URL));
+        Assert.assertEquals(0, folder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void clearDeletesSpooledPages() throws Exception {
+        NetexPageSpool spool = createSpool(1000);
+        spool.store(RUN, URL, null, page("<PublicationDelivery/>"));
+        Assert.assertEquals(1, folder.getRoot().listFiles().length);
+
+        spool.clear();
+        Assert.assertEquals(0, folder.getRoot().listFiles().length);
+        Assert.assertEquals(0, spool.getSpooledBytes());
+    }
+
+    @Test
+    public void clearRunOnlyDeletesPagesSpooledForRun() throws Exception {
+        NetexPageSpool spool = createSpool(1000);
+        spool.store(RUN, URL, null, page("<PublicationDelivery/>"));
+        spool.store("run-2", URL + "2", null, page("<PublicationDelivery/>"));
+
+        spool.clear(RUN);
+        Assert.assertEquals(1, folder.getRoot().listFiles().length);
+        Assert.assertNull(spool.take(URL));
+
+        NetexPageSpool.SpooledPage other = spool.take(URL + "2");
+        Assert.assertNotNull(other);
+        Assert.assertEquals("run-2", other.runId);
+    }
+
+    private NetexPageSpool createSpool(long maxBytes) throws Exception {
+        NetexPageSpool spool = new NetexPageSpool(true, maxBytes, folder.getRoot().getAbsolutePath());
+        spool.init();
+        return spool;
+    }
+
+    private InputStream page(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class NetexStopPlaceSplitterTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(NetexStopPlaceSplitterTest.class);
+
+    private static final String DELIVERY_START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                                                         "<PublicationDelivery xmlns=\"http://www.netex.org.uk/netex\" xmlns:gml=\"http://www.opengis.net/gml/3.2\" version=\"1.0\">\n" +
+                                                         "<dataObjects><SiteFrame version=\"1\" id=\"NSR:SiteFrame:1\">\n<stopPlaces>\n";
+
+    private static final String DELIVERY_END = "</stopPlaces>\n</SiteFrame></dataObjects>\n</PublicationDelivery>";
+
+    private final NetexStopPlaceSplitter splitter = new NetexStopPlaceSplitter();
+
+    @Test
+    public void splitEmitsStopPlacesWithQuays() {
+        List<NetexStopPlaceSplitter.StopPlaceFragment> fragments = new ArrayList<>();
+        splitter.split(delivery(stopPlace(1, 2), stopPlace(2, 0)), fragments::add);
+
+        Assert.assertEquals(2, fragments.size());
+        Assert.assertEquals("NSR:StopPlace:1", fragments.get(0).id);
+        Assert.assertEquals("3", fragments.get(0).version);
+        Assert.assertEquals(2, fragments.get(0).quays.size());
+        Assert.assertEquals("NSR:Quay:1-1", fragments.get(0).quays.get(1).id);
+        Assert.assertTrue(fragments.get(1).quays.isEmpty());
+
+        String xml = new String(fragments.get(0).toXml(), StandardCharsets.UTF_8);
+        Assert.assertTrue(xml.startsWith("<StopPlace"));
+        Assert.assertTrue(xml.contains("xmlns=\"http://www.netex.org.uk/netex\""));
+        Assert.assertTrue(xml.contains("xmlns:gml=\"http://www.opengis.net/gml/3.2\""));
+    }
+
+    @Test
+    public void splitWithQuaysEmitsQuaysAfterTheirStopPlace() {
+        List<NetexStopPlaceSplitter.NetexFragment> fragments = new ArrayList<>();
+        splitter.splitWithQuays(delivery(stopPlace(1, 2), stopPlace(2, 0)), fragments::add);
+
+        Assert.assertEquals(4, fragments.size());
+        Assert.assertTrue(fragments.get(0) instanceof NetexStopPlaceSplitter.StopPlaceFragment);
+        Assert.assertEquals("NSR:StopPlace:1", fragments.get(0).id);
+        Assert.assertTrue(fragments.get(1) instanceof NetexStopPlaceSplitter.QuayFragment);
+        Assert.assertEquals("NSR:Quay:1-0", fragments.get(1).id);
+        Assert.assertEquals("1", fragments.get(1).version);
+        Assert.assertEquals("NSR:Quay:1-1", fragments.get(2).id);
+        Assert.assertEquals("NSR:StopPlace:2", fragments.get(3).id);
+
+        String xml = new String(fragments.get(2).toXml(), StandardCharsets.UTF_8);
+        Assert.assertTrue(xml.startsWith("<Quay"));
+        Assert.assertTrue(xml.contains("xmlns=\"http://www.netex.org.uk/netex\""));
+        Assert.assertTrue(xml.contains("<PublicCode>1</PublicCode>"));
+        Assert.assertTrue(xml.endsWith("</Quay>"));
+    }
+
+    @Test
+    public void filterKeepsEnvelopeAndSelectedStopPlaces() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int kept = splitter.filter(delivery(stopPlace(1, 1), stopPlace(2, 1), stopPlace(3, 1)), out, stopPlace -> !stopPlace.id.endsWith(":2"));
+
+        Assert.assertEquals(2, kept);
+        List<String> ids = new ArrayList<>();
+        splitter.split(new ByteArrayInputStream(out.toByteArray()), stopPlace -> ids.add(stopPlace.id));
+        Assert.assertEquals(2, ids.size());
+        Assert.assertEquals("NSR:StopPlace:1", ids.get(0));
+        Assert.assertEquals("NSR:StopPlace:3", ids.get(1));
+        Assert.assertTrue(out.toString("UTF-8").contains("NSR:SiteFrame:1"));
+    }
+
+    @Test
+    public void filterLeavesOutEmptyStopPlacesElement() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int kept = splitter.filter(delivery(stopPlace(1, 1)), out, stopPlace -> false);
+
+        Assert.assertEquals(0, kept);
+        String xml = out.toString("UTF-8");
+        Assert.assertFalse(xml.contains("stopPlaces"));
+        Assert.assertTrue(xml.contains("</SiteFrame>"));
+    }
+
+    @Test
+    public void countStopPlacesIgnoresOtherElementsStartingWithStopPlace() throws Exception {
+        Assert.assertEquals(3, NetexStopPlaceSplitter.countStopPlaces(delivery(stopPlace(1, 2), stopPlace(2, 0), stopPlace(3, 1))));
+        Assert.assertEquals(0, NetexStopPlaceSplitter.countStopPlaces(delivery()));
+    }
+
+    @Test
+    @Ignore // Benchmark, throughput of splitting a large export
+    public void splitThroughputBenchmark() throws Exception {
+        int stopCount = 500000;
+        File file = File.createTempFile("netex-benchmark", ".xml");
+        file.deleteOnExit();
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            writer.write(DELIVERY_START);
+            for (int i = 0; i < stopCount; i++) {
+                writer.write(stopPlace(i, 3));
+            }
+            writer.write(DELIVERY_END);
+        }
+
+        int[] count = new int[1];
+        long start = System.currentTimeMillis();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+            splitter.split(in, stopPlace -> count[0]++);
+        }
+        long splitMillis = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath())); OutputStream out = new NullOutputStream()) {
+            splitter.filter(in, out, stopPlace -> stopPlace.id.hashCode() % 10 == 0);
+        }
+        long filterMillis = System.currentTimeMillis() - start;
+
+        Assert.assertEquals(stopCount, count[0]);
+        long mb = file.length() / (1024 * 1024);
+        logger.info("Split {} stop places ({} MB) in {} ms ({} MB/s), filtered in {} ms ({} MB/s)", count[0], mb, splitMillis, mb * 1000 / Math.max(1, splitMillis),
+                filterMillis, mb * 1000 / Math.max(1, filterMillis));
+    }
+
+    private InputStream delivery(String... stopPlaces) {
+        return new ByteArrayInputStream((DELIVERY_START + String.join("", stopPlaces) + DELIVERY_END).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String stopPlace(int i, int quayCount) {
+        StringBuilder stopPlace = new StringBuilder("<StopPlace version=\"3\" id=\"NSR:StopPlace:" + i + "\">" +
+                                                            "<Name lang=\"no\">Stop place " + i + "</Name>" +
+                                                            "<Centroid><Location><Longitude>10.7</Longitude><Latitude>59.9</Latitude></Location></Centroid>" +
+                                                            "<gml:Polygon gml:id=\"polygon-" + i + "\"><gml:exterior><gml:LinearRing><gml:posList>59.9 10.7 59.91 10.71 59.9 10.7</gml:posList></gml:LinearRing></gml:exterior></gml:Polygon>" +
+                                                            "<StopPlaceType>onstreetBus</StopPlaceType><quays>");
+        for (int q = 0; q < quayCount; q++) {
+            stopPlace.append("<Quay version=\"1\" id=\"NSR:Quay:").append(i).append("-").append(q).append("\">")
+                    .append("<Centroid><Location><Longitude>10.7</Longitude><Latitude>59.9</Latitude></Location></Centroid>")
+                    .append("<PublicCode>").append(q).append("</PublicCode></Quay>");
+        }
+        return stopPlace.append("</quays></StopPlace>\n").toString();
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import org.apache.camel.EndpointInject;
+import org.apache.camel.Exchange;
+import org.apache.camel.Produce;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.AdviceWithRouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rutebanken.irkalla.routes.RouteBuilderIntegrationTestBase;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.rutebanken.irkalla.util.Http4URL.toHttp4Url;
+
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@TestPropertySource(properties = "sync.stop.place.prefetch.depth=2")
+public class TiamatPollForStopPlaceChangesRouteBuilderTest extends RouteBuilderIntegrationTestBase {
+
+    @Produce(uri = "activemq:queue:ChouetteStopPlaceSyncQueue")
+    protected ProducerTemplate updateStopPlaces;
+
+    @Value("${chouette.url}")
+    private String chouetteUrl;
+
+    @Value("${tiamat.url}")
+    private String tiamatUrl;
+
+    @Value("${tiamat.publication.delivery.path:/services/stop_places/netex/changed_in_period}")
+    private String publicationDeliveryPath;
+
+    @EndpointInject(uri = "mock:chouetteUpdateStopPlaces")
+    protected MockEndpoint chouetteUpdateStopPlaces;
+
+    @EndpointInject(uri = "mock:tiamatExportChanges")
+    protected MockEndpoint tiamatExportChanges;
+
+    @EndpointInject(uri = "mock:etcd")
+    protected MockEndpoint etcd;
+
+    @Test
+    public void testNextBatchIsPrefetchedWhileCurrentBatchIsUploaded() throws Exception {
+        String exportPath = toHttp4Url(tiamatUrl) + publicationDeliveryPath + "*";
+
+        context.getRouteDefinition("tiamat-get-batch-of-changed-stop-places-as-netex").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint(exportPath)
+                        .skipSendToOriginalEndpoint().to("mock:tiamatExportChanges");
+            }
+        });
+
+        context.getRouteDefinition("chouette-synchronize-stop-place-batch").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint(toHttp4Url(chouetteUrl) + "/chouette_iev/stop_place/*")
+                        .skipSendToOriginalEndpoint().to("mock:chouetteUpdateStopPlaces");
+            }
+        });
+
+        context.getRouteDefinition("chouette-synchronize-stop-places-init").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint("direct:getSyncStatusUntilTime")
+                        .skipSendToOriginalEndpoint().to("mock:etcd");
+            }
+        });
+
+        context.getRouteDefinition("chouette-synchronize-stop-places-complete").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint("direct:setSyncStatusUntilTime")
+                        .skipSendToOriginalEndpoint().to("mock:etcd");
+            }
+        });
+
+        context.start();
+
+        // First batch fetched by route, second batch prefetched (interception of export url applies to both routes)
+        tiamatExportChanges.expectedMessageCount(2);
+        tiamatExportChanges.whenExchangeReceived(1, e -> {
+            e.getIn().setHeader("Link", exportPath);
+            e.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "200");
+            e.getIn().setBody("<batch1/>");
+        });
+        tiamatExportChanges.whenExchangeReceived(2, e -> {
+            e.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "200");
+            e.getIn().setBody("<batch2/>");
+        });
+
+        chouetteUpdateStopPlaces.expectedMessageCount(2);
+
+        updateStopPlaces.sendBody(null);
+
+        tiamatExportChanges.assertIsSatisfied();
+        chouetteUpdateStopPlaces.assertIsSatisfied();
+
+        Assert.assertEquals("tiamat-prefetch-batch-of-changed-stop-places-as-netex", tiamatExportChanges.getExchanges().get(1).getFromRouteId());
+
+        List<String> uploadedBatches = chouetteUpdateStopPlaces.getExchanges().stream().map(e -> e.getIn().getBody(String.class)).collect(Collectors.toList());
+        Assert.assertEquals(Arrays.asList("<batch1/>", "<batch2/>"), uploadedBatches);
+    }
+}
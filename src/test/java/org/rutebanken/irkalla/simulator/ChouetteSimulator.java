@@ -0,0 +1,211 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.simulator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.rutebanken.irkalla.routes.tiamat.NetexStopPlaceSplitter;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for Chouette stop place endpoints, with configurable latency and probability of responding busy (423).
+ */
+public class ChouetteSimulator {
+
+    public static final String STOP_PLACE_PATH = "/chouette_iev/stop_place";
+
+    private final int port;
+
+    private volatile long latencyMillis;
+
+    private volatile double latencyMillisPerStopPlace;
+
+    private volatile double busyProbability;
+
+    private final AtomicLong uploads = new AtomicLong();
+
+    private final AtomicLong busyResponses = new AtomicLong();
+
+    private final AtomicLong stopPlacesReceived = new AtomicLong();
+
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    private final AtomicLong deletes = new AtomicLong();
+
+    private final List<Long> uploadLatencies = Collections.synchronizedList(new ArrayList<>());
+
+    private HttpServer server;
+
+    public ChouetteSimulator(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Simulated response time: fixed part plus a part per stop place uploaded.
+     */
+    public ChouetteSimulator withLatency(long latencyMillis, double latencyMillisPerStopPlace) {
+        this.latencyMillis = latencyMillis;
+        this.latencyMillisPerStopPlace = latencyMillisPerStopPlace;
+        return this;
+    }
+
+    /**
+     * Probability (0-1) of responding 423 (busy) to a request.
+     */
+    public ChouetteSimulator withBusyProbability(double busyProbability) {
+        this.busyProbability = busyProbability;
+        return this;
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(Executors.newFixedThreadPool(16));
+        server.createContext(STOP_PLACE_PATH, this::handle);
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + port;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        long start = System.currentTimeMillis();
+        String method = exchange.getRequestMethod();
+        if ("POST".equals(method)) {
+            long stopPlaces;
+            try (CountingInputStream in = new CountingInputStream(exchange.getRequestBody())) {
+                stopPlaces = NetexStopPlaceSplitter.countStopPlaces(in);
+                bytesReceived.addAndGet(in.count);
+            }
+            sleep(latencyMillis + (long) (latencyMillisPerStopPlace * stopPlaces));
+            if (isBusy()) {
+                TiamatSimulator.respond(exchange, 423, "text/plain", "Locked", null);
+            } else {
+                uploads.incrementAndGet();
+                stopPlacesReceived.addAndGet(stopPlaces);
+                TiamatSimulator.respond(exchange, 200, null, null, null);
+            }
+            uploadLatencies.add(System.currentTimeMillis() - start);
+        } else if ("DELETE".equals(method)) {
+            sleep(latencyMillis);
+            if (isBusy()) {
+                TiamatSimulator.respond(exchange, 423, "text/plain", "Locked", null);
+            } else {
+                deletes.incrementAndGet();
+                TiamatSimulator.respond(exchange, 200, null, null, null);
+            }
+        } else {
+            // Probe for busy status
+            TiamatSimulator.respond(exchange, isBusy() ? 423 : 200, null, null, null);
+        }
+    }
+
+    private boolean isBusy() {
+        boolean busy = busyProbability > 0 && ThreadLocalRandom.current().nextDouble() < busyProbability;
+        if (busy) {
+            busyResponses.incrementAndGet();
+        }
+        return busy;
+    }
+
+    private static void sleep(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public long getUploads() {
+        return uploads.get();
+    }
+
+    public long getBusyResponses() {
+        return busyResponses.get();
+    }
+
+    public long getStopPlacesReceived() {
+        return stopPlacesReceived.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getDeletes() {
+        return deletes.get();
+    }
+
+    /**
+     * Upload latency in ms for given percentile, including simulated latency and time spent receiving body.
+     */
+    public long getUploadLatencyPercentile(double percentile) {
+        List<Long> sorted;
+        synchronized (uploadLatencies) {
+            sorted = new ArrayList<>(uploadLatencies);
+        }
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.simulator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.camel.ProducerTemplate;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.rutebanken.irkalla.domain.CrudAction;
+import org.rutebanken.irkalla.domain.EntityChangedEvent;
+import org.rutebanken.irkalla.routes.RouteBuilderIntegrationTestBase;
+import org.rutebanken.irkalla.routes.chouette.DeltaSyncScheduler;
+import org.rutebanken.irkalla.routes.chouette.SyncRunRecorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.rutebanken.irkalla.Constants.*;
+
+/**
+ * Load test driving synchronization through the real routes against simulated Tiamat and Chouette, and an embedded (vm://) broker.
+ * <p>
+ * Size of data set and behaviour of simulators can be tuned with system properties, ie:
+ * -Dloadtest.stopPlaces=50000 -Dloadtest.changes=5000 -Dloadtest.chouette.busyProbability=0.1
+ * <p>
+ * Heap in use is sampled during full synchronization, and peak heap is logged. Page size is set with -Dsync.stop.place.batch.size.
+ */
+@Ignore // Load test, run manually
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@TestPropertySource(properties = {
+        "tiamat.url=http://localhost:" + StopPlaceSyncLoadTest.TIAMAT_PORT,
+        "chouette.url=http://localhost:" + StopPlaceSyncLoadTest.CHOUETTE_PORT,
+        "spring.activemq.broker-url=vm://localhost?jms.useAsyncSend=true&broker.persistent=false&broker.schedulerSupport=true",
+        "sync.status.in.memory=true",
+        "chouette.sync.stop.place.autoStartup=false",
+        "chouette.sync.stop.place.grace.ms=1000",
+        "chouette.sync.stop.place.delta.min.interval.ms=1000",
+        "chouette.sync.stop.place.lag.history.size=1000000"})
+public class StopPlaceSyncLoadTest extends RouteBuilderIntegrationTestBase {
+
+    private static final Logger logger = LoggerFactory.getLogger(StopPlaceSyncLoadTest.class);
+
+    static final int TIAMAT_PORT = 18711;
+
+    static final int CHOUETTE_PORT = 18712;
+
+    private static final long TIMEOUT_MILLIS = 30 * 60 * 1000;
+
+    private static final long MB = 1024 * 1024;
+
+    private static TiamatSimulator tiamat;
+
+    private static ChouetteSimulator chouette;
+
+    @Autowired
+    private SyncRunRecorder syncRunRecorder;
+
+    @Autowired
+    private DeltaSyncScheduler deltaSyncScheduler;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @BeforeClass
+    public static void startSimulators() throws Exception {
+        tiamat = new TiamatSimulator(TIAMAT_PORT, Integer.getInteger("loadtest.stopPlaces", 20000))
+                         .withLatency(Long.getLong("loadtest.tiamat.latencyMillis", 50), doubleProperty("loadtest.tiamat.latencyMillisPerStopPlace", 0.05));
+        chouette = new ChouetteSimulator(CHOUETTE_PORT)
+                           .withLatency(Long.getLong("loadtest.chouette.latencyMillis", 200), doubleProperty("loadtest.chouette.latencyMillisPerStopPlace", 0.5))
+                           .withBusyProbability(doubleProperty("loadtest.chouette.busyProbability", 0.05));
+        tiamat.start();
+        chouette.start();
+    }
+
+    @AfterClass
+    public static void stopSimulators() {
+        tiamat.stop();
+        chouette.stop();
+    }
+
+    @Test
+    public void fullSynchronization() throws Exception {
+        context.start();
+
+        long uploadsBefore = chouette.getUploads();
+        long busyBefore = chouette.getBusyResponses();
+        long stopPlacesBefore = chouette.getStopPlacesReceived();
+
+        SyncRunRecorder.SyncRunReport run;
+        HeapSampler heapSampler = new HeapSampler(Long.getLong("loadtest.heap.sample.interval.ms", 5));
+        try {
+            run = runFullSynchronization();
+        } finally {
+            heapSampler.stop();
+        }
+
+        long stopPlaces = chouette.getStopPlacesReceived() - stopPlacesBefore;
+        Assert.assertEquals(tiamat.getStopPlaceCount(), stopPlaces);
+        logger.info("Full synchronization of {} stop places in {} ms ({} stop places/s), {} uploads, {} busy responses (423)", stopPlaces, run.wallTimeMillis,
+                stopPlaces * 1000 / Math.max(1, run.wallTimeMillis), chouette.getUploads() - uploadsBefore, chouette.getBusyResponses() - busyBefore);
+        logger.info("Tiamat latency (ms): {}, Chouette latency (ms): {}", run.tiamatLatency, run.chouetteLatency);
+        logger.info("Chouette upload latency seen by simulator (ms): p50={}, p99={}", chouette.getUploadLatencyPercentile(50), chouette.getUploadLatencyPercentile(99));
+        logger.info("Heap in use (MB): before={}, peak={}, peak above before={}, max heap={}", heapSampler.getBaselineBytes() / MB, heapSampler.getPeakBytes() / MB,
+                (heapSampler.getPeakBytes() - heapSampler.getBaselineBytes()) / MB, Runtime.getRuntime().maxMemory() / MB);
+    }
+
+    @Test
+    public void changelogFlood() throws Exception {
+        context.start();
+        // Establish sync status, so that delta synchronizations only include changes
+        runFullSynchronization();
+
+        int changeCount = Math.min(tiamat.getStopPlaceCount(), Integer.getInteger("loadtest.changes", 2000));
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 1; i <= tiamat.getStopPlaceCount(); i++) {
+            changed.add(i);
+        }
+        Collections.shuffle(changed);
+        changed = changed.subList(0, changeCount);
+
+        long completedBefore = syncRunRecorder.getCompletedRuns();
+        int lagsBefore = deltaSyncScheduler.getLagHistory().size();
+        ProducerTemplate producerTemplate = context.createProducerTemplate();
+        long start = System.currentTimeMillis();
+        for (int index : changed) {
+            EntityChangedEvent event = new EntityChangedEvent();
+            event.entityType = EntityChangedEvent.EntityType.STOP_PLACE;
+            event.entityId = TiamatSimulator.stopPlaceId(index);
+            event.entityVersion = tiamat.changeStopPlace(index);
+            event.crudAction = CrudAction.UPDATE;
+            producerTemplate.sendBody("activemq:queue:IrkallaChangelogQueue", objectMapper.writeValueAsString(event));
+        }
+        long floodMillis = System.currentTimeMillis() - start;
+
+        await(() -> deltaSyncScheduler.getLagHistory().size() - lagsBefore >= changeCount, "all changes synchronized");
+        long totalMillis = System.currentTimeMillis() - start;
+
+        logger.info("{} changelog events sent in {} ms, all synchronized in {} ms ({} changes/s) by {} runs", changeCount, floodMillis, totalMillis,
+                changeCount * 1000L / Math.max(1, totalMillis), syncRunRecorder.getCompletedRuns() - completedBefore);
+        logger.info("Lag from change to synchronized (ms): p50={}, p90={}, p99={}, max={}", deltaSyncScheduler.getLagPercentile(50), deltaSyncScheduler.getLagPercentile(90),
+                deltaSyncScheduler.getLagPercentile(99), deltaSyncScheduler.getLagPercentile(100));
+    }
+
+    private SyncRunRecorder.SyncRunReport runFullSynchronization() throws InterruptedException {
+        long completedBefore = syncRunRecorder.getCompletedRuns();
+        context.createProducerTemplate().sendBodyAndHeader("activemq:queue:ChouetteStopPlaceSyncQueue", null, HEADER_SYNC_OPERATION, SYNC_OPERATION_FULL);
+        await(() -> syncRunRecorder.getCompletedRuns() > completedBefore, "full synchronization completed");
+        return syncRunRecorder.getRuns().stream()
+                       .filter(run -> SyncRunRecorder.STATUS_COMPLETED.equals(run.status) && SYNC_OPERATION_FULL.equals(run.operation))
+                       .findFirst().get();
+    }
+
+    private static void await(BooleanSupplier condition, String description) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                Assert.fail("Timed out waiting for " + description);
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    /**
+     * Sample heap in use in the background until stopped, keeping the peak. Garbage is collected before sampling starts, so that the
+     * baseline is the live heap before synchronization. Includes the heap used by the simulators, as they run in the same JVM.
+     */
+    private static class HeapSampler {
+
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        private final long baselineBytes;
+
+        private volatile long peakBytes;
+
+        private volatile boolean running = true;
+
+        private final Thread thread;
+
+        HeapSampler(long intervalMillis) {
+            memory.gc();
+            baselineBytes = memory.getHeapMemoryUsage().getUsed();
+            peakBytes = baselineBytes;
+            thread = new Thread(() -> {
+                while (running) {
+                    peakBytes = Math.max(peakBytes, memory.getHeapMemoryUsage().getUsed());
+                    try {
+                        Thread.sleep(intervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "heap-sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            thread.join();
+        }
+
+        long getBaselineBytes() {
+            return baselineBytes;
+        }
+
+        long getPeakBytes() {
+            return peakBytes;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.simulator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * Stand-in for Tiamat, serving stop places by GraphQL, as NeTEx by id and as paged NeTEx (changed_in_period) with Link header to next page.
+ * <p>
+ * Stop places are generated, NSR:StopPlace:1 to NSR:StopPlace:n. Changes are simulated by {@link #changeStopPlace(int)}.
+ */
+public class TiamatSimulator {
+
+    public static final String GRAPHQL_PATH = "/services/stop_places/graphql";
+
+    public static final String CHANGED_IN_PERIOD_PATH = "/services/stop_places/netex/changed_in_period";
+
+    public static final String STOP_PLACES_NETEX_PATH = "/services/stop_places/netex";
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXXX").withZone(ZoneId.of("UTC"));
+
+    private static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private static final int QUAYS_PER_STOP_PLACE = 3;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final int port;
+
+    private final long[] versions;
+
+    private final long[] changeTimes;
+
+    private long latencyMillis;
+
+    private double latencyMillisPerStopPlace;
+
+    private HttpServer server;
+
+    public TiamatSimulator(int port, int stopPlaceCount) {
+        this.port = port;
+        this.versions = new long[stopPlaceCount + 1];
+        this.changeTimes = new long[stopPlaceCount + 1];
+        long created = System.currentTimeMillis() - 24 * 3600 * 1000;
+        for (int i = 1; i <= stopPlaceCount; i++) {
+            versions[i] = 1;
+            changeTimes[i] = created;
+        }
+    }
+
+    /**
+     * Simulated response time: fixed part plus a part per stop place in response.
+     */
+    public TiamatSimulator withLatency(long latencyMillis, double latencyMillisPerStopPlace) {
+        this.latencyMillis = latencyMillis;
+        this.latencyMillisPerStopPlace = latencyMillisPerStopPlace;
+        return this;
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(Executors.newFixedThreadPool(16));
+        server.createContext(GRAPHQL_PATH, this::handleGraphQL);
+        server.createContext(CHANGED_IN_PERIOD_PATH, this::handleChangedInPeriod);
+        server.createContext(STOP_PLACES_NETEX_PATH, this::handleStopPlacesById);
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + port;
+    }
+
+    public int getStopPlaceCount() {
+        return versions.length - 1;
+    }
+
+    /**
+     * Create new version of stop place, effective now.
+     *
+     * @return new version
+     */
+    public synchronized long changeStopPlace(int index) {
+        changeTimes[index] = System.currentTimeMillis();
+        return ++versions[index];
+    }
+
+    public static String stopPlaceId(int index) {
+        return "NSR:StopPlace:" + index;
+    }
+
+    private void handleGraphQL(HttpExchange exchange) throws IOException {
+        JsonNode variables = objectMapper.readTree(exchange.getRequestBody()).get("variables");
+        String id = variables.get("id").asText();
+        long version = variables.get("currentVersion").asLong();
+        int index = Integer.parseInt(id.substring(id.lastIndexOf(':') + 1));
+
+        StringBuilder json = new StringBuilder("{\"data\":{\"current\":[");
+        synchronized (this) {
+            if (index > 0 && index < versions.length && version <= versions[index]) {
+                json.append(graphQLStopPlace(index, version, true));
+                json.append("],\"previous\":[");
+                if (version > 1) {
+                    json.append(graphQLStopPlace(index, version - 1, false));
+                }
+            } else {
+                json.append("],\"previous\":[");
+            }
+        }
+        json.append("]}}");
+        respond(exchange, 200, "application/json", json.toString(), null);
+    }
+
+    private String graphQLStopPlace(int index, long version, boolean current) {
+        // Only time of latest change is known
+        String validBetween = current ? "\"validBetween\":{\"fromDate\":\"" + FORMATTER.format(Instant.ofEpochMilli(changeTimes[index])) + "\"}," : "";
+        return "{\"id\":\"" + stopPlaceId(index) + "\",\"version\":" + version + ",\"__typename\":\"StopPlace\",\"stopPlaceType\":\"onstreetBus\"," +
+                       "\"name\":{\"value\":\"Stop place " + index + " v" + version + "\"}," + validBetween +
+                       "\"geometry\":{\"type\":\"Point\",\"coordinates\":[[10.7,59.9]]}}";
+    }
+
+    private void handleChangedInPeriod(HttpExchange exchange) throws IOException {
+        Map<String, String> params = queryParams(exchange.getRequestURI().getRawQuery());
+        Long from = params.containsKey("from") ? parseTime(params.get("from")) : null;
+        Long to = params.containsKey("to") ? parseTime(params.get("to")) : null;
+        int perPage = params.containsKey("per_page") ? Integer.parseInt(params.get("per_page")) : DEFAULT_PAGE_SIZE;
+        int page = params.containsKey("page") ? Integer.parseInt(params.get("page")) : 0;
+
+        List<Integer> changed = new ArrayList<>();
+        List<Long> changedVersions = new ArrayList<>();
+        synchronized (this) {
+            for (int i = 1; i < versions.length; i++) {
+                if ((from == null || changeTimes[i] > from) && (to == null || changeTimes[i] <= to)) {
+                    changed.add(i);
+                    changedVersions.add(versions[i]);
+                }
+            }
+        }
+
+        int first = page * perPage;
+        int last = Math.min(changed.size(), first + perPage);
+        simulateLatency(Math.max(0, last - first));
+
+        String link = null;
+        if (last < changed.size()) {
+            String query = exchange.getRequestURI().getRawQuery().replaceAll("(^|&)page=\\d+", "");
+            link = "<" + getUrl() + CHANGED_IN_PERIOD_PATH + "?" + query + "&page=" + (page + 1) + ">; rel=\"next\"";
+        }
+        respond(exchange, 200, "application/xml", publicationDelivery(changed.subList(first, Math.max(first, last)), changedVersions.subList(first, Math.max(first, last))), link);
+    }
+
+    private void handleStopPlacesById(HttpExchange exchange) throws IOException {
+        List<Integer> stopPlaces = new ArrayList<>();
+        List<Long> stopPlaceVersions = new ArrayList<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        synchronized (this) {
+            for (String param : query == null ? new String[0] : query.split("&")) {
+                if (param.startsWith("idList=")) {
+                    String id = URLDecoder.decode(param.substring("idList=".length()), "UTF-8");
+                    int index = Integer.parseInt(id.substring(id.lastIndexOf(':') + 1));
+                    if (index > 0 && index < versions.length) {
+                        stopPlaces.add(index);
+                        stopPlaceVersions.add(versions[index]);
+                    }
+                }
+            }
+        }
+        simulateLatency(stopPlaces.size());
+        respond(exchange, 200, "application/xml", publicationDelivery(stopPlaces, stopPlaceVersions), null);
+    }
+
+    private static String publicationDelivery(List<Integer> stopPlaces, List<Long> stopPlaceVersions) {
+        StringBuilder netex = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                                                        "<PublicationDelivery xmlns=\"http://www.netex.org.uk/netex\" xmlns:gml=\"http://www.opengis.net/gml/3.2\" version=\"1.0\">\n" +
+                                                        "<dataObjects><SiteFrame version=\"1\" id=\"NSR:SiteFrame:1\">\n");
+        if (!stopPlaces.isEmpty()) {
+            netex.append("<stopPlaces>\n");
+            for (int i = 0; i < stopPlaces.size(); i++) {
+                netex.append(netexStopPlace(stopPlaces.get(i), stopPlaceVersions.get(i)));
+            }
+            netex.append("</stopPlaces>\n");
+        }
+        return netex.append("</SiteFrame></dataObjects>\n</PublicationDelivery>").toString();
+    }
+
+    private static String netexStopPlace(int index, long version) {
+        StringBuilder stopPlace = new StringBuilder("<StopPlace version=\"" + version + "\" id=\"" + stopPlaceId(index) + "\">" +
+                                                            "<Name lang=\"no\">Stop place " + index + " v" + version + "</Name>" +
+                                                            "<Centroid><Location><Longitude>10.7</Longitude><Latitude>59.9</Latitude></Location></Centroid>" +
+                                                            "<StopPlaceType>onstreetBus</StopPlaceType><quays>");
+        for (int q = 0; q < QUAYS_PER_STOP_PLACE; q++) {
+            stopPlace.append("<Quay version=\"1\" id=\"NSR:Quay:").append(index).append("-").append(q).append("\">")
+                    .append("<Centroid><Location><Longitude>10.7</Longitude><Latitude>59.9</Latitude></Location></Centroid>")
+                    .append("<PublicCode>").append(q).append("</PublicCode></Quay>");
+        }
+        return stopPlace.append("</quays></StopPlace>\n").toString();
+    }
+
+    private void simulateLatency(int stopPlaces) {
+        long millis = latencyMillis + (long) (latencyMillisPerStopPlace * stopPlaces);
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static long parseTime(String time) {
+        return OffsetDateTime.parse(time, FORMATTER).toInstant().toEpochMilli();
+    }
+
+    private static Map<String, String> queryParams(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int separator = param.indexOf('=');
+                if (separator > 0) {
+                    params.put(param.substring(0, separator), URLDecoder.decode(param.substring(separator + 1), "UTF-8"));
+                }
+            }
+        }
+        return params;
+    }
+
+    static void respond(HttpExchange exchange, int status, String contentType, String body, String link) throws IOException {
+        byte[] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        if (contentType != null) {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+        }
+        if (link != null) {
+            exchange.getResponseHeaders().set("Link", link);
+        }
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+        exchange.close();
+    }
+}